@@ -18,6 +18,7 @@ public class Main {
     private static final String SERVICE_NAME = "dns-single-proxy";
     private static final String JAR_NAME = "dns-single-proxy.jar";
     private static final String DEFAULT_JAVA_PATH = "/usr/bin/java";
+    private static final String CACHE_DIR = "/var/cache/" + SERVICE_NAME;
 
     public static void main(String[] args) {
         String configPath = "/etc/systemd/resolved.conf";
@@ -255,7 +256,14 @@ public class Main {
                 deleteDirectory(installDir);
             }
 
-            // Step 5: Re-enable and start systemd-resolved (if it exists)
+            // Step 5: Remove cache snapshot directory
+            Path cacheDir = Paths.get(CACHE_DIR);
+            if (Files.exists(cacheDir)) {
+                System.out.println("Removing cache directory: " + cacheDir);
+                deleteDirectory(cacheDir);
+            }
+
+            // Step 6: Re-enable and start systemd-resolved (if it exists)
             if (isServiceExists("systemd-resolved")) {
                 System.out.println("Restoring systemd-resolved...");
                 runCommandIgnoreError("systemctl", "enable", "systemd-resolved");
@@ -363,6 +371,7 @@ public class Main {
                "Restart=always\n" +
                "RestartSec=5\n" +
                "AmbientCapabilities=CAP_NET_BIND_SERVICE\n" +
+               "CacheDirectory=" + SERVICE_NAME + "\n" +
                "\n" +
                "[Install]\n" +
                "WantedBy=multi-user.target\n";
@@ -0,0 +1,139 @@
+package com.logpresso.dnsproxy.cache;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cached response in wire format. The prev/next links and the queue tag belong
+ * to the eviction policy of the owning CacheShard, the timer fields to its
+ * TimerWheel; both are guarded by the shard lock.
+ */
+class CacheEntry {
+
+    // 객체 헤더와 필드, atomic 필드, 배열 헤더, CacheKey, HashMap 노드 등 항목당 고정 비용 추정치
+    private static final int ENTRY_OVERHEAD_BYTES = 240;
+
+    // 응답 wire 포맷과 각 레코드의 TTL 필드 위치
+    private final CacheKey key;
+    private final byte[] wire;
+    private final int[] ttlOffsets;
+    private final long creationTime;
+    private final long expirationTime;
+    private final AtomicLong lastRefreshTime = new AtomicLong(0);
+    private final AtomicInteger hits = new AtomicInteger(0);
+
+    CacheEntry prev;
+    CacheEntry next;
+    byte queue;
+    int weight;
+
+    CacheEntry timerPrev;
+    CacheEntry timerNext;
+    long deadlineSec;
+
+    CacheEntry(CacheKey key, byte[] wire, int[] ttlOffsets, long ttlSeconds) {
+        this.key = key;
+        this.wire = wire;
+        this.ttlOffsets = ttlOffsets;
+        this.creationTime = System.currentTimeMillis();
+        this.expirationTime = creationTime + (ttlSeconds * 1000);
+    }
+
+    // off-heap 저장소나 스냅샷에서 읽어 만든 항목
+    CacheEntry(CacheKey key, byte[] wire, int[] ttlOffsets, long creationTime, long expirationTime, int hits) {
+        this.key = key;
+        this.wire = wire;
+        this.ttlOffsets = ttlOffsets;
+        this.creationTime = creationTime;
+        this.expirationTime = expirationTime;
+        this.hits.set(hits);
+    }
+
+    // LRU 리스트의 sentinel
+    CacheEntry() {
+        this.key = null;
+        this.wire = null;
+        this.ttlOffsets = null;
+        this.creationTime = 0;
+        this.expirationTime = 0;
+        this.prev = this;
+        this.next = this;
+    }
+
+    CacheKey getKey() {
+        return key;
+    }
+
+    /**
+     * Estimated heap bytes retained by this entry, including the key.
+     */
+    int getRetainedBytes() {
+        return ENTRY_OVERHEAD_BYTES + wire.length + ttlOffsets.length * 4 + key.getNameLength();
+    }
+
+    boolean isExpired(long now) {
+        return now > expirationTime;
+    }
+
+    boolean isNearExpiry(long now, int thresholdPercent) {
+        long ttlMs = expirationTime - creationTime;
+        return (expirationTime - now) * 100 <= ttlMs * thresholdPercent;
+    }
+
+    int recordHit() {
+        return hits.incrementAndGet();
+    }
+
+    byte[] getWire() {
+        return wire;
+    }
+
+    int[] getTtlOffsets() {
+        return ttlOffsets;
+    }
+
+    long getCreationTime() {
+        return creationTime;
+    }
+
+    long getExpirationTime() {
+        return expirationTime;
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    boolean isStaleExpired(long now, long staleRetentionMs) {
+        return now > expirationTime + staleRetentionMs;
+    }
+
+    boolean tryStartRefresh(long now, long intervalMs) {
+        long last = lastRefreshTime.get();
+        return now - last >= intervalMs && lastRefreshTime.compareAndSet(last, now);
+    }
+
+    byte[] getAdjustedWire(long now) {
+        byte[] adjusted = wire.clone();
+
+        long elapsedSeconds = (now - creationTime) / 1000;
+        if (elapsedSeconds > 0) {
+            for (int offset : ttlOffsets) {
+                long ttl = DnsWire.getUnsignedInt(wire, offset);
+                DnsWire.putInt(adjusted, offset, Math.max(0, ttl - elapsedSeconds));
+            }
+        }
+
+        return adjusted;
+    }
+
+    byte[] getStaleWire(long ttlSeconds) {
+        byte[] stale = wire.clone();
+        for (int offset : ttlOffsets)
+            DnsWire.putInt(stale, offset, Math.min(ttlSeconds, DnsWire.getUnsignedInt(wire, offset)));
+
+        return stale;
+    }
+}
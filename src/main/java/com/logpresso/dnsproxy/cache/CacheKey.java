@@ -0,0 +1,184 @@
+package com.logpresso.dnsproxy.cache;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.xbill.DNS.Name;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Cache key made of the lower-cased wire format question name, type, class and
+ * the EDNS DO bit. Can be built from a dnsjava Name or straight from raw query bytes.
+ */
+public final class CacheKey {
+
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private final byte[] name;
+    private final int type;
+    private final int dclass;
+    private final boolean dnssecOk;
+    private final int hash;
+
+    private CacheKey(byte[] name, int type, int dclass, boolean dnssecOk) {
+        this.name = name;
+        this.type = type;
+        this.dclass = dclass;
+        this.dnssecOk = dnssecOk;
+        this.hash = 31 * (31 * (31 * Arrays.hashCode(name) + type) + dclass) + (dnssecOk ? 1 : 0);
+    }
+
+    public static CacheKey of(Name name, int type, int dclass) {
+        return of(name, type, dclass, false);
+    }
+
+    public static CacheKey of(Name name, int type, int dclass, boolean dnssecOk) {
+        return new CacheKey(name.toWireCanonical(), type, dclass, dnssecOk);
+    }
+
+    /**
+     * Parses the question of a raw query and the DO bit of its OPT record, if
+     * any. Returns null if the query cannot be read without a full parse (e.g.
+     * compressed or malformed name, additional records other than a version 0 OPT).
+     */
+    public static CacheKey fromQuery(byte[] data, int length) {
+        int pos = DnsWire.HEADER_LENGTH;
+
+        while (true) {
+            if (pos >= length || pos - DnsWire.HEADER_LENGTH >= MAX_NAME_LENGTH)
+                return null;
+
+            int len = data[pos] & 0xff;
+            if (len == 0)
+                break;
+
+            if (len > MAX_LABEL_LENGTH)
+                return null;
+
+            pos += len + 1;
+        }
+
+        int nameEnd = pos + 1;
+        if (nameEnd + 4 > length)
+            return null;
+
+        byte[] name = new byte[nameEnd - DnsWire.HEADER_LENGTH];
+        for (int i = 0; i < name.length; i++) {
+            byte b = data[DnsWire.HEADER_LENGTH + i];
+            name[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+        }
+
+        boolean dnssecOk = false;
+        if (DnsWire.getAdditionalCount(data) != 0) {
+            int opt = DnsWire.findQueryOpt(data, length, nameEnd + 4);
+            if (opt < 0 || DnsWire.getOptVersion(data, opt) != 0)
+                return null;
+
+            dnssecOk = DnsWire.isOptDnssecOk(data, opt);
+        }
+
+        int type = DnsWire.getUnsignedShort(data, nameEnd);
+        int dclass = DnsWire.getUnsignedShort(data, nameEnd + 2);
+        return new CacheKey(name, type, dclass, dnssecOk);
+    }
+
+    public Name getName() throws IOException {
+        return new Name(name);
+    }
+
+    public int getNameLength() {
+        return name.length;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getDClass() {
+        return dclass;
+    }
+
+    public boolean isDnssecOk() {
+        return dnssecOk;
+    }
+
+    /**
+     * Serialized form used by the off-heap store and snapshots: name, type, class and DO bit.
+     */
+    byte[] toBytes() {
+        byte[] b = Arrays.copyOf(name, name.length + 5);
+        DnsWire.putShort(b, name.length, type);
+        DnsWire.putShort(b, name.length + 2, dclass);
+        b[name.length + 4] = (byte) (dnssecOk ? 1 : 0);
+        return b;
+    }
+
+    /**
+     * Reverse of toBytes(). Returns null if the bytes do not hold a valid name.
+     */
+    static CacheKey fromBytes(byte[] b) {
+        int nameLength = b.length - 5;
+        if (nameLength < 1 || nameLength > MAX_NAME_LENGTH)
+            return null;
+
+        int pos = 0;
+        while (pos < nameLength - 1) {
+            int len = b[pos] & 0xff;
+            if (len == 0 || len > MAX_LABEL_LENGTH)
+                return null;
+
+            pos += len + 1;
+        }
+
+        if (pos != nameLength - 1 || b[pos] != 0)
+            return null;
+
+        return new CacheKey(Arrays.copyOf(b, nameLength), DnsWire.getUnsignedShort(b, nameLength),
+                DnsWire.getUnsignedShort(b, nameLength + 2), b[nameLength + 4] != 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof CacheKey))
+            return false;
+
+        CacheKey other = (CacheKey) o;
+        return hash == other.hash
+                && type == other.type
+                && dclass == other.dclass
+                && dnssecOk == other.dnssecOk
+                && Arrays.equals(name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (pos < name.length && name[pos] != 0) {
+            int len = name[pos] & 0xff;
+            for (int i = 1; i <= len; i++)
+                sb.append((char) (name[pos + i] & 0xff));
+            sb.append('.');
+            pos += len + 1;
+        }
+
+        if (sb.length() == 0)
+            sb.append('.');
+
+        sb.append(':').append(type).append(':').append(dclass);
+        if (dnssecOk)
+            sb.append(":do");
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.logpresso.dnsproxy.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-heap lock stripe of DnsCache: a hash map plus the intrusive entry lists of
+ * an eviction policy, so lookups, inserts and evictions are all O(1) and never
+ * scan other shards. Entries are also kept in a timer wheel by the time they
+ * stop being servable, so expire() only touches entries that are due.
+ * Subclasses are only called with the shard lock held.
+ */
+abstract class CacheShard extends CacheStore {
+
+    // 바이트 기준일 때 빈도 스케치 크기 등을 정하기 위한 항목당 평균 크기 추정치
+    static final int ESTIMATED_ENTRY_BYTES = 512;
+
+    // 항목 가중치의 합 상한: 바이트 기준이면 추정 바이트, 아니면 항목 수
+    protected final long capacity;
+    private final boolean weighted;
+    private final HashMap<CacheKey, CacheEntry> map = new HashMap<>();
+    private final TimerWheel timerWheel = new TimerWheel(System.currentTimeMillis() / 1000);
+    private volatile int size;
+    private volatile long retainedBytes;
+
+    // 잠금 안에서만 갱신
+    private volatile long expiredCount;
+
+    CacheShard(long capacity, boolean weighted) {
+        this.capacity = capacity;
+        this.weighted = weighted;
+    }
+
+    /**
+     * Approximate number of entries the shard holds when full.
+     */
+    protected int getEstimatedEntries() {
+        long entries = weighted ? capacity / ESTIMATED_ENTRY_BYTES : capacity;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, entries));
+    }
+
+    @Override
+    synchronized CacheEntry get(CacheKey key) {
+        CacheEntry entry = map.get(key);
+        recordAccess(key, entry);
+        return entry;
+    }
+
+    @Override
+    synchronized int put(CacheEntry entry, long now, long staleRetentionMs) {
+        int bytes = entry.getRetainedBytes();
+        entry.weight = weighted ? bytes : 1;
+
+        // 샤드 전체보다 큰 항목은 다른 항목을 모두 밀어내므로 저장하지 않음
+        if (entry.weight > capacity)
+            return -1;
+
+        CacheEntry old = map.put(entry.getKey(), entry);
+        retainedBytes += bytes;
+
+        // serve-stale 보관 기간까지 지난 뒤 타이머 휠에서 제거 (초 단위 올림)
+        timerWheel.schedule(entry, (entry.getExpirationTime() + staleRetentionMs + 999) / 1000);
+
+        int evicted = 0;
+        if (old != null) {
+            timerWheel.deschedule(old);
+            retainedBytes -= old.getRetainedBytes();
+            evicted = onReplace(old, entry, now, staleRetentionMs);
+        } else {
+            evicted = onInsert(entry, now, staleRetentionMs);
+        }
+
+        size = map.size();
+        return evicted;
+    }
+
+    @Override
+    synchronized boolean remove(CacheKey key, CacheEntry expected) {
+        if (map.get(key) != expected)
+            return false;
+
+        removeEntry(expected);
+        size = map.size();
+        return true;
+    }
+
+    @Override
+    int recordHit(CacheKey key, CacheEntry entry) {
+        return entry.recordHit();
+    }
+
+    @Override
+    boolean tryStartRefresh(CacheKey key, CacheEntry entry, long now, long intervalMs) {
+        return entry.tryStartRefresh(now, intervalMs);
+    }
+
+    @Override
+    synchronized int expire(long now) {
+        int before = map.size();
+        timerWheel.advance(now / 1000, this::removeEntry);
+
+        int expired = before - map.size();
+        if (expired > 0) {
+            expiredCount += expired;
+            size = map.size();
+        }
+
+        return expired;
+    }
+
+    @Override
+    synchronized List<CacheEntry> copyEntries() {
+        return new ArrayList<>(map.values());
+    }
+
+    @Override
+    synchronized void clear() {
+        map.clear();
+        onClear();
+        timerWheel.clear();
+        size = 0;
+        retainedBytes = 0;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override
+    long getRejectedCount() {
+        return 0;
+    }
+
+    @Override
+    long getExpiredCount() {
+        return expiredCount;
+    }
+
+    protected void removeEntry(CacheEntry entry) {
+        map.remove(entry.getKey());
+        retainedBytes -= entry.getRetainedBytes();
+        timerWheel.deschedule(entry);
+        onRemove(entry);
+    }
+
+    // entry가 null이면 미스
+    protected abstract void recordAccess(CacheKey key, CacheEntry entry);
+
+    protected abstract int onInsert(CacheEntry entry, long now, long staleRetentionMs);
+
+    // 교체된 항목은 가중치가 다를 수 있으므로 용량을 다시 맞춤
+    protected abstract int onReplace(CacheEntry old, CacheEntry entry, long now, long staleRetentionMs);
+
+    protected abstract void onRemove(CacheEntry entry);
+
+    protected abstract void onClear();
+
+    /**
+     * Circular doubly-linked list of entries with a sentinel head, tracking the
+     * sum of entry weights. The first entry is the most recently used one.
+     */
+    static final class EntryList {
+        private final CacheEntry head = new CacheEntry();
+        private long weight;
+
+        void addFirst(CacheEntry entry) {
+            entry.prev = head;
+            entry.next = head.next;
+            head.next.prev = entry;
+            head.next = entry;
+            weight += entry.weight;
+        }
+
+        void remove(CacheEntry entry) {
+            unlink(entry);
+            weight -= entry.weight;
+        }
+
+        void moveToFront(CacheEntry entry) {
+            if (head.next == entry)
+                return;
+
+            unlink(entry);
+            entry.prev = head;
+            entry.next = head.next;
+            head.next.prev = entry;
+            head.next = entry;
+        }
+
+        void replace(CacheEntry old, CacheEntry entry) {
+            entry.prev = old.prev;
+            entry.next = old.next;
+            entry.prev.next = entry;
+            entry.next.prev = entry;
+            old.prev = null;
+            old.next = null;
+            weight += entry.weight - old.weight;
+        }
+
+        CacheEntry last() {
+            return head.prev == head ? null : head.prev;
+        }
+
+        long weight() {
+            return weight;
+        }
+
+        void clear() {
+            head.next = head;
+            head.prev = head;
+            weight = 0;
+        }
+
+        private void unlink(CacheEntry entry) {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+        }
+    }
+
+}
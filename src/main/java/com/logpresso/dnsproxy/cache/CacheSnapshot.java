@@ -0,0 +1,141 @@
+package com.logpresso.dnsproxy.cache;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Predicate;
+
+/**
+ * Binary snapshot of cache entries for warm restarts. Each record holds the
+ * serialized key, the absolute creation and expiration times and the wire
+ * response; TTL offsets are found again on load. The file is written next to
+ * the target, synced and renamed into place, and read back through a memory
+ * map. A damaged tail only drops the records from the first bad one on.
+ */
+class CacheSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    // "DSPC"
+    private static final int MAGIC = 0x44535043;
+    private static final int VERSION = 1;
+
+    private CacheSnapshot() {}
+
+    /**
+     * Writes the entries of all stores that can still be served, fresh or
+     * stale. Returns the number of entries written.
+     */
+    static int write(Path path, CacheStore[] stores, long now, long staleRetentionMs) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // 샤드 잠금은 항목 목록을 복사하는 동안만 잡음
+            for (CacheStore store : stores) {
+                for (CacheEntry entry : store.copyEntries()) {
+                    if (entry.isStaleExpired(now, staleRetentionMs))
+                        continue;
+
+                    byte[] key = entry.getKey().toBytes();
+                    byte[] wire = entry.getWire();
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.writeLong(entry.getCreationTime());
+                    out.writeLong(entry.getExpirationTime());
+                    out.writeInt(wire.length);
+                    out.write(wire);
+                    count++;
+                }
+            }
+
+            // 키 길이 0이 끝 표시
+            out.writeShort(0);
+
+            // rename 전에 내용을 디스크에 내려야 전원 장애 뒤에도 빈 파일이 남지 않음
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Hands every entry that can still be served to the loader, which returns
+     * whether it kept the entry. Returns the number of entries kept. Reading
+     * stops at the first corrupt or truncated record, keeping the entries
+     * before it.
+     */
+    static int read(Path path, long now, long staleRetentionMs, Predicate<CacheEntry> loader) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Cache snapshot too large: " + path + " (" + size + " bytes)");
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IOException("Not a cache snapshot: " + path);
+
+            int count = 0;
+            int records = 0;
+            try {
+                while (true) {
+                    int keyLength = buf.getShort() & 0xffff;
+                    if (keyLength == 0)
+                        return count;
+
+                    byte[] keyBytes = new byte[keyLength];
+                    buf.get(keyBytes);
+                    long creationTime = buf.getLong();
+                    long expirationTime = buf.getLong();
+                    int wireLength = buf.getInt();
+                    if (wireLength < 0 || wireLength > buf.remaining())
+                        break;
+
+                    byte[] wire = new byte[wireLength];
+                    buf.get(wire);
+
+                    CacheKey key = CacheKey.fromBytes(keyBytes);
+                    int[] ttlOffsets = DnsWire.findTtlOffsets(wire);
+                    if (key == null || ttlOffsets == null)
+                        break;
+
+                    records++;
+                    CacheEntry entry = new CacheEntry(key, wire, ttlOffsets, creationTime, expirationTime, 0);
+                    if (!entry.isStaleExpired(now, staleRetentionMs) && loader.test(entry))
+                        count++;
+                }
+            } catch (BufferUnderflowException e) {
+                // 끝 표시 전에 파일이 끝남
+            }
+
+            logger.warn("logpresso dnsproxy: Corrupt cache snapshot {}, kept {} entries from the first {} records",
+                    path, count, records);
+            return count;
+        }
+    }
+
+}
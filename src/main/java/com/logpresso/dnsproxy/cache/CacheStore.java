@@ -0,0 +1,50 @@
+package com.logpresso.dnsproxy.cache;
+
+import java.util.List;
+
+/**
+ * Storage behind one DnsCache shard. Implementations are thread-safe. Entries
+ * returned by get() may be transient copies, so per-entry state is updated
+ * through the store rather than on the entry itself.
+ */
+abstract class CacheStore {
+
+    abstract CacheEntry get(CacheKey key);
+
+    /**
+     * Inserts or replaces the entry for its key. Returns the number of entries
+     * evicted to make room, or -1 if the entry was not cached.
+     */
+    abstract int put(CacheEntry entry, long now, long staleRetentionMs);
+
+    /**
+     * Removes the entry for the key if it is still the one returned by get().
+     */
+    abstract boolean remove(CacheKey key, CacheEntry expected);
+
+    abstract int recordHit(CacheKey key, CacheEntry entry);
+
+    abstract boolean tryStartRefresh(CacheKey key, CacheEntry entry, long now, long intervalMs);
+
+    /**
+     * Removes entries whose TTL and serve-stale retention passed. Returns the
+     * number removed.
+     */
+    abstract int expire(long now);
+
+    /**
+     * Copies the entries currently held, for writing a snapshot.
+     */
+    abstract List<CacheEntry> copyEntries();
+
+    abstract void clear();
+
+    abstract int size();
+
+    abstract long getRetainedBytes();
+
+    abstract long getRejectedCount();
+
+    abstract long getExpiredCount();
+
+}
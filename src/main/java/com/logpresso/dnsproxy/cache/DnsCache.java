@@ -1,224 +1,457 @@
 package com.logpresso.dnsproxy.cache;
 
+import com.logpresso.dnsproxy.config.ResolvedConfig;
+import com.logpresso.dnsproxy.wire.DnsWire;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
-
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import org.xbill.DNS.TextParseException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Response cache split into lock-striped shards. Each shard runs its own
+ * eviction policy (LRU or W-TinyLFU), so a put evicts at most a few entries of
+ * one shard in O(1) instead of scanning the whole cache. Capacity is an entry
+ * count, or an estimate of retained heap bytes when CacheMaxBytes= is set.
+ * With CacheStorage=offheap the shards keep responses in direct memory slabs
+ * instead, under the same get/put contract.
+ */
 public class DnsCache {
 
     private static final Logger logger = LoggerFactory.getLogger(DnsCache.class);
 
     private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // SOA가 없는 NXDOMAIN의 TTL, 네거티브 TTL 상한 기본값
     private static final long NEGATIVE_CACHE_TTL_SECONDS = 30;
-    private static final int EVICTION_BATCH_SIZE = 100;
-    private static final long TTL_ADJUSTMENT_INTERVAL_MS = 1000; // 1초마다 TTL 재조정
+    private static final long DEFAULT_NEGATIVE_MAX_TTL_SECONDS = 3600;
+
+    // 샤드당 최소 항목 수: 작은 캐시는 샤드를 줄여 LRU 순서가 전역에 가깝게 유지되도록 함
+    private static final int MIN_SHARD_CAPACITY = 64;
+    private static final int MAX_SHARDS = 256;
+
+    public static final String POLICY_LRU = "lru";
+    public static final String POLICY_TINYLFU = "tinylfu";
+    public static final String POLICY_CLOCK = "clock";
+
+    public static final String STORAGE_HEAP = "heap";
+    public static final String STORAGE_OFFHEAP = "offheap";
+
+    // off-heap 샤드당 최소 슬랩 수: 크기 클래스별로 슬랩을 나눠 쓸 여유
+    private static final int MIN_SLABS_PER_SHARD = 8;
 
-    private final int maxEntries;
-    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
-    private final AtomicInteger evictionCounter = new AtomicInteger(0);
+    // RFC 8767 권장값: stale 응답의 TTL, 갱신 실패 시 재시도 간격
+    private static final long STALE_ANSWER_TTL_SECONDS = 30;
+    private static final long STALE_REFRESH_INTERVAL_MS = 30000;
+    private static final long PREFETCH_RETRY_INTERVAL_MS = 5000;
+
+    private final long staleRetentionMs;
+    private final int prefetchThresholdPercent;
+    private final int prefetchMinHits;
+    private final long negativeMinTtlSeconds;
+    private final long negativeMaxTtlSeconds;
+    private final String policy;
+    private final String storage;
+    private final long maxBytes;
+    private final CacheStore[] shards;
+    private final int shardShift;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong staleHitCount = new AtomicLong(0);
+    private final AtomicLong prefetchCount = new AtomicLong(0);
+
+    private volatile Consumer<CacheKey> refresher;
 
     public DnsCache() {
         this(DEFAULT_MAX_ENTRIES);
     }
 
     public DnsCache(int maxEntries) {
-        this.maxEntries = maxEntries;
+        this(maxEntries, null);
+    }
+
+    public DnsCache(ResolvedConfig config) {
+        this(DEFAULT_MAX_ENTRIES, config);
+    }
+
+    private DnsCache(int maxEntries, ResolvedConfig config) {
+        this.staleRetentionMs = config != null ? config.getStaleRetentionSec() * 1000 : 0;
+        this.prefetchThresholdPercent = config != null ? config.getPrefetchThreshold() : 0;
+        this.prefetchMinHits = config != null ? config.getPrefetchMinHits() : 0;
+        this.negativeMinTtlSeconds = config != null ? config.getNegativeCacheMinTtlSec() : 0;
+        this.negativeMaxTtlSeconds = Math.max(negativeMinTtlSeconds,
+                config != null ? config.getNegativeCacheMaxTtlSec() : DEFAULT_NEGATIVE_MAX_TTL_SECONDS);
+
+        // CacheMaxBytes가 있으면 항목 수 대신 추정 바이트로 용량을 제한
+        long maxBytes = config != null ? config.getCacheMaxBytes() : 0;
+        boolean offHeap = config != null && STORAGE_OFFHEAP.equals(config.getCacheStorage());
+        boolean weighted = maxBytes > 0 || offHeap;
+        if (offHeap && maxBytes <= 0)
+            maxBytes = (long) maxEntries * CacheShard.ESTIMATED_ENTRY_BYTES;
+
+        long maxWeight = weighted ? maxBytes : maxEntries;
+        this.maxBytes = maxBytes;
+        this.storage = offHeap ? STORAGE_OFFHEAP : STORAGE_HEAP;
+
+        int estimatedEntries = (int) Math.min(Integer.MAX_VALUE, weighted ? maxBytes / CacheShard.ESTIMATED_ENTRY_BYTES : maxEntries);
+        int shardCount = getShardCount(estimatedEntries, config != null ? config.getCacheShards() : 0);
+        if (offHeap)
+            shardCount = Math.min(shardCount, Integer.highestOneBit((int) Math.max(1,
+                    Math.min(MAX_SHARDS, maxBytes / ((long) MIN_SLABS_PER_SHARD * OffHeapCacheShard.SLAB_SIZE)))));
+
+        long capacity = (maxWeight + shardCount - 1) / shardCount;
+        if (offHeap)
+            this.policy = POLICY_CLOCK;
+        else
+            this.policy = config != null && POLICY_TINYLFU.equals(config.getCachePolicy()) ? POLICY_TINYLFU : POLICY_LRU;
+
+        this.shards = new CacheStore[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            if (offHeap)
+                shards[i] = new OffHeapCacheShard(capacity);
+            else if (policy.equals(POLICY_TINYLFU))
+                shards[i] = new TinyLfuCacheShard(capacity, weighted);
+            else
+                shards[i] = new LruCacheShard(capacity, weighted);
+        }
+
+        this.shardShift = 32 - Integer.numberOfTrailingZeros(shardCount);
+    }
+
+    static int getShardCount(int maxEntries, int configured) {
+        int count = configured > 0 ? configured : Runtime.getRuntime().availableProcessors() * 2;
+        count = Math.min(count, Math.max(1, maxEntries / MIN_SHARD_CAPACITY));
+        count = Math.min(count, MAX_SHARDS);
+
+        // 2의 거듭제곱으로 내림
+        return Integer.highestOneBit(Math.max(1, count));
+    }
+
+    /**
+     * Sets the callback used to re-resolve a key in the background, e.g. when a
+     * stale answer was served or a hot entry is about to expire. The callback
+     * must not block.
+     */
+    public void setRefresher(Consumer<CacheKey> refresher) {
+        this.refresher = refresher;
     }
 
     public Message get(String qname, int qtype, int qclass) {
-        String key = buildKey(qname, qtype, qclass);
-        CacheEntry entry = cache.get(key);
+        CacheKey key = buildKey(qname, qtype, qclass);
+        if (key == null)
+            return null;
 
-        if (entry == null)
+        byte[] wire = getWire(key);
+        if (wire == null)
             return null;
 
-        if (entry.isExpired()) {
-            cache.remove(key, entry);
-            if (logger.isDebugEnabled())
-                logger.debug("logpresso dnsproxy: Cache entry expired: {}", key);
+        try {
+            return new Message(wire);
+        } catch (IOException e) {
+            logger.warn("logpresso dnsproxy: Failed to decode cached response: {}", key, e);
+            return null;
+        }
+    }
 
+    /**
+     * Returns a private copy of the cached response in wire format with TTLs
+     * adjusted, or null on a miss. The caller is free to patch the copy.
+     */
+    public byte[] getWire(CacheKey key) {
+        CacheStore shard = shardFor(key);
+        CacheEntry entry = shard.get(key);
+
+        if (entry == null) {
+            missCount.incrementAndGet();
             return null;
         }
 
+        long now = System.currentTimeMillis();
+
+        if (!entry.isExpired(now)) {
+            hitCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Cache hit: {}", key);
+
+            int hits = shard.recordHit(key, entry);
+            if (prefetchThresholdPercent > 0 && hits >= prefetchMinHits && entry.isNearExpiry(now, prefetchThresholdPercent))
+                prefetch(shard, key, entry, now);
+
+            return entry.getAdjustedWire(now);
+        }
+
+        if (!entry.isStaleExpired(now, staleRetentionMs)) {
+            // serve-stale (RFC 8767): 만료된 응답을 바로 돌려주고 백그라운드에서 갱신
+            staleHitCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Serving stale cache entry: {}", key);
+
+            Consumer<CacheKey> callback = refresher;
+            if (callback != null && shard.tryStartRefresh(key, entry, now, STALE_REFRESH_INTERVAL_MS))
+                callback.accept(key);
+
+            return entry.getStaleWire(STALE_ANSWER_TTL_SECONDS);
+        }
+
+        shard.remove(key, entry);
+        missCount.incrementAndGet();
+        if (logger.isDebugEnabled())
+            logger.debug("logpresso dnsproxy: Cache entry expired: {}", key);
+
+        return null;
+    }
+
+    private void prefetch(CacheStore shard, CacheKey key, CacheEntry entry, long now) {
+        // TTL 만료 직전의 자주 쓰이는 항목을 미리 갱신하여 만료 시 미스를 없앰
+        Consumer<CacheKey> callback = refresher;
+        if (callback == null || !shard.tryStartRefresh(key, entry, now, PREFETCH_RETRY_INTERVAL_MS))
+            return;
+
+        prefetchCount.incrementAndGet();
         if (logger.isDebugEnabled())
-            logger.debug("logpresso dnsproxy: Cache hit: {}", key);
+            logger.debug("logpresso dnsproxy: Prefetching cache entry: {}", key);
 
-        return entry.getAdjustedMessage();
+        callback.accept(key);
     }
 
     public void put(String qname, int qtype, int qclass, Message message, boolean isNxDomain) {
-        String key = buildKey(qname, qtype, qclass);
-        long ttlSeconds;
-
-        if (isNxDomain) {
-            ttlSeconds = NEGATIVE_CACHE_TTL_SECONDS;
-        } else {
-            ttlSeconds = getMinTtl(message);
-            if (ttlSeconds <= 0) {
-                if (logger.isDebugEnabled())
-                    logger.debug("logpresso dnsproxy: Not caching response with TTL <= 0: {}", key);
-
-                return;
-            }
+        CacheKey key = buildKey(qname, qtype, qclass);
+        if (key != null)
+            put(key, message, isNxDomain);
+    }
+
+    /**
+     * Caches a response. NXDOMAIN and NODATA (NOERROR without answers) are
+     * cached as negative answers for the TTL of the authority SOA (RFC 2308).
+     */
+    public void put(CacheKey key, Message message, boolean isNxDomain) {
+        boolean negative = isNxDomain || isNoData(message);
+        long ttlSeconds = negative ? getNegativeTtl(message, isNxDomain) : getMinTtl(message);
+        if (ttlSeconds <= 0) {
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Not caching response with TTL <= 0: {}", key);
+
+            return;
         }
 
-        if (evictionCounter.incrementAndGet() % EVICTION_BATCH_SIZE == 0)
-            evictExpiredEntries();
+        byte[] wire = message.toWire();
+        int[] ttlOffsets = DnsWire.findTtlOffsets(wire);
+        if (ttlOffsets == null) {
+            logger.warn("logpresso dnsproxy: Not caching malformed response: {}", key);
+            return;
+        }
 
-        if (cache.size() >= maxEntries)
-            evictExpiredEntries();
+        // RFC 2308 5절: 캐시에서 내보내는 SOA 등의 TTL이 네거티브 TTL을 넘지 않도록 함
+        if (negative) {
+            for (int offset : ttlOffsets)
+                DnsWire.putInt(wire, offset, Math.min(ttlSeconds, DnsWire.getUnsignedInt(wire, offset)));
+        }
 
-        if (cache.size() >= maxEntries)
-            evictOldestEntries();
+        CacheEntry entry = new CacheEntry(key, wire, ttlOffsets, ttlSeconds);
+        int evicted = shardFor(key).put(entry, System.currentTimeMillis(), staleRetentionMs);
+        if (evicted < 0) {
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Not caching response that does not fit in cache shard: {} ({} bytes)", key, wire.length);
 
-        CacheEntry entry = new CacheEntry(message, ttlSeconds);
-        cache.put(key, entry);
+            return;
+        }
 
-        if (logger.isDebugEnabled())
+        if (logger.isDebugEnabled()) {
             logger.debug("logpresso dnsproxy: Cached response: {} (TTL: {}s)", key, ttlSeconds);
+            if (evicted > 0)
+                logger.debug("logpresso dnsproxy: Evicted {} cache entries", evicted);
+        }
+    }
+
+    /**
+     * Advances the expiry timer wheels of all shards and drops entries whose
+     * TTL and serve-stale retention passed. Meant to be called once a second;
+     * the cost is proportional to the number of entries that expire.
+     */
+    public int expire() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (CacheStore shard : shards)
+            expired += shard.expire(now);
+
+        if (expired > 0 && logger.isDebugEnabled())
+            logger.debug("logpresso dnsproxy: Expired {} cache entries", expired);
+
+        return expired;
+    }
+
+    /**
+     * Writes the entries that can still be served to a snapshot file, keeping
+     * their absolute expiration times. Returns the number of entries written.
+     */
+    public int saveSnapshot(Path path) throws IOException {
+        return CacheSnapshot.write(path, shards, System.currentTimeMillis(), staleRetentionMs);
+    }
+
+    /**
+     * Loads the entries of a snapshot file that did not expire (including the
+     * serve-stale retention) in the meantime. Returns the number of entries loaded.
+     */
+    public int loadSnapshot(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        return CacheSnapshot.read(path, now, staleRetentionMs,
+                entry -> shardFor(entry.getKey()).put(entry, now, staleRetentionMs) >= 0);
     }
 
     public void clear() {
-        cache.clear();
+        for (CacheStore shard : shards)
+            shard.clear();
+
         logger.info("logpresso dnsproxy: Cache cleared");
     }
 
     public int size() {
-        return cache.size();
+        int size = 0;
+        for (CacheStore shard : shards)
+            size += shard.size();
+
+        return size;
     }
 
-    private String buildKey(String qname, int qtype, int qclass) {
-        return qname.toLowerCase() + ":" + qtype + ":" + qclass;
+    public int getShardCount() {
+        return shards.length;
     }
 
-    private long getMinTtl(Message message) {
-        long minTtl = Long.MAX_VALUE;
+    /**
+     * Estimated heap bytes retained by cached responses, keys and bookkeeping.
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (CacheStore shard : shards)
+            bytes += shard.getRetainedBytes();
 
-        for (int section : new int[]{Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL}) {
-            for (Record record : message.getSection(section)) {
-                long ttl = record.getTTL();
-                if (ttl < minTtl)
-                    minTtl = ttl;
-            }
-        }
+        return bytes;
+    }
 
-        return minTtl == Long.MAX_VALUE ? 0 : minTtl;
+    /**
+     * Byte budget from CacheMaxBytes=, or 0 if the cache is bounded by entry count.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
     }
 
-    private void evictExpiredEntries() {
-        int evicted = 0;
-        Iterator<Map.Entry<String, CacheEntry>> iterator = cache.entrySet().iterator();
+    public String getStorage() {
+        return storage;
+    }
 
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheEntry> entry = iterator.next();
-            if (entry.getValue().isExpired()) {
-                iterator.remove();
-                evicted++;
-            }
-        }
+    public String getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Number of new entries the W-TinyLFU admission filter dropped in favor of
+     * more frequently used ones. Always 0 with the LRU policy.
+     */
+    public long getRejectedCount() {
+        long count = 0;
+        for (CacheStore shard : shards)
+            count += shard.getRejectedCount();
 
-        if (evicted > 0 && logger.isDebugEnabled())
-            logger.debug("logpresso dnsproxy: Evicted {} expired cache entries", evicted);
+        return count;
     }
 
-    private void evictOldestEntries() {
-        int targetEviction = Math.max(1, maxEntries / 10);
-        int evicted = 0;
+    public long getExpiredCount() {
+        long count = 0;
+        for (CacheStore shard : shards)
+            count += shard.getExpiredCount();
 
-        List<Map.Entry<String, CacheEntry>> entries = new ArrayList<>(cache.entrySet());
-        entries.sort(Comparator.comparingLong(a -> a.getValue().getCreationTime()));
+        return count;
+    }
 
-        for (Map.Entry<String, CacheEntry> entry : entries) {
-            if (evicted >= targetEviction)
-                break;
+    /**
+     * Fresh and stale hits over all lookups, in percent.
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get() + staleHitCount.get();
+        long total = hits + missCount.get();
+        return total > 0 ? (double) hits / total * 100 : 0;
+    }
 
-            cache.remove(entry.getKey(), entry.getValue());
-            evicted++;
-        }
+    public long getHitCount() {
+        return hitCount.get();
+    }
 
-        if (evicted > 0 && logger.isDebugEnabled())
-            logger.debug("logpresso dnsproxy: Evicted {} oldest cache entries", evicted);
+    public long getMissCount() {
+        return missCount.get();
     }
 
-    private static class CacheEntry {
-        private final Message originalMessage;
-        private final long creationTime;
-        private final long expirationTime;
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
 
-        // TTL 조정 캐싱
-        private volatile Message cachedAdjustedMessage;
-        private volatile long lastAdjustmentTime;
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
 
-        CacheEntry(Message message, long ttlSeconds) {
-            this.originalMessage = message;
-            this.creationTime = System.currentTimeMillis();
-            this.expirationTime = creationTime + (ttlSeconds * 1000);
-            this.lastAdjustmentTime = 0;
+    private CacheKey buildKey(String qname, int qtype, int qclass) {
+        try {
+            return CacheKey.of(Name.fromString(qname, Name.root), qtype, qclass);
+        } catch (TextParseException e) {
+            logger.warn("logpresso dnsproxy: Invalid cache key name: {}", qname);
+            return null;
         }
+    }
 
-        boolean isExpired() {
-            return System.currentTimeMillis() > expirationTime;
-        }
+    private boolean isNoData(Message message) {
+        return message.getHeader().getRcode() == Rcode.NOERROR
+                && !message.getHeader().getFlag(Flags.TC)
+                && message.getSection(Section.ANSWER).isEmpty();
+    }
 
-        long getCreationTime() {
-            return creationTime;
+    /**
+     * Negative TTL from the authority SOA: the smaller of its TTL and MINIMUM
+     * field, clamped to the configured range (RFC 2308 section 5). Without a
+     * SOA, NXDOMAIN gets a fixed TTL and NODATA is not cached.
+     */
+    private long getNegativeTtl(Message message, boolean isNxDomain) {
+        for (Record record : message.getSection(Section.AUTHORITY)) {
+            if (record instanceof SOARecord)
+                return clampNegativeTtl(Math.min(record.getTTL(), ((SOARecord) record).getMinimum()));
         }
 
-        Message getAdjustedMessage() {
-            long now = System.currentTimeMillis();
+        return isNxDomain ? clampNegativeTtl(NEGATIVE_CACHE_TTL_SECONDS) : 0;
+    }
 
-            // 1초 이내에 조정된 캐시가 있으면 재사용
-            if (cachedAdjustedMessage != null && (now - lastAdjustmentTime) < TTL_ADJUSTMENT_INTERVAL_MS)
-                return cachedAdjustedMessage;
+    private long clampNegativeTtl(long ttl) {
+        return Math.min(Math.max(ttl, negativeMinTtlSeconds), negativeMaxTtlSeconds);
+    }
 
-            Message adjusted = adjustTtl(now);
-            cachedAdjustedMessage = adjusted;
-            lastAdjustmentTime = now;
+    private long getMinTtl(Message message) {
+        long minTtl = Long.MAX_VALUE;
 
-            return adjusted;
+        for (int section : new int[]{Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL}) {
+            for (Record record : message.getSection(section)) {
+                long ttl = record.getTTL();
+                if (ttl < minTtl)
+                    minTtl = ttl;
+            }
         }
 
-        private Message adjustTtl(long now) {
-            long elapsedSeconds = (now - creationTime) / 1000;
-
-            Message adjusted = originalMessage.clone();
-
-            for (int section : new int[]{Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL}) {
-                List<Record> records = adjusted.getSection(section);
-                if (records == null || records.isEmpty())
-                    continue;
-
-                List<Record> adjustedRecords = new ArrayList<>();
-                for (Record record : records) {
-                    long newTtl = Math.max(0, record.getTTL() - elapsedSeconds);
-                    Record adjustedRecord = Record.newRecord(
-                            record.getName(),
-                            record.getType(),
-                            record.getDClass(),
-                            newTtl,
-                            record.rdataToWireCanonical()
-                    );
-                    adjustedRecords.add(adjustedRecord);
-                }
-
-                adjusted.removeAllRecords(section);
-                for (Record record : adjustedRecords) {
-                    adjusted.addRecord(record, section);
-                }
-            }
+        return minTtl == Long.MAX_VALUE ? 0 : minTtl;
+    }
 
-            return adjusted;
-        }
+    private CacheStore shardFor(CacheKey key) {
+        if (shards.length == 1)
+            return shards[0];
+
+        // 샤드 안의 HashMap이 하위 비트를 쓰므로 샤드 선택은 곱셈 해시의 상위 비트로 함
+        return shards[(key.hashCode() * 0x9E3779B9) >>> shardShift];
     }
 
 }
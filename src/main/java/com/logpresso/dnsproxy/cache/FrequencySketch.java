@@ -0,0 +1,81 @@
+package com.logpresso.dnsproxy.cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key was seen
+ * recently. All counters are halved once the number of increments reaches ten
+ * times the capacity, so old popularity fades out. Not thread-safe.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    // long 하나에 카운터 16개
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int size = Integer.highestOneBit(Math.max(8, capacity - 1)) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * Math.max(1, capacity);
+    }
+
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long count = (table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xf;
+            frequency = Math.min(frequency, (int) count);
+        }
+
+        return frequency;
+    }
+
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++)
+            added |= incrementAt(indexOf(hash, i), offsetOf(hash, i));
+
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) == mask)
+            return false;
+
+        table[index] += 1L << offset;
+        return true;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int offsetOf(int hash, int i) {
+        return ((hash >>> (i << 3)) & 0xf) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.logpresso.dnsproxy.cache;
+
+/**
+ * Shard evicting the least recently used entry, preferring stale-expired
+ * entries at the LRU end.
+ */
+class LruCacheShard extends CacheShard {
+
+    // 꼬리에서 확인하는 만료 항목 수 (put 한 번당)
+    private static final int EXPIRED_SCAN_LIMIT = 2;
+
+    private final EntryList lru = new EntryList();
+
+    LruCacheShard(long capacity, boolean weighted) {
+        super(capacity, weighted);
+    }
+
+    @Override
+    protected void recordAccess(CacheKey key, CacheEntry entry) {
+        if (entry != null)
+            lru.moveToFront(entry);
+    }
+
+    @Override
+    protected int onInsert(CacheEntry entry, long now, long staleRetentionMs) {
+        lru.addFirst(entry);
+
+        int evicted = 0;
+        for (int i = 0; i < EXPIRED_SCAN_LIMIT; i++) {
+            CacheEntry eldest = lru.last();
+            if (eldest == entry || !eldest.isStaleExpired(now, staleRetentionMs))
+                break;
+
+            removeEntry(eldest);
+            evicted++;
+        }
+
+        return evicted + evictOverflow();
+    }
+
+    @Override
+    protected int onReplace(CacheEntry old, CacheEntry entry, long now, long staleRetentionMs) {
+        lru.replace(old, entry);
+        lru.moveToFront(entry);
+        return evictOverflow();
+    }
+
+    private int evictOverflow() {
+        int evicted = 0;
+        while (lru.weight() > capacity) {
+            removeEntry(lru.last());
+            evicted++;
+        }
+
+        return evicted;
+    }
+
+    @Override
+    protected void onRemove(CacheEntry entry) {
+        lru.remove(entry);
+    }
+
+    @Override
+    protected void onClear() {
+        lru.clear();
+    }
+
+}
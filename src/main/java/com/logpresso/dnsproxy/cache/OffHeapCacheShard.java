@@ -0,0 +1,665 @@
+package com.logpresso.dnsproxy.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache shard keeping responses outside the Java heap. Records (times, key,
+ * TTL offsets and wire response) live in power-of-two chunks carved from
+ * 128KB direct memory slabs; the index is an open-addressing table of
+ * primitive arrays holding only a 64-bit hash of the question and the record
+ * address, so cached responses add no objects for the garbage collector to
+ * trace. Eviction is CLOCK (second chance) over the chunks of the size class
+ * being allocated, and a class without slabs drains the least used slab of
+ * another class a few records per insert. Expiry is an incremental sweep of
+ * the index.
+ */
+class OffHeapCacheShard extends CacheStore {
+
+    static final int SLAB_SHIFT = 17;
+    static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+
+    // 청크 크기 클래스: 64B ~ 128KB
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int CLASS_COUNT = SLAB_SHIFT - MIN_CHUNK_SHIFT + 1;
+
+    // 레코드 헤더: 키 길이, TTL 위치 수, wire 길이, 생성/만료/제거 기한/갱신 시각, 히트 수, 키 해시
+    // 빈 청크는 wire 길이가 -1 (앞 4바이트는 빈 청크 목록에 씀)
+    private static final int KEY_LENGTH = 0;
+    private static final int TTL_COUNT = 2;
+    private static final int WIRE_LENGTH = 4;
+    private static final int CREATION_TIME = 8;
+    private static final int EXPIRATION_TIME = 16;
+    private static final int DEADLINE = 24;
+    private static final int REFRESH_TIME = 32;
+    private static final int HITS = 40;
+    private static final int HASH = 44;
+    private static final int RECORD_HEADER = 52;
+
+    // 레코드 평균 크기 추정치와 인덱스 최대 사용률
+    private static final int ESTIMATED_RECORD_BYTES = 128;
+    private static final int MAX_LOAD_PERCENT = 50;
+    private static final int MIN_EXPIRE_SCAN_SLOTS = 1024;
+
+    // 삽입 한 번에 제거하는 항목 수와 CLOCK이 살펴보는 청크 수의 상한
+    static final int MAX_EVICTIONS_PER_PUT = 16;
+    private static final int MAX_CLOCK_STEPS = 256;
+
+    private final int slabCount;
+    private final ByteBuffer[] slabs;
+    private final int[] slabClass;
+    private final int[] slabUsed;
+    private final int[] slabFree;
+    private final int[] slabBump;
+    private final int[] slabNext;
+    private final int[] slabPrev;
+    private final boolean[] slabPartial;
+    private final int[] partialHead = new int[CLASS_COUNT];
+    private final int[] classUsed = new int[CLASS_COUNT];
+    private final int[] classHandSlab = new int[CLASS_COUNT];
+    private final int[] classHandOffset = new int[CLASS_COUNT];
+    private int freeSlabHead;
+    // 다른 크기 클래스에 넘겨주려고 비우는 중인 슬랩 (-1이면 없음)
+    private int drainingSlab;
+
+    // 인덱스: 슬롯별 배열, hash 0은 빈 슬롯
+    private final long[] hashes;
+    private final int[] addresses;
+    private final boolean[] referenced;
+    private final int mask;
+    private final int maxEntries;
+    private final int expireScanSlots;
+    private int count;
+    private int clockHand;
+    private int expireHand;
+    private long usedBytes;
+
+    private volatile int size;
+    private volatile long retainedBytes;
+    private volatile long expiredCount;
+
+    OffHeapCacheShard(long capacityBytes) {
+        this.slabCount = (int) Math.max(1, Math.min(1 << (31 - SLAB_SHIFT), capacityBytes / SLAB_SIZE));
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabClass = new int[slabCount];
+        this.slabUsed = new int[slabCount];
+        this.slabFree = new int[slabCount];
+        this.slabBump = new int[slabCount];
+        this.slabNext = new int[slabCount];
+        this.slabPrev = new int[slabCount];
+        this.slabPartial = new boolean[slabCount];
+
+        long arenaBytes = (long) slabCount * SLAB_SIZE;
+        this.maxEntries = (int) Math.min(1 << 28, Math.max(16, arenaBytes / ESTIMATED_RECORD_BYTES));
+        int slots = Integer.highestOneBit((int) Math.min(1 << 30, (long) maxEntries * 100 / MAX_LOAD_PERCENT - 1)) << 1;
+        this.hashes = new long[slots];
+        this.addresses = new int[slots];
+        this.referenced = new boolean[slots];
+        this.mask = slots - 1;
+        this.expireScanSlots = Math.max(MIN_EXPIRE_SCAN_SLOTS, slots >>> 4);
+
+        resetSlabs();
+    }
+
+    @Override
+    synchronized CacheEntry get(CacheKey key) {
+        int slot = find(key.toBytes());
+        if (slot < 0)
+            return null;
+
+        referenced[slot] = true;
+        return readEntry(addresses[slot], key);
+    }
+
+    @Override
+    synchronized int put(CacheEntry entry, long now, long staleRetentionMs) {
+        byte[] keyBytes = entry.getKey().toBytes();
+        byte[] wire = entry.getWire();
+        int[] ttlOffsets = entry.getTtlOffsets();
+        int cls = classOf(RECORD_HEADER + keyBytes.length + ttlOffsets.length * 2 + wire.length);
+        if (cls < 0)
+            return -1;
+
+        long hash = hash64(keyBytes);
+        int old = find(hash, keyBytes);
+        int evicted = 0;
+        int address;
+        if (old >= 0 && slabClass[addresses[old] >>> SLAB_SHIFT] == cls) {
+            // 같은 크기 클래스면 기존 청크에 덮어씀
+            address = addresses[old];
+        } else {
+            if (old < 0 && count >= maxEntries && evictOne(now))
+                evicted++;
+
+            // 제거 수에 상한을 두고, 그 안에 공간을 만들지 못하면 저장하지 않음 (기존 레코드는 유지)
+            while ((address = allocate(cls)) < 0) {
+                int limit = MAX_EVICTIONS_PER_PUT - evicted;
+                int n = 0;
+                if (limit > 0 && classUsed[cls] == 0) {
+                    n = drainSlab(limit);
+                } else if (limit > 0 && (n = evictFromClass(cls, now, false)) == 0 && isDraining(cls)) {
+                    // 이 클래스의 레코드가 비우는 중인 슬랩에만 있으면 거기서 하나를 밀어내고 그 청크를 다시 씀
+                    int slab = drainingSlab;
+                    n = evictFromClass(cls, now, true);
+                    if (n > 0 && slab == drainingSlab) {
+                        address = allocateFrom(slab);
+                        evicted++;
+                        break;
+                    }
+                }
+
+                if (n == 0) {
+                    updateStats();
+                    return -1;
+                }
+
+                evicted += n;
+            }
+
+            // 제거 중에 기존 레코드가 밀려났거나 슬롯이 옮겨졌을 수 있음
+            old = find(hash, keyBytes);
+        }
+
+        ByteBuffer buf = slabOf(address);
+        int offset = offsetOf(address);
+        buf.putShort(offset + KEY_LENGTH, (short) keyBytes.length);
+        buf.putShort(offset + TTL_COUNT, (short) ttlOffsets.length);
+        buf.putInt(offset + WIRE_LENGTH, wire.length);
+        buf.putLong(offset + CREATION_TIME, entry.getCreationTime());
+        buf.putLong(offset + EXPIRATION_TIME, entry.getExpirationTime());
+        buf.putLong(offset + DEADLINE, entry.getExpirationTime() + staleRetentionMs);
+        buf.putLong(offset + REFRESH_TIME, 0);
+        buf.putInt(offset + HITS, 0);
+        buf.putLong(offset + HASH, hash);
+        buf.position(offset + RECORD_HEADER);
+        buf.put(keyBytes);
+        for (int ttlOffset : ttlOffsets)
+            buf.putShort((short) ttlOffset);
+        buf.put(wire);
+
+        if (old >= 0) {
+            // 새 레코드를 다 쓴 뒤에 기존 레코드를 교체
+            if (addresses[old] != address)
+                release(addresses[old]);
+
+            addresses[old] = address;
+            referenced[old] = false;
+        } else {
+            int slot = (int) hash & mask;
+            while (hashes[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            hashes[slot] = hash;
+            addresses[slot] = address;
+            referenced[slot] = false;
+            count++;
+        }
+
+        updateStats();
+        return evicted;
+    }
+
+    @Override
+    synchronized boolean remove(CacheKey key, CacheEntry expected) {
+        int slot = findCurrent(key, expected);
+        if (slot < 0)
+            return false;
+
+        removeSlot(slot);
+        updateStats();
+        return true;
+    }
+
+    @Override
+    synchronized int recordHit(CacheKey key, CacheEntry entry) {
+        int slot = findCurrent(key, entry);
+        if (slot < 0)
+            return entry.recordHit();
+
+        ByteBuffer buf = slabOf(addresses[slot]);
+        int offset = offsetOf(addresses[slot]) + HITS;
+        int hits = buf.getInt(offset) + 1;
+        buf.putInt(offset, hits);
+        return hits;
+    }
+
+    @Override
+    synchronized boolean tryStartRefresh(CacheKey key, CacheEntry entry, long now, long intervalMs) {
+        int slot = findCurrent(key, entry);
+        if (slot < 0)
+            return entry.tryStartRefresh(now, intervalMs);
+
+        ByteBuffer buf = slabOf(addresses[slot]);
+        int offset = offsetOf(addresses[slot]) + REFRESH_TIME;
+        if (now - buf.getLong(offset) < intervalMs)
+            return false;
+
+        buf.putLong(offset, now);
+        return true;
+    }
+
+    @Override
+    synchronized int expire(long now) {
+        int expired = 0;
+        int slot = expireHand;
+        for (int scanned = 0; scanned < expireScanSlots && count > 0; ) {
+            // 제거하면 뒤의 항목이 이 슬롯으로 당겨질 수 있으므로 같은 슬롯을 다시 확인
+            if (hashes[slot] != 0 && isDead(slot, now)) {
+                removeSlot(slot);
+                expired++;
+                continue;
+            }
+
+            slot = (slot + 1) & mask;
+            scanned++;
+        }
+
+        expireHand = slot;
+        if (expired > 0) {
+            expiredCount += expired;
+            updateStats();
+        }
+
+        return expired;
+    }
+
+    @Override
+    synchronized List<CacheEntry> copyEntries() {
+        List<CacheEntry> entries = new ArrayList<>(count);
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0)
+                entries.add(readEntry(addresses[slot], null));
+        }
+
+        return entries;
+    }
+
+    @Override
+    synchronized void clear() {
+        Arrays.fill(hashes, 0);
+        count = 0;
+        usedBytes = 0;
+        resetSlabs();
+        updateStats();
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override
+    long getRejectedCount() {
+        return 0;
+    }
+
+    @Override
+    long getExpiredCount() {
+        return expiredCount;
+    }
+
+    // 항목 수 한도에 걸렸을 때 크기 클래스와 무관하게 인덱스 CLOCK으로 하나를 제거
+    private boolean evictOne(long now) {
+        for (int n = 0; n < 2 * hashes.length && count > 0; n++) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) & mask;
+            if (hashes[slot] == 0)
+                continue;
+
+            if (referenced[slot] && !isDead(slot, now)) {
+                referenced[slot] = false;
+                continue;
+            }
+
+            removeSlot(slot);
+            clockHand = slot;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * CLOCK over the chunks of one size class. Clears the reference bit of
+     * recently used records and evicts the first one that is unreferenced or
+     * dead; after MAX_CLOCK_STEPS records it evicts the last one seen, so an
+     * insert never scans the whole arena. The draining slab is skipped unless
+     * includeDraining is set. Returns the number evicted.
+     */
+    private int evictFromClass(int cls, long now, boolean includeDraining) {
+        int chunkSize = 1 << (cls + MIN_CHUNK_SHIFT);
+        int slab = classHandSlab[cls];
+        int offset = classHandOffset[cls];
+        int victim = -1;
+
+        for (int steps = 0, slabsVisited = 0; steps < MAX_CLOCK_STEPS && slabsVisited <= slabCount; ) {
+            if (slabClass[slab] != cls || (slab == drainingSlab && !includeDraining) || offset + chunkSize > slabBump[slab]) {
+                slab = slab + 1 < slabCount ? slab + 1 : 0;
+                offset = 0;
+                slabsVisited++;
+                continue;
+            }
+
+            int address = (slab << SLAB_SHIFT) | offset;
+            offset += chunkSize;
+            if (slabs[slab].getInt(offsetOf(address) + WIRE_LENGTH) < 0)
+                continue;
+
+            steps++;
+            victim = slotOf(address);
+            if (!referenced[victim] || isDead(victim, now))
+                break;
+
+            referenced[victim] = false;
+        }
+
+        if (victim < 0)
+            return 0;
+
+        classHandSlab[cls] = slab;
+        classHandOffset[cls] = offset;
+        removeSlot(victim);
+        return 1;
+    }
+
+    /**
+     * Frees a slab for a size class that has none by evicting up to limit
+     * records of the least used slab of another class. The slab takes no new
+     * records while it drains, so the following inserts finish the job, and
+     * the only slab of a shard is never drained. Inserts of the slab's own
+     * class that find no room elsewhere swap one of its records for theirs,
+     * which keeps them working without undoing the drain.
+     */
+    private int drainSlab(int limit) {
+        if (drainingSlab < 0) {
+            int victim = -1;
+            for (int slab = 0; slab < slabCount; slab++) {
+                if (slabClass[slab] >= 0 && (victim < 0 || slabUsed[slab] < slabUsed[victim]))
+                    victim = slab;
+            }
+
+            if (victim < 0 || slabCount == 1)
+                return 0;
+
+            drainingSlab = victim;
+            if (slabPartial[victim])
+                unlinkPartial(victim);
+        }
+
+        int slab = drainingSlab;
+        int chunkSize = 1 << (slabClass[slab] + MIN_CHUNK_SHIFT);
+        int bump = slabBump[slab];
+        int evicted = 0;
+        for (int offset = 0; offset + chunkSize <= bump && evicted < limit; offset += chunkSize) {
+            if (slabs[slab].getInt(offset + WIRE_LENGTH) < 0)
+                continue;
+
+            // 마지막 항목이 빠지면 release()가 슬랩을 빈 슬랩 목록으로 돌려놓음
+            removeSlot(slotOf((slab << SLAB_SHIFT) | offset));
+            evicted++;
+        }
+
+        return evicted;
+    }
+
+    private boolean isDraining(int cls) {
+        return drainingSlab >= 0 && slabClass[drainingSlab] == cls;
+    }
+
+    // 레코드에 저장한 해시로 인덱스 슬롯을 찾음
+    private int slotOf(int address) {
+        int slot = (int) slabOf(address).getLong(offsetOf(address) + HASH) & mask;
+        while (hashes[slot] == 0 || addresses[slot] != address)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    // key가 null이면 레코드에 저장된 키 바이트로 만듦
+    private CacheEntry readEntry(int address, CacheKey key) {
+        ByteBuffer buf = slabOf(address);
+        int offset = offsetOf(address);
+        int keyLength = buf.getShort(offset + KEY_LENGTH) & 0xffff;
+        int[] ttlOffsets = new int[buf.getShort(offset + TTL_COUNT) & 0xffff];
+        byte[] wire = new byte[buf.getInt(offset + WIRE_LENGTH)];
+
+        buf.position(offset + RECORD_HEADER);
+        if (key == null) {
+            byte[] keyBytes = new byte[keyLength];
+            buf.get(keyBytes);
+            key = CacheKey.fromBytes(keyBytes);
+        }
+
+        int pos = offset + RECORD_HEADER + keyLength;
+        for (int i = 0; i < ttlOffsets.length; i++, pos += 2)
+            ttlOffsets[i] = buf.getShort(pos) & 0xffff;
+
+        buf.position(pos);
+        buf.get(wire);
+
+        return new CacheEntry(key, wire, ttlOffsets, buf.getLong(offset + CREATION_TIME),
+                buf.getLong(offset + EXPIRATION_TIME), buf.getInt(offset + HITS));
+    }
+
+    private boolean isDead(int slot, long now) {
+        return slabOf(addresses[slot]).getLong(offsetOf(addresses[slot]) + DEADLINE) < now;
+    }
+
+    // get()이 돌려준 항목과 같은 레코드일 때만 슬롯을 반환 (생성 시각으로 구분)
+    private int findCurrent(CacheKey key, CacheEntry entry) {
+        int slot = find(key.toBytes());
+        if (slot < 0 || slabOf(addresses[slot]).getLong(offsetOf(addresses[slot]) + CREATION_TIME) != entry.getCreationTime())
+            return -1;
+
+        return slot;
+    }
+
+    private int find(byte[] keyBytes) {
+        return find(hash64(keyBytes), keyBytes);
+    }
+
+    private int find(long hash, byte[] keyBytes) {
+        int slot = (int) hash & mask;
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == hash && keyMatches(addresses[slot], keyBytes))
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    private boolean keyMatches(int address, byte[] keyBytes) {
+        ByteBuffer buf = slabOf(address);
+        int offset = offsetOf(address);
+        if ((buf.getShort(offset + KEY_LENGTH) & 0xffff) != keyBytes.length)
+            return false;
+
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (buf.get(offset + RECORD_HEADER + i) != keyBytes[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private void removeSlot(int slot) {
+        release(addresses[slot]);
+        count--;
+
+        // backward shift 삭제: 뒤따르는 항목을 원래 위치 쪽으로 당겨 tombstone 없이 탐색 경로를 유지
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (hashes[next] == 0)
+                break;
+
+            int ideal = (int) hashes[next] & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                moveSlot(next, hole);
+                hole = next;
+            }
+        }
+
+        hashes[hole] = 0;
+    }
+
+    private void moveSlot(int from, int to) {
+        hashes[to] = hashes[from];
+        addresses[to] = addresses[from];
+        referenced[to] = referenced[from];
+    }
+
+    private int allocate(int cls) {
+        int slab = partialHead[cls];
+        if (slab < 0) {
+            slab = freeSlabHead;
+            if (slab < 0)
+                return -1;
+
+            freeSlabHead = slabNext[slab];
+            if (slabs[slab] == null)
+                slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+            if (slab == drainingSlab)
+                drainingSlab = -1;
+
+            slabClass[slab] = cls;
+            slabUsed[slab] = 0;
+            slabFree[slab] = -1;
+            slabBump[slab] = 0;
+            linkPartial(slab);
+        }
+
+        return allocateFrom(slab);
+    }
+
+    private int allocateFrom(int slab) {
+        int cls = slabClass[slab];
+        int chunkSize = 1 << (cls + MIN_CHUNK_SHIFT);
+        int offset;
+        if (slabFree[slab] >= 0) {
+            offset = slabFree[slab];
+            slabFree[slab] = slabs[slab].getInt(offset);
+        } else {
+            offset = slabBump[slab];
+            slabBump[slab] += chunkSize;
+        }
+
+        slabUsed[slab]++;
+        classUsed[cls]++;
+        usedBytes += chunkSize;
+        if (slabPartial[slab] && slabFree[slab] < 0 && slabBump[slab] + chunkSize > SLAB_SIZE)
+            unlinkPartial(slab);
+
+        return (slab << SLAB_SHIFT) | offset;
+    }
+
+    private void release(int address) {
+        int slab = address >>> SLAB_SHIFT;
+        int offset = offsetOf(address);
+
+        // 빈 청크 목록은 청크 앞 4바이트에 다음 청크 위치를 기록하는 방식
+        slabs[slab].putInt(offset, slabFree[slab]);
+        slabs[slab].putInt(offset + WIRE_LENGTH, -1);
+        slabFree[slab] = offset;
+        slabUsed[slab]--;
+        classUsed[slabClass[slab]]--;
+        usedBytes -= 1 << (slabClass[slab] + MIN_CHUNK_SHIFT);
+
+        if (slabUsed[slab] == 0) {
+            // 완전히 빈 슬랩은 다른 크기 클래스에서 쓸 수 있도록 반환
+            if (slabPartial[slab])
+                unlinkPartial(slab);
+
+            slabClass[slab] = -1;
+            slabNext[slab] = freeSlabHead;
+            freeSlabHead = slab;
+            if (slab == drainingSlab)
+                drainingSlab = -1;
+        } else if (!slabPartial[slab] && slab != drainingSlab) {
+            linkPartial(slab);
+        }
+    }
+
+    private void linkPartial(int slab) {
+        int cls = slabClass[slab];
+        slabPrev[slab] = -1;
+        slabNext[slab] = partialHead[cls];
+        if (partialHead[cls] >= 0)
+            slabPrev[partialHead[cls]] = slab;
+
+        partialHead[cls] = slab;
+        slabPartial[slab] = true;
+    }
+
+    private void unlinkPartial(int slab) {
+        if (slabPrev[slab] >= 0)
+            slabNext[slabPrev[slab]] = slabNext[slab];
+        else
+            partialHead[slabClass[slab]] = slabNext[slab];
+
+        if (slabNext[slab] >= 0)
+            slabPrev[slabNext[slab]] = slabPrev[slab];
+
+        slabPartial[slab] = false;
+    }
+
+    private void resetSlabs() {
+        Arrays.fill(partialHead, -1);
+        Arrays.fill(classUsed, 0);
+        Arrays.fill(slabClass, -1);
+        Arrays.fill(slabPartial, false);
+        Arrays.fill(classHandSlab, 0);
+        Arrays.fill(classHandOffset, 0);
+        drainingSlab = -1;
+        for (int i = 0; i < slabCount; i++)
+            slabNext[i] = i + 1 < slabCount ? i + 1 : -1;
+
+        freeSlabHead = 0;
+    }
+
+    private ByteBuffer slabOf(int address) {
+        return slabs[address >>> SLAB_SHIFT];
+    }
+
+    private static int offsetOf(int address) {
+        return address & (SLAB_SIZE - 1);
+    }
+
+    private void updateStats() {
+        size = count;
+        retainedBytes = usedBytes;
+    }
+
+    private static int classOf(int length) {
+        int shift = Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(length - 1));
+        return shift > SLAB_SHIFT ? -1 : shift - MIN_CHUNK_SHIFT;
+    }
+
+    static long hash64(byte[] data) {
+        // FNV-1a 64 + murmur3 finalizer
+        long h = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+}
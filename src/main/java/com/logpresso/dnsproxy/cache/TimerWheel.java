@@ -0,0 +1,132 @@
+package com.logpresso.dnsproxy.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical hashed timing wheel with one-second ticks. Entries are linked
+ * into the bucket of their deadline; advancing the clock only visits the
+ * buckets that came due, expiring their entries or cascading them down to a
+ * finer wheel. Not thread-safe, guarded by the owning CacheShard.
+ */
+class TimerWheel {
+
+    // 단계별 버킷 수와 버킷 폭(2^SHIFT 초): 64초, 약 68분, 약 36시간, 약 48일
+    private static final int[] BUCKETS = {64, 64, 32, 32};
+    private static final int[] SHIFTS = {0, 6, 12, 17};
+
+    private final CacheEntry[][] wheels;
+    private long currentSec;
+
+    TimerWheel(long nowSec) {
+        this.currentSec = nowSec;
+        this.wheels = new CacheEntry[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            wheels[i] = new CacheEntry[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++)
+                wheels[i][j] = newSentinel();
+        }
+    }
+
+    void schedule(CacheEntry entry, long deadlineSec) {
+        entry.deadlineSec = deadlineSec;
+        link(findBucket(deadlineSec), entry);
+    }
+
+    void deschedule(CacheEntry entry) {
+        if (entry.timerNext == null)
+            return;
+
+        entry.timerPrev.timerNext = entry.timerNext;
+        entry.timerNext.timerPrev = entry.timerPrev;
+        entry.timerPrev = null;
+        entry.timerNext = null;
+    }
+
+    /**
+     * Moves the clock to nowSec and hands every entry whose deadline passed to
+     * the callback, after unlinking it from the wheel.
+     */
+    void advance(long nowSec, Consumer<CacheEntry> expired) {
+        long previous = currentSec;
+        if (nowSec <= previous)
+            return;
+
+        currentSec = nowSec;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long delta = (nowSec >>> SHIFTS[i]) - previousTicks;
+            if (delta <= 0)
+                break;
+
+            expireBuckets(i, previousTicks, delta, expired);
+        }
+    }
+
+    void clear() {
+        for (CacheEntry[] wheel : wheels) {
+            for (CacheEntry sentinel : wheel) {
+                sentinel.timerPrev = sentinel;
+                sentinel.timerNext = sentinel;
+            }
+        }
+    }
+
+    private void expireBuckets(int level, long previousTicks, long delta, Consumer<CacheEntry> expired) {
+        CacheEntry[] wheel = wheels[level];
+        int mask = wheel.length - 1;
+        int steps = (int) Math.min(delta + 1, wheel.length);
+        int start = (int) (previousTicks & mask);
+
+        for (int i = start; i < start + steps; i++) {
+            CacheEntry sentinel = wheel[i & mask];
+            CacheEntry entry = sentinel.timerNext;
+            sentinel.timerPrev = sentinel;
+            sentinel.timerNext = sentinel;
+
+            while (entry != sentinel) {
+                CacheEntry next = entry.timerNext;
+                entry.timerPrev = null;
+                entry.timerNext = null;
+
+                // 아직 기한이 남은 항목은 더 촘촘한 단계로 내려감
+                if (entry.deadlineSec <= currentSec)
+                    expired.accept(entry);
+                else
+                    link(findBucket(entry.deadlineSec), entry);
+
+                entry = next;
+            }
+        }
+    }
+
+    private CacheEntry findBucket(long deadlineSec) {
+        // 이미 지난 기한은 현재 버킷에 넣어 다음 tick에 만료
+        deadlineSec = Math.max(deadlineSec, currentSec);
+        long delta = deadlineSec - currentSec;
+        int level = BUCKETS.length - 1;
+        for (int i = 0; i < BUCKETS.length - 1; i++) {
+            if (delta < (1L << SHIFTS[i + 1])) {
+                level = i;
+                break;
+            }
+        }
+
+        CacheEntry[] wheel = wheels[level];
+        return wheel[(int) ((deadlineSec >>> SHIFTS[level]) & (wheel.length - 1))];
+    }
+
+    private static void link(CacheEntry sentinel, CacheEntry entry) {
+        entry.timerPrev = sentinel.timerPrev;
+        entry.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = entry;
+        sentinel.timerPrev = entry;
+    }
+
+    private static CacheEntry newSentinel() {
+        CacheEntry sentinel = new CacheEntry();
+        sentinel.timerPrev = sentinel;
+        sentinel.timerNext = sentinel;
+        return sentinel;
+    }
+
+}
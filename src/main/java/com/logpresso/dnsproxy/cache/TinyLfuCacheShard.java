@@ -0,0 +1,157 @@
+package com.logpresso.dnsproxy.cache;
+
+/**
+ * W-TinyLFU shard. New entries land in a small LRU window; an entry leaving
+ * the window only enters the main region if the frequency sketch says it is
+ * more popular than the main region's eviction victim, so a burst of one-off
+ * names cannot push out a hot entry. The main region is a segmented LRU where
+ * entries hit again in the probation segment move to the protected segment.
+ */
+class TinyLfuCacheShard extends CacheShard {
+
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final EntryList window = new EntryList();
+    private final EntryList probation = new EntryList();
+    private final EntryList protectedList = new EntryList();
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+
+    // 잠금 안에서만 갱신
+    private volatile long rejectedCount;
+
+    TinyLfuCacheShard(long capacity, boolean weighted) {
+        super(capacity, weighted);
+        this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENT / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = mainCapacity * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(getEstimatedEntries());
+    }
+
+    @Override
+    long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    protected void recordAccess(CacheKey key, CacheEntry entry) {
+        sketch.increment(key.hashCode());
+        if (entry == null)
+            return;
+
+        switch (entry.queue) {
+            case WINDOW:
+                window.moveToFront(entry);
+                break;
+            case PROBATION:
+                probation.remove(entry);
+                entry.queue = PROTECTED;
+                protectedList.addFirst(entry);
+                demoteProtected();
+                break;
+            default:
+                protectedList.moveToFront(entry);
+                break;
+        }
+    }
+
+    @Override
+    protected int onInsert(CacheEntry entry, long now, long staleRetentionMs) {
+        // 빈도는 조회(recordAccess)에서만 셈: 미스 뒤의 저장까지 세면 일회성 이름이 두 번 집계됨
+        entry.queue = WINDOW;
+        window.addFirst(entry);
+        return evict(now, staleRetentionMs);
+    }
+
+    @Override
+    protected int onReplace(CacheEntry old, CacheEntry entry, long now, long staleRetentionMs) {
+        entry.queue = old.queue;
+        listOf(old).replace(old, entry);
+        return evict(now, staleRetentionMs);
+    }
+
+    private int evict(long now, long staleRetentionMs) {
+        int evicted = 0;
+        while (window.weight() > windowCapacity) {
+            CacheEntry candidate = window.last();
+            window.remove(candidate);
+            candidate.queue = PROBATION;
+            probation.addFirst(candidate);
+            evicted += evictFromMain(candidate, now, staleRetentionMs);
+        }
+
+        // 교체로 main이 커진 경우에는 입장 비교 없이 victim을 제거
+        demoteProtected();
+        return evicted + evictFromMain(null, now, staleRetentionMs);
+    }
+
+    private int evictFromMain(CacheEntry candidate, long now, long staleRetentionMs) {
+        int evicted = 0;
+        while (probation.weight() + protectedList.weight() > mainCapacity) {
+            CacheEntry victim = probation.last();
+            if (victim == candidate)
+                victim = protectedList.last();
+
+            evicted++;
+            if (candidate == null) {
+                removeEntry(victim);
+            } else if (victim == null || candidate.isStaleExpired(now, staleRetentionMs)) {
+                removeEntry(candidate);
+                candidate = null;
+            } else if (victim.isStaleExpired(now, staleRetentionMs) || admit(candidate, victim)) {
+                removeEntry(victim);
+            } else {
+                removeEntry(candidate);
+                candidate = null;
+                rejectedCount++;
+            }
+        }
+
+        return evicted;
+    }
+
+    private boolean admit(CacheEntry candidate, CacheEntry victim) {
+        // 동률이면 기존 항목을 유지하여 일회성 이름이 자리를 차지하지 못하게 함
+        return sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.getKey().hashCode());
+    }
+
+    private void demoteProtected() {
+        while (protectedList.weight() > protectedCapacity) {
+            CacheEntry entry = protectedList.last();
+            protectedList.remove(entry);
+            entry.queue = PROBATION;
+            probation.addFirst(entry);
+        }
+    }
+
+    @Override
+    protected void onRemove(CacheEntry entry) {
+        listOf(entry).remove(entry);
+    }
+
+    @Override
+    protected void onClear() {
+        window.clear();
+        probation.clear();
+        protectedList.clear();
+    }
+
+    private EntryList listOf(CacheEntry entry) {
+        switch (entry.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedList;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.logpresso.dnsproxy.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that keeps hedged queries under a share of all queries, like
+ * the retry budgets of gRPC and Envoy. Every query earns percent/100 of a
+ * token and every hedge spends a whole one, so a slow or lossy upstream
+ * cannot double the query load.
+ */
+class HedgeBudget {
+
+    // 토큰은 1/100 단위로 셈
+    private static final long TOKEN = 100;
+
+    // 한동안 질의가 없어도 연달아 보낼 수 있는 hedge 수
+    static final int MAX_BURST = 10;
+
+    private final int percent;
+    private final AtomicLong tokens = new AtomicLong(0);
+
+    // percent가 0이면 hedge를 보내지 않음
+    HedgeBudget(int percent) {
+        this.percent = Math.max(0, Math.min(100, percent));
+    }
+
+    boolean isEnabled() {
+        return percent > 0;
+    }
+
+    int getPercent() {
+        return percent;
+    }
+
+    void recordQuery() {
+        if (percent == 0)
+            return;
+
+        long max = MAX_BURST * TOKEN;
+        while (true) {
+            long current = tokens.get();
+            if (current >= max || tokens.compareAndSet(current, Math.min(max, current + percent)))
+                return;
+        }
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            long current = tokens.get();
+            if (current < TOKEN)
+                return false;
+            if (tokens.compareAndSet(current, current - TOKEN))
+                return true;
+        }
+    }
+
+    // hedge를 보내지 않게 된 경우 토큰을 돌려줌
+    void release() {
+        tokens.addAndGet(TOKEN);
+    }
+
+}
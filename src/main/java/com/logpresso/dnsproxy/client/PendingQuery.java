@@ -0,0 +1,70 @@
+package com.logpresso.dnsproxy.client;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Upstream query waiting for its response, registered under the random
+ * transaction ID it was sent with. The original ID is restored on the
+ * response before the future completes.
+ */
+class PendingQuery {
+
+    private static final int FLAG_QR = 0x80;
+
+    final int id;
+    final int originalId;
+    final CompletableFuture<byte[]> future;
+    private final InetSocketAddress server;
+    private final byte[] question;
+
+    PendingQuery(int id, int originalId, InetSocketAddress server, byte[] query, int questionEnd, CompletableFuture<byte[]> future) {
+        this.id = id;
+        this.originalId = originalId;
+        this.server = server;
+        this.question = Arrays.copyOfRange(query, DnsWire.HEADER_LENGTH, questionEnd);
+        this.future = future;
+    }
+
+    /**
+     * Completes the future on the executor, so that parsing, filtering and
+     * answering the client do not run on the dispatcher thread.
+     */
+    void complete(byte[] response, Executor executor) {
+        try {
+            executor.execute(() -> future.complete(response));
+        } catch (RejectedExecutionException e) {
+            // 종료 중에는 호출한 스레드에서 완료
+            future.complete(response);
+        }
+    }
+
+    boolean matches(SocketAddress from, byte[] response) {
+        // 스푸핑 방지: ID뿐 아니라 응답 주소와 질문 섹션도 일치해야 함
+        if (!server.equals(from) || (response[2] & FLAG_QR) == 0 || DnsWire.getQuestionCount(response) != 1)
+            return false;
+
+        if (response.length < DnsWire.HEADER_LENGTH + question.length)
+            return false;
+
+        for (int i = 0; i < question.length; i++) {
+            int a = response[DnsWire.HEADER_LENGTH + i];
+            int b = question[i];
+            if (a != b && toLower(a) != toLower(b))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int toLower(int b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+
+}
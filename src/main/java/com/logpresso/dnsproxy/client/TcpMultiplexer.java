@@ -0,0 +1,467 @@
+package com.logpresso.dnsproxy.client;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends upstream TCP queries over long-lived connections, a few per server,
+ * pipelining them under random transaction IDs so that responses may come
+ * back in any order (RFC 7766). A single dispatcher thread connects, writes
+ * and reads every connection. Connections are opened when needed and closed
+ * after the idle time the server advertises with edns-tcp-keepalive
+ * (RFC 7828), or a default when it does not.
+ */
+class TcpMultiplexer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TcpMultiplexer.class);
+
+    private static final int MAX_CONNECTIONS_PER_SERVER = 4;
+    // 응답을 기다리는 질의가 이 수에 이르면 서버당 연결 수 안에서 새 연결을 엶
+    private static final int MAX_PIPELINED_QUERIES = 32;
+    private static final int MAX_ID_ATTEMPTS = 16;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 10000;
+    // 서버가 유휴 연결을 닫는 시점과 겹치지 않도록 그보다 일찍 재사용을 멈춤
+    private static final long IDLE_MARGIN_MS = 500;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Selector selector;
+    private final ConcurrentHashMap<InetSocketAddress, List<UpstreamConnection>> pools = new ConcurrentHashMap<>();
+    private final Queue<UpstreamConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<UpstreamConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queryCount = new AtomicLong(0);
+    private final AtomicLong connectCount = new AtomicLong(0);
+    private final long timeoutMs;
+    private final Executor executor;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    // 응답 future는 executor에서 완료함
+    TcpMultiplexer(long timeoutMs, Executor executor) throws IOException {
+        this.selector = Selector.open();
+        this.timeoutMs = timeoutMs;
+        this.executor = executor;
+
+        this.dispatcher = new Thread(this::dispatch, "dns-upstream-tcp");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Sends the query to the server over a pooled connection and returns a
+     * future completed with the response, carrying the original query ID, or
+     * failed on timeout or when the connection is lost. When a reused
+     * connection turns out to be closed by the server before any response
+     * bytes arrive, the query is sent once more over a new connection.
+     */
+    CompletableFuture<byte[]> query(byte[] queryData, InetSocketAddress server) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        send(queryData, server, result, false);
+        return result;
+    }
+
+    // fresh이면 풀의 연결을 재사용하지 않고 새 연결로 보냄
+    private void send(byte[] queryData, InetSocketAddress server, CompletableFuture<byte[]> result, boolean fresh) {
+        if (!running) {
+            result.completeExceptionally(new IOException("Upstream TCP multiplexer is closed"));
+            return;
+        }
+
+        try {
+            int questionEnd = DnsWire.skipName(queryData, DnsWire.HEADER_LENGTH, queryData.length);
+            if (queryData.length < DnsWire.HEADER_LENGTH || DnsWire.getQuestionCount(queryData) != 1
+                    || questionEnd < 0 || questionEnd + 4 > queryData.length)
+                throw new IOException("Malformed upstream query");
+
+            byte[] data = DnsWire.addTcpKeepalive(queryData, questionEnd + 4);
+            long now = System.currentTimeMillis();
+
+            // 유휴 연결 정리와 겹치지 않도록 연결 선택과 질의 등록을 같은 잠금 안에서 수행
+            List<UpstreamConnection> pool = pools.computeIfAbsent(server, k -> new ArrayList<>());
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            UpstreamConnection connection;
+            PendingQuery pending;
+            synchronized (pool) {
+                connection = acquireConnection(pool, server, now, fresh);
+                pending = connection.register(data, questionEnd + 4, future);
+            }
+
+            // 이미 응답을 실어 나른 연결이어야 서버가 먼저 닫았을 수 있는 재사용 연결임
+            long received = connection.receivedBytes;
+            future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+                connection.pending.remove(pending.id, pending);
+
+                // 응답하지 않는 연결에는 더 보내지 않고 남은 질의가 끝나면 닫음
+                if (error instanceof TimeoutException)
+                    connection.closing = true;
+
+                if (error == null) {
+                    result.complete(response);
+                } else if (!fresh && received > 0 && !(error instanceof TimeoutException) && connection.receivedBytes == received) {
+                    // 서버가 keepalive 연결을 먼저 닫은 경우이므로 서버 실패로 보지 않고 새 연결로 한 번 다시 보냄
+                    if (logger.isDebugEnabled())
+                        logger.debug("logpresso dnsproxy: Retrying upstream TCP query to {} on a new connection: {}", server, error.getMessage());
+
+                    send(queryData, server, result, true);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            });
+
+            connection.send(data, now);
+            queryCount.incrementAndGet();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    long getQueryCount() {
+        return queryCount.get();
+    }
+
+    long getConnectCount() {
+        return connectCount.get();
+    }
+
+    int getOpenConnections() {
+        int count = 0;
+        for (List<UpstreamConnection> pool : pools.values()) {
+            synchronized (pool) {
+                count += pool.size();
+            }
+        }
+
+        return count;
+    }
+
+    // 응답 대기가 가장 적은 연결을 고르고, 모두 한도에 이르렀으면 새 연결을 엶
+    private UpstreamConnection acquireConnection(List<UpstreamConnection> pool, InetSocketAddress server, long now, boolean fresh) throws IOException {
+        UpstreamConnection best = null;
+        int reusable = 0;
+        for (UpstreamConnection connection : pool) {
+            if (fresh || !connection.isReusable(now))
+                continue;
+
+            reusable++;
+            if (best == null || connection.pending.size() < best.pending.size())
+                best = connection;
+        }
+
+        if (best != null && (best.pending.size() < MAX_PIPELINED_QUERIES || reusable >= MAX_CONNECTIONS_PER_SERVER))
+            return best;
+
+        UpstreamConnection connection = openConnection(server, pool, now);
+        pool.add(connection);
+        return connection;
+    }
+
+    private UpstreamConnection openConnection(InetSocketAddress server, List<UpstreamConnection> pool, long now) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        UpstreamConnection connection;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection = new UpstreamConnection(server, pool, channel, now);
+            connection.connected = channel.connect(server);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        connectCount.incrementAndGet();
+        if (logger.isDebugEnabled())
+            logger.debug("logpresso dnsproxy: Opening upstream TCP connection to {}", server);
+
+        registrations.add(connection);
+        selector.wakeup();
+        return connection;
+    }
+
+    private void dispatch() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+                registerConnections();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    UpstreamConnection connection = (UpstreamConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable())
+                            connection.finishConnect();
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (IOException e) {
+                        close(connection, e);
+                    }
+                }
+
+                UpstreamConnection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    try {
+                        connection.flush();
+                    } catch (IOException e) {
+                        close(connection, e);
+                    }
+                }
+
+                closeIdleConnections(System.currentTimeMillis());
+            } catch (IOException e) {
+                if (running)
+                    logger.warn("logpresso dnsproxy: Upstream TCP dispatcher error", e);
+            }
+        }
+    }
+
+    private void registerConnections() {
+        UpstreamConnection connection;
+        while ((connection = registrations.poll()) != null) {
+            try {
+                int ops = connection.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+                connection.key = connection.channel.register(selector, ops, connection);
+                connection.flush();
+            } catch (IOException e) {
+                close(connection, e);
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        List<UpstreamConnection> idle = new ArrayList<>();
+        for (List<UpstreamConnection> pool : pools.values()) {
+            synchronized (pool) {
+                Iterator<UpstreamConnection> it = pool.iterator();
+                while (it.hasNext()) {
+                    UpstreamConnection connection = it.next();
+                    if (connection.pending.isEmpty() && !connection.isReusable(now)) {
+                        it.remove();
+                        idle.add(connection);
+                    }
+                }
+            }
+        }
+
+        for (UpstreamConnection connection : idle)
+            connection.close();
+    }
+
+    private void close(UpstreamConnection connection, IOException cause) {
+        synchronized (connection.pool) {
+            connection.pool.remove(connection);
+        }
+
+        connection.close();
+
+        if (!connection.pending.isEmpty() && logger.isDebugEnabled())
+            logger.debug("logpresso dnsproxy: Upstream TCP connection to {} closed: {}", connection.server, cause.getMessage());
+
+        for (PendingQuery pending : connection.pending.values())
+            pending.future.completeExceptionally(cause);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+
+        try {
+            dispatcher.join(SELECT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        IOException closed = new IOException("Upstream TCP multiplexer is closed");
+        for (List<UpstreamConnection> pool : pools.values()) {
+            List<UpstreamConnection> connections;
+            synchronized (pool) {
+                connections = new ArrayList<>(pool);
+            }
+
+            for (UpstreamConnection connection : connections)
+                close(connection, closed);
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("logpresso dnsproxy: Failed to close upstream TCP selector", e);
+        }
+    }
+
+    private class UpstreamConnection {
+        private final InetSocketAddress server;
+        private final List<UpstreamConnection> pool;
+        private final SocketChannel channel;
+        private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+        private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+
+        // 디스패처 스레드 전용
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        private ByteBuffer readBuffer;
+        private SelectionKey key;
+
+        private volatile boolean connected;
+        private volatile long receivedBytes;
+        private volatile boolean closing;
+        private volatile long lastActivity;
+        private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+        UpstreamConnection(InetSocketAddress server, List<UpstreamConnection> pool, SocketChannel channel, long now) {
+            this.server = server;
+            this.pool = pool;
+            this.channel = channel;
+            this.lastActivity = now;
+        }
+
+        boolean isReusable(long now) {
+            return !closing && now - lastActivity < idleTimeoutMs - IDLE_MARGIN_MS;
+        }
+
+        PendingQuery register(byte[] data, int questionEnd, CompletableFuture<byte[]> future) throws IOException {
+            int originalId = DnsWire.getId(data);
+            for (int i = 0; i < MAX_ID_ATTEMPTS; i++) {
+                PendingQuery p = new PendingQuery(random.nextInt(0x10000), originalId, server, data, questionEnd, future);
+                if (pending.putIfAbsent(p.id, p) == null) {
+                    DnsWire.setId(data, p.id);
+                    return p;
+                }
+            }
+
+            throw new IOException("No free upstream query ID");
+        }
+
+        void send(byte[] data, long now) {
+            ByteBuffer buffer = ByteBuffer.allocate(2 + data.length);
+            buffer.putShort((short) data.length);
+            buffer.put(data);
+            buffer.flip();
+
+            lastActivity = now;
+            writes.add(buffer);
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void finishConnect() throws IOException {
+            if (!channel.finishConnect())
+                return;
+
+            connected = true;
+            flush();
+        }
+
+        /**
+         * Writes queued queries until the socket would block, and updates the
+         * interest set accordingly.
+         */
+        void flush() throws IOException {
+            if (key == null || !connected || !channel.isOpen())
+                return;
+
+            ByteBuffer buffer;
+            while ((buffer = writes.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                writes.poll();
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            while (true) {
+                if (readBuffer == null) {
+                    int n = channel.read(lengthBuffer);
+                    if (n < 0)
+                        throw new IOException("Upstream TCP connection closed by " + server);
+
+                    receivedBytes += n;
+
+                    if (lengthBuffer.hasRemaining())
+                        return;
+
+                    lengthBuffer.flip();
+                    int length = lengthBuffer.getShort() & 0xffff;
+                    lengthBuffer.clear();
+                    readBuffer = ByteBuffer.allocate(length);
+                }
+
+                int n = channel.read(readBuffer);
+                if (n < 0)
+                    throw new IOException("Upstream TCP connection closed by " + server);
+
+                receivedBytes += n;
+                if (readBuffer.hasRemaining())
+                    return;
+
+                byte[] data = readBuffer.array();
+                readBuffer = null;
+                receive(data);
+            }
+        }
+
+        private void receive(byte[] data) {
+            PendingQuery p = data.length < DnsWire.HEADER_LENGTH ? null : pending.get(DnsWire.getId(data));
+            if (p == null || !p.matches(server, data)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("logpresso dnsproxy: Dropping unexpected upstream TCP response from {}", server);
+
+                return;
+            }
+
+            // 응답 콜백에서 바로 다음 질의를 보내도 새 유휴 타임아웃이 적용되도록 먼저 반영
+            lastActivity = System.currentTimeMillis();
+            int keepalive = DnsWire.findTcpKeepalive(data);
+            if (keepalive >= 0)
+                idleTimeoutMs = keepalive * 100L;
+
+            pending.remove(p.id, p);
+            DnsWire.setId(data, p.originalId);
+            p.complete(data, executor);
+        }
+
+        void close() {
+            closing = true;
+            if (key != null)
+                key.cancel();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.logpresso.dnsproxy.client;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends upstream UDP queries over a small pool of channels and matches the
+ * responses back to pending queries on a single dispatcher thread. Every query
+ * gets a random transaction ID, and a channel is replaced by a new one bound to
+ * a fresh ephemeral port after a few hundred queries or a minute, so a spoofer
+ * has to guess the port as well as the ID for each small batch of queries.
+ */
+class UdpMultiplexer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpMultiplexer.class);
+
+    // 같은 소스 포트로 보내는 질의 수와 시간의 상한 (포트 추측 기회를 줄임)
+    static final int MAX_QUERIES_PER_CHANNEL = 200;
+    private static final long MAX_CHANNEL_AGE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final int MAX_ID_ATTEMPTS = 16;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Selector selector;
+    private final AtomicReferenceArray<UpstreamChannel> channels;
+    private final Queue<UpstreamChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<UpstreamChannel> retiring = new ConcurrentLinkedQueue<>();
+    private final List<UpstreamChannel> retired = new ArrayList<>();
+    private final int maxResponseSize;
+    private final long timeoutMs;
+    private final Executor executor;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    // 응답 future는 executor에서 완료함
+    UdpMultiplexer(int channelCount, int maxResponseSize, long timeoutMs, Executor executor) throws IOException {
+        this.selector = Selector.open();
+        this.channels = new AtomicReferenceArray<>(channelCount);
+        this.maxResponseSize = maxResponseSize;
+        this.timeoutMs = timeoutMs;
+        this.executor = executor;
+
+        try {
+            for (int i = 0; i < channelCount; i++)
+                channels.set(i, openChannel());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        this.dispatcher = new Thread(this::dispatch, "dns-upstream-udp");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Sends the query to the server and returns a future completed with the
+     * response, carrying the original query ID, or failed on timeout.
+     */
+    CompletableFuture<byte[]> query(byte[] queryData, InetSocketAddress server) {
+        return query(queryData, server, timeoutMs);
+    }
+
+    CompletableFuture<byte[]> query(byte[] queryData, InetSocketAddress server, long timeoutMs) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IOException("Upstream UDP multiplexer is closed"));
+            return future;
+        }
+
+        try {
+            int questionEnd = DnsWire.skipName(queryData, DnsWire.HEADER_LENGTH, queryData.length);
+            if (queryData.length < DnsWire.HEADER_LENGTH || DnsWire.getQuestionCount(queryData) != 1
+                    || questionEnd < 0 || questionEnd + 4 > queryData.length)
+                throw new IOException("Malformed upstream query");
+
+            UpstreamChannel channel = acquireChannel();
+            byte[] data = queryData.clone();
+            PendingQuery pending = channel.register(data, server, questionEnd + 4, future);
+
+            future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .whenComplete((response, error) -> channel.pending.remove(pending.id, pending));
+
+            if (channel.channel.send(ByteBuffer.wrap(data), server) == 0)
+                throw new IOException("Upstream UDP send buffer is full");
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    int getPendingCount() {
+        int count = 0;
+        for (int i = 0; i < channels.length(); i++)
+            count += channels.get(i).pending.size();
+
+        return count;
+    }
+
+    private UpstreamChannel acquireChannel() throws IOException {
+        int index = ThreadLocalRandom.current().nextInt(channels.length());
+        UpstreamChannel channel = channels.get(index);
+        if (channel.queries.incrementAndGet() <= MAX_QUERIES_PER_CHANNEL
+                && System.nanoTime() - channel.openedAt < MAX_CHANNEL_AGE_NANOS)
+            return channel;
+
+        // 한 스레드만 교체하고, 교체하는 동안 다른 스레드는 기존 채널을 계속 씀
+        if (!channel.rotating.compareAndSet(false, true))
+            return channel;
+
+        // 소스 포트를 바꾸기 위해 새 채널로 교체하고 기존 채널은 응답을 다 받은 뒤 닫음
+        UpstreamChannel replacement;
+        try {
+            replacement = openChannel();
+        } catch (IOException e) {
+            channel.rotating.set(false);
+            throw e;
+        }
+
+        channels.set(index, replacement);
+        retiring.add(channel);
+        return replacement;
+    }
+
+    private UpstreamChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.bind(null);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        UpstreamChannel upstream = new UpstreamChannel(channel);
+        registrations.add(upstream);
+        selector.wakeup();
+        return upstream;
+    }
+
+    private void dispatch() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxResponseSize);
+
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+                registerChannels();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (key.isValid() && key.isReadable())
+                        receive((UpstreamChannel) key.attachment(), buffer);
+                }
+
+                closeRetiredChannels();
+            } catch (IOException e) {
+                if (running)
+                    logger.warn("logpresso dnsproxy: Upstream UDP dispatcher error", e);
+            }
+        }
+    }
+
+    private void registerChannels() {
+        UpstreamChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.channel.register(selector, SelectionKey.OP_READ, channel);
+            } catch (IOException e) {
+                logger.warn("logpresso dnsproxy: Failed to register upstream UDP channel", e);
+            }
+        }
+    }
+
+    private void receive(UpstreamChannel channel, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress from = channel.channel.receive(buffer);
+            if (from == null)
+                return;
+
+            buffer.flip();
+            int length = buffer.remaining();
+            if (length < DnsWire.HEADER_LENGTH)
+                continue;
+
+            byte[] data = new byte[length];
+            buffer.get(data);
+
+            PendingQuery pending = channel.pending.get(DnsWire.getId(data));
+            if (pending == null || !pending.matches(from, data)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("logpresso dnsproxy: Dropping unexpected upstream response from {}", from);
+
+                continue;
+            }
+
+            channel.pending.remove(pending.id, pending);
+            DnsWire.setId(data, pending.originalId);
+            pending.complete(data, executor);
+        }
+    }
+
+    private void closeRetiredChannels() {
+        UpstreamChannel channel;
+        while ((channel = retiring.poll()) != null)
+            retired.add(channel);
+
+        Iterator<UpstreamChannel> it = retired.iterator();
+        while (it.hasNext()) {
+            channel = it.next();
+            if (channel.pending.isEmpty()) {
+                channel.close();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+
+        if (dispatcher != null) {
+            try {
+                dispatcher.join(SELECT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<UpstreamChannel> all = new ArrayList<>(retired);
+        all.addAll(retiring);
+        for (int i = 0; i < channels.length(); i++) {
+            if (channels.get(i) != null)
+                all.add(channels.get(i));
+        }
+
+        IOException closed = new IOException("Upstream UDP multiplexer is closed");
+        for (UpstreamChannel channel : all) {
+            for (PendingQuery pending : channel.pending.values())
+                pending.future.completeExceptionally(closed);
+
+            channel.close();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("logpresso dnsproxy: Failed to close upstream UDP selector", e);
+        }
+    }
+
+    private class UpstreamChannel {
+        private final DatagramChannel channel;
+        private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger queries = new AtomicInteger();
+        private final AtomicBoolean rotating = new AtomicBoolean(false);
+        private final long openedAt = System.nanoTime();
+
+        UpstreamChannel(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        PendingQuery register(byte[] data, InetSocketAddress server, int questionEnd, CompletableFuture<byte[]> future) throws IOException {
+            int originalId = DnsWire.getId(data);
+            for (int i = 0; i < MAX_ID_ATTEMPTS; i++) {
+                PendingQuery p = new PendingQuery(random.nextInt(0x10000), originalId, server, data, questionEnd, future);
+                if (pending.putIfAbsent(p.id, p) == null) {
+                    DnsWire.setId(data, p.id);
+                    return p;
+                }
+            }
+
+            throw new IOException("No free upstream query ID");
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("logpresso dnsproxy: Failed to close upstream UDP channel", e);
+            }
+        }
+    }
+
+}
@@ -3,157 +3,480 @@ package com.logpresso.dnsproxy.client;
 import com.logpresso.dnsproxy.config.ResolvedConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class UpstreamResolver {
+public class UpstreamResolver implements Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(UpstreamResolver.class);
 
-    private final List<String> primaryServers;
-    private final List<String> fallbackServers;
+    public static final String SELECTION_ORDERED = UpstreamSelector.ORDERED;
+    public static final String SELECTION_RTT = UpstreamSelector.RTT;
+
+    private final List<UpstreamServer> primaryServers;
+    private final List<UpstreamServer> fallbackServers;
+    private final UpstreamSelector selector;
+    private final HedgeBudget hedgeBudget;
+    // 0이면 서버별 p95 RTT
+    private final int hedgeDelayMs;
+    private final AtomicLong hedgeCount = new AtomicLong(0);
+    private final AtomicLong hedgeWinCount = new AtomicLong(0);
+    // 서버당 시도 시간 상한이자 TCP 타임아웃
+    private final long maxRtoMs;
+    private final int retransmits;
+    // health probe 질의: 루트 NS
+    private final byte[] probeQuery;
 
-    private static final int DNS_PORT = 53;
-    private static final int TIMEOUT_MS = 2000;
     private static final int UDP_MAX_SIZE = 4096;
+    private static final int UDP_CHANNELS = 16;
+    // 아직 응답한 적 없는 서버의 hedge 대기 시간, 너무 이른 hedge를 막는 하한
+    private static final int DEFAULT_HEDGE_DELAY_MS = 200;
+    private static final int MIN_HEDGE_DELAY_MS = 10;
+
+    private final UdpMultiplexer udp;
+    private final TcpMultiplexer tcp;
+
+    /**
+     * Upstream responses are handed to the executor, so that everything after
+     * the response arrives runs there and not on the socket dispatcher threads.
+     */
+    public UpstreamResolver(ResolvedConfig config, Executor executor) throws IOException {
+        long minRtoMs = config.getUpstreamRtoMinMs();
+        this.maxRtoMs = Math.max(minRtoMs, config.getUpstreamRtoMaxMs());
+        this.retransmits = config.getUpstreamRetransmits();
+        this.primaryServers = createServers(config.getDns(), minRtoMs, maxRtoMs, config.getUpstreamFailureThreshold());
+        this.fallbackServers = createServers(config.getFallbackDns(), minRtoMs, maxRtoMs, config.getUpstreamFailureThreshold());
+        this.selector = new UpstreamSelector(config.getUpstreamSelection());
+        this.hedgeBudget = new HedgeBudget(config.getUpstreamHedgeBudget());
+        this.hedgeDelayMs = config.getUpstreamHedgeDelayMs();
+        this.probeQuery = Message.newQuery(Record.newRecord(Name.root, Type.NS, DClass.IN)).toWire();
+        // 광고한 EDNS 크기의 응답이 잘리지 않도록 수신 버퍼를 맞춤
+        this.udp = new UdpMultiplexer(UDP_CHANNELS, Math.max(UDP_MAX_SIZE, config.getEdnsPayloadSize()), maxRtoMs, executor);
+
+        try {
+            this.tcp = new TcpMultiplexer(maxRtoMs, executor);
+        } catch (IOException e) {
+            udp.close();
+            throw e;
+        }
+    }
+
+    private static List<UpstreamServer> createServers(List<String> names, long minRtoMs, long maxRtoMs, int failureThreshold) {
+        List<UpstreamServer> servers = new ArrayList<>();
+        for (String name : names)
+            servers.add(new UpstreamServer(name, minRtoMs, maxRtoMs, failureThreshold));
 
-    public UpstreamResolver(ResolvedConfig config) {
-        this.primaryServers = config.getDns();
-        this.fallbackServers = config.getFallbackDns();
+        return servers;
     }
 
-    public Message resolve(Message query) throws IOException {
-        Message response = tryResolve(query, primaryServers);
-        if (response != null)
-            return response;
+    public String getSelectionPolicy() {
+        return selector.getPolicy();
+    }
 
-        logger.warn("logpresso dnsproxy: All primary DNS servers failed, trying fallback servers");
+    /**
+     * Number of queries the rtt policy sent to a server other than the
+     * fastest one first, to keep its RTT estimate fresh.
+     */
+    public long getExploreCount() {
+        return selector.getExploreCount();
+    }
 
-        response = tryResolve(query, fallbackServers);
-        if (response != null)
-            return response;
+    /**
+     * Maximum share of queries, in percent, that may also be sent to the next
+     * server. 0 if hedging is disabled.
+     */
+    public int getHedgeBudget() {
+        return hedgeBudget.getPercent();
+    }
 
-        throw new IOException("All DNS servers failed to respond");
+    /**
+     * Number of hedged queries sent to the next server because the first
+     * server had not answered in time.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
     }
 
-    private Message tryResolve(Message query, List<String> servers) {
-        for (String server : servers) {
-            try {
-                Message response = resolveUdp(query, server);
-                if (response != null) {
-                    if (response.getHeader().getFlag(org.xbill.DNS.Flags.TC)) {
-                        if (logger.isDebugEnabled())
-                            logger.debug("logpresso dnsproxy: Response truncated, retrying with TCP: {}", server);
+    /**
+     * Number of hedged queries that answered before the first server.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
 
-                        response = resolveTcp(query, server);
-                    }
+    /**
+     * Number of queries sent over pooled upstream TCP connections.
+     */
+    public long getTcpQueryCount() {
+        return tcp.getQueryCount();
+    }
 
-                    return response;
-                }
-            } catch (IOException e) {
-                logger.warn("logpresso dnsproxy: DNS query failed for server {}: {}", server, e.getMessage());
+    /**
+     * Number of upstream TCP connections opened; fewer than the TCP queries
+     * when connections are reused.
+     */
+    public long getTcpConnectCount() {
+        return tcp.getConnectCount();
+    }
+
+    public int getTcpOpenConnections() {
+        return tcp.getOpenConnections();
+    }
+
+    /**
+     * Longest time resolveAsync can take before it completes: every primary
+     * and fallback server tried in turn, each with a UDP attempt and a TCP
+     * retry of at most the maximum RTO, where the TCP retry may be sent once
+     * more when a reused connection was closed by the server.
+     */
+    public long getQueryDeadlineMs() {
+        return 3 * maxRtoMs * Math.max(1, primaryServers.size() + fallbackServers.size());
+    }
+
+    /**
+     * Smoothed RTT, failure rate and query counts of every upstream server,
+     * primary servers first.
+     */
+    public String getServerStats() {
+        StringBuilder sb = new StringBuilder();
+        for (List<UpstreamServer> servers : List.of(primaryServers, fallbackServers)) {
+            for (UpstreamServer server : servers) {
+                if (sb.length() > 0)
+                    sb.append(", ");
+                sb.append(server);
             }
         }
 
-        return null;
+        return sb.toString();
     }
 
-    private Message resolveUdp(Message query, String server) throws IOException {
-        InetAddress address = parseAddress(server);
-        int port = parsePort(server, DNS_PORT);
+    public Message resolve(Message query) throws IOException {
+        try {
+            return resolveAsync(query).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upstream response");
+        } catch (ExecutionException e) {
+            throw toIOException(e.getCause());
+        }
+    }
 
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(TIMEOUT_MS);
+    /**
+     * Resolves the query without blocking the caller. Primary servers are
+     * tried first, in the order chosen by the selection policy, and the future
+     * fails with an IOException when none of them answers. Servers whose
+     * circuit breaker is open are skipped unless every server's breaker is open.
+     * With hedging enabled, a server that has not answered within the hedge
+     * delay gets the next server queried alongside it, and the first answer wins.
+     */
+    public CompletableFuture<Message> resolveAsync(Message query) {
+        byte[] queryData = query.toWire();
+        hedgeBudget.recordQuery();
+
+        // 모든 서버의 breaker가 열려 있으면 응답 없이 실패하는 대신 설정 순서대로 모두 시도
+        List<UpstreamServer> primary = selector.order(primaryServers);
+        boolean bypass = primary.isEmpty() && !UpstreamSelector.hasAvailable(fallbackServers);
+        boolean skipped = primary.isEmpty() && !bypass;
+        if (bypass)
+            primary = primaryServers;
+
+        return tryResolve(query, queryData, primary, 0).thenCompose(response -> {
+            if (response != null)
+                return CompletableFuture.completedFuture(response);
+
+            // breaker가 열려 건너뛴 경우는 breaker 상태가 바뀔 때 이미 로그를 남김
+            if (!skipped)
+                logger.warn("logpresso dnsproxy: All primary DNS servers failed, trying fallback servers");
+            else if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Circuit breakers of all primary DNS servers are open, trying fallback servers");
+
+            return tryResolve(query, queryData, bypass ? fallbackServers : selector.order(fallbackServers), 0);
+        }).thenApply(response -> {
+            if (response == null)
+                throw new CompletionException(new IOException("All DNS servers failed to respond"));
 
-            byte[] queryData = query.toWire();
-            DatagramPacket sendPacket = new DatagramPacket(queryData, queryData.length, address, port);
-            socket.send(sendPacket);
+            return response;
+        });
+    }
 
-            byte[] receiveBuffer = new byte[UDP_MAX_SIZE];
-            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            socket.receive(receivePacket);
+    private CompletableFuture<Message> tryResolve(Message query, byte[] queryData, List<UpstreamServer> servers, int index) {
+        if (index >= servers.size())
+            return CompletableFuture.completedFuture(null);
 
-            byte[] responseData = new byte[receivePacket.getLength()];
-            System.arraycopy(receivePacket.getData(), 0, responseData, 0, receivePacket.getLength());
+        CompletableFuture<Message> attempt = attempt(query, queryData, servers.get(index));
+        if (hedgeBudget.isEnabled() && index + 1 < servers.size())
+            return hedge(query, queryData, servers, index, attempt);
 
-            return new Message(responseData);
-        }
+        return attempt.thenCompose(response -> {
+            if (response != null)
+                return CompletableFuture.completedFuture(response);
+
+            return tryResolve(query, queryData, servers, index + 1);
+        });
     }
 
-    private Message resolveTcp(Message query, String server) throws IOException {
-        InetAddress address = parseAddress(server);
-        int port = parsePort(server, DNS_PORT);
+    /**
+     * Waits for the attempt on servers[index] and, if it is still pending after
+     * the hedge delay and the budget allows, also queries servers[index + 1].
+     * The first answer wins; when every attempt sent fails, the next untried
+     * server is queried the same way.
+     */
+    private CompletableFuture<Message> hedge(Message query, byte[] queryData, List<UpstreamServer> servers, int index,
+                                             CompletableFuture<Message> attempt) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        // hedge 발송과 첫 시도의 실패 중 먼저 일어난 쪽이 이후 흐름을 정함
+        AtomicBoolean decided = new AtomicBoolean(false);
+        AtomicInteger pending = new AtomicInteger(1);
+
+        attempt.thenAccept(response -> {
+            if (response != null)
+                result.complete(response);
+            else if (decided.compareAndSet(false, true))
+                continueWith(tryResolve(query, queryData, servers, index + 1), result);
+            else if (pending.decrementAndGet() == 0)
+                continueWith(tryResolve(query, queryData, servers, index + 2), result);
+        });
+
+        long delay = getHedgeDelayMs(servers.get(index));
+        CompletableFuture.runAsync(() -> {
+            if (attempt.isDone() || !hedgeBudget.tryAcquire())
+                return;
+
+            pending.incrementAndGet();
+            if (!decided.compareAndSet(false, true)) {
+                pending.decrementAndGet();
+                hedgeBudget.release();
+                return;
+            }
 
-        try (Socket socket = new Socket()) {
-            socket.setSoTimeout(TIMEOUT_MS);
-            socket.connect(new InetSocketAddress(address, port), TIMEOUT_MS);
+            UpstreamServer next = servers.get(index + 1);
+            hedgeCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: No answer from {} in {}ms, hedging to {}", servers.get(index).getName(), delay, next.getName());
 
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            DataInputStream in = new DataInputStream(socket.getInputStream());
+            attempt(query, queryData, next).thenAccept(response -> {
+                if (response != null) {
+                    if (result.complete(response))
+                        hedgeWinCount.incrementAndGet();
+                } else if (pending.decrementAndGet() == 0) {
+                    continueWith(tryResolve(query, queryData, servers, index + 2), result);
+                }
+            });
+        }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
 
-            byte[] queryData = query.toWire();
-            out.writeShort(queryData.length);
-            out.write(queryData);
-            out.flush();
+        return result;
+    }
 
-            int responseLength = in.readUnsignedShort();
-            byte[] responseData = new byte[responseLength];
-            in.readFully(responseData);
+    private static void continueWith(CompletableFuture<Message> next, CompletableFuture<Message> result) {
+        next.whenComplete((response, error) -> {
+            if (error != null)
+                result.completeExceptionally(error);
+            else
+                result.complete(response);
+        });
+    }
 
-            return new Message(responseData);
-        }
+    private long getHedgeDelayMs(UpstreamServer server) {
+        if (hedgeDelayMs > 0)
+            return hedgeDelayMs;
+
+        long p95 = server.getRttP95Micros();
+        if (p95 < 0)
+            return DEFAULT_HEDGE_DELAY_MS;
+
+        return Math.max(MIN_HEDGE_DELAY_MS, Math.min(maxRtoMs, (p95 + 999) / 1000));
     }
 
-    private InetAddress parseAddress(String server) throws UnknownHostException {
-        String host;
+    // 실패는 로그를 남기고 null로 완료
+    private CompletableFuture<Message> attempt(Message query, byte[] queryData, UpstreamServer server) {
+        return resolveServer(query, queryData, server).handle((response, error) -> {
+            if (error != null)
+                logger.warn("logpresso dnsproxy: DNS query failed for server {}: {}", server, toIOException(error).getMessage());
 
-        if (server.startsWith("[")) {
-            // IPv6 형식: [::1] 또는 [::1]:53
-            int closeBracket = server.indexOf(']');
-            if (closeBracket == -1)
-                host = server.substring(1);
-            else
-                host = server.substring(1, closeBracket);
-        } else if (server.contains(":") && server.indexOf(':') != server.lastIndexOf(':')) {
-            // 순수 IPv6 주소 (콜론이 여러 개): 2001:db8::1
-            host = server;
-        } else if (server.contains(":")) {
-            // IPv4:port 형식: 8.8.8.8:53
-            host = server.substring(0, server.lastIndexOf(':'));
-        } else {
-            // 순수 IPv4 주소: 8.8.8.8
-            host = server;
+            return response;
+        });
+    }
+
+    private CompletableFuture<Message> resolveServer(Message query, byte[] queryData, UpstreamServer server) {
+        InetSocketAddress address;
+        try {
+            address = server.getAddress();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
 
-        return InetAddress.getByName(host);
-    }
+        return queryUdp(queryData, server, address).whenComplete((responseData, error) -> {
+            if (error != null)
+                recordFailure(server);
+        }).thenCompose(responseData -> {
+            Message response;
+            try {
+                response = new Message(responseData);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
 
-    private int parsePort(String server, int defaultPort) {
-        if (server.startsWith("[")) {
-            // IPv6 형식: [::1]:53
-            int closeBracket = server.indexOf(']');
-            if (closeBracket != -1 && closeBracket + 1 < server.length() && server.charAt(closeBracket + 1) == ':') {
+            if (!response.getHeader().getFlag(Flags.TC))
+                return CompletableFuture.completedFuture(response);
+
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Response truncated, retrying with TCP: {}", server);
+
+            // TCP 응답 시간과 실패도 UDP와 같은 서버 통계에 반영
+            long start = System.nanoTime();
+            return tcp.query(queryData, address).whenComplete((tcpResponseData, error) -> {
+                if (error != null)
+                    recordFailure(server);
+                else
+                    recordSuccess(server, (System.nanoTime() - start) / 1000);
+            }).thenApply(tcpResponseData -> {
                 try {
-                    return Integer.parseInt(server.substring(closeBracket + 2));
-                } catch (NumberFormatException e) {
-                    return defaultPort;
+                    return new Message(tcpResponseData);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
                 }
+            });
+        });
+    }
+
+    /**
+     * Sends the query over UDP and, each time the server's RTO passes without
+     * an answer, sends it again with a new transaction ID, doubling the wait.
+     * Every transmission stays pending until the attempt deadline, which is
+     * never later than the maximum RTO, and the first answer wins.
+     */
+    private CompletableFuture<byte[]> queryUdp(byte[] queryData, UpstreamServer server, InetSocketAddress address) {
+        long rto = server.getRtoMillis();
+        long budget = 0;
+        long wait = rto;
+        for (int i = 0; i <= retransmits && budget < maxRtoMs; i++, wait *= 2)
+            budget += wait;
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        long deadline = System.nanoTime() + Math.min(budget, maxRtoMs) * 1_000_000;
+        transmit(queryData, server, address, result, 0, rto, deadline);
+        return result;
+    }
+
+    private void transmit(byte[] queryData, UpstreamServer server, InetSocketAddress address,
+                          CompletableFuture<byte[]> result, int count, long wait, long deadline) {
+        // 전송마다 ID가 다르므로 재전송한 질의의 RTT도 모호하지 않음 (TC 이후 TCP 재시도 시간은 제외)
+        long start = System.nanoTime();
+        long remainingMs = Math.max(1, (deadline - start) / 1_000_000);
+        udp.query(queryData, address, remainingMs).whenComplete((responseData, error) -> {
+            // 모든 전송이 같은 마감 시각을 쓰므로 타임아웃이면 시도 전체가 끝난 것
+            if (error != null)
+                result.completeExceptionally(error);
+            else if (result.complete(responseData))
+                recordSuccess(server, (System.nanoTime() - start) / 1000);
+        });
+
+        if (count >= retransmits || start + wait * 1_000_000 >= deadline)
+            return;
+
+        CompletableFuture.runAsync(() -> {
+            if (result.isDone())
+                return;
+
+            server.recordRetransmit();
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: No answer from {} in {}ms, retransmitting", server.getName(), wait);
+
+            transmit(queryData, server, address, result, count + 1, wait * 2, deadline);
+        }, CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS));
+    }
+
+    private void recordSuccess(UpstreamServer server, long rttMicros) {
+        if (server.recordSuccess(rttMicros))
+            logger.info("logpresso dnsproxy: Circuit breaker closed for DNS server {}", server.getName());
+    }
+
+    private void recordFailure(UpstreamServer server) {
+        if (server.recordFailure())
+            logger.warn("logpresso dnsproxy: Circuit breaker opened for DNS server {}, skipping it until it answers a health probe", server.getName());
+    }
+
+    /**
+     * Sends a health probe (root NS query) to every server whose circuit
+     * breaker is open; an answer closes the breaker. Meant to be called
+     * periodically.
+     */
+    public void probe() {
+        for (List<UpstreamServer> servers : List.of(primaryServers, fallbackServers)) {
+            for (UpstreamServer server : servers) {
+                if (server.isOpen() && server.tryStartProbe())
+                    probe(server);
             }
-        } else if (server.contains(":") && server.indexOf(':') == server.lastIndexOf(':')) {
-            // IPv4:port 형식 (콜론이 하나만 있음)
-            try {
-                return Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
-            } catch (NumberFormatException e) {
-                return defaultPort;
+        }
+    }
+
+    private void probe(UpstreamServer server) {
+        InetSocketAddress address;
+        try {
+            address = server.getAddress();
+        } catch (IOException e) {
+            server.finishProbe();
+            return;
+        }
+
+        long start = System.nanoTime();
+        udp.query(probeQuery, address).whenComplete((responseData, error) -> {
+            server.finishProbe();
+            if (error != null) {
+                if (logger.isDebugEnabled())
+                    logger.debug("logpresso dnsproxy: Health probe failed for DNS server {}: {}", server.getName(), toIOException(error).getMessage());
+            } else if (server.recordSuccess((System.nanoTime() - start) / 1000)) {
+                logger.info("logpresso dnsproxy: DNS server {} answered health probe, circuit breaker closed", server.getName());
+            }
+        });
+    }
+
+    /**
+     * Number of upstream servers whose circuit breaker is open.
+     */
+    public int getOpenCount() {
+        int count = 0;
+        for (List<UpstreamServer> servers : List.of(primaryServers, fallbackServers)) {
+            for (UpstreamServer server : servers) {
+                if (server.isOpen())
+                    count++;
             }
         }
 
-        return defaultPort;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        udp.close();
+        tcp.close();
+    }
+
+    private static IOException toIOException(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null)
+            t = t.getCause();
+
+        if (t instanceof TimeoutException)
+            return new SocketTimeoutException("Upstream query timed out");
+        if (t instanceof IOException)
+            return (IOException) t;
+
+        return new IOException(t);
     }
 
 }
@@ -0,0 +1,112 @@
+package com.logpresso.dnsproxy.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides the order in which the servers of a list are tried for a query,
+ * leaving out servers whose circuit breaker is open. The ordered policy keeps
+ * the configured order. The rtt policy tries the server with the lowest
+ * expected cost first and the rest by cost, except for a small share of
+ * queries that start with another server so its RTT estimate stays fresh.
+ */
+class UpstreamSelector {
+
+    static final String ORDERED = "ordered";
+    static final String RTT = "rtt";
+
+    // 가장 빠른 서버가 아닌 서버로 먼저 보내는 질의 비율
+    static final int EXPLORE_PERCENT = 5;
+
+    private final String policy;
+    private final AtomicLong exploreCount = new AtomicLong(0);
+
+    UpstreamSelector(String policy) {
+        this.policy = RTT.equals(policy) ? RTT : ORDERED;
+    }
+
+    String getPolicy() {
+        return policy;
+    }
+
+    long getExploreCount() {
+        return exploreCount.get();
+    }
+
+    List<UpstreamServer> order(List<UpstreamServer> servers) {
+        servers = available(servers);
+        if (policy.equals(ORDERED) || servers.size() < 2)
+            return servers;
+
+        return order(servers, ThreadLocalRandom.current().nextInt(100));
+    }
+
+    static boolean hasAvailable(List<UpstreamServer> servers) {
+        for (UpstreamServer server : servers) {
+            if (!server.isOpen())
+                return true;
+        }
+
+        return false;
+    }
+
+    // breaker가 열린 서버가 없으면 목록을 그대로 돌려줌
+    static List<UpstreamServer> available(List<UpstreamServer> servers) {
+        int open = 0;
+        for (UpstreamServer server : servers) {
+            if (server.isOpen())
+                open++;
+        }
+
+        if (open == 0)
+            return servers;
+
+        List<UpstreamServer> available = new ArrayList<>(servers.size() - open);
+        for (UpstreamServer server : servers) {
+            if (!server.isOpen())
+                available.add(server);
+        }
+
+        return available;
+    }
+
+    /**
+     * Orders by score; a roll below EXPLORE_PERCENT moves one of the slower
+     * servers, picked by the roll, to the front.
+     */
+    List<UpstreamServer> order(List<UpstreamServer> servers, int roll) {
+        int n = servers.size();
+        UpstreamServer[] ordered = servers.toArray(new UpstreamServer[0]);
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++)
+            scores[i] = ordered[i].getScore();
+
+        // 서버 수가 적으므로 삽입 정렬, 동점이면 설정 순서 유지
+        for (int i = 1; i < n; i++) {
+            UpstreamServer server = ordered[i];
+            double score = scores[i];
+            int j = i - 1;
+            for (; j >= 0 && scores[j] > score; j--) {
+                ordered[j + 1] = ordered[j];
+                scores[j + 1] = scores[j];
+            }
+
+            ordered[j + 1] = server;
+            scores[j + 1] = score;
+        }
+
+        if (roll < EXPLORE_PERCENT) {
+            int explore = 1 + roll % (n - 1);
+            UpstreamServer server = ordered[explore];
+            System.arraycopy(ordered, 0, ordered, 1, explore);
+            ordered[0] = server;
+            exploreCount.incrementAndGet();
+        }
+
+        return Arrays.asList(ordered);
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.logpresso.dnsproxy.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Upstream DNS server with its smoothed round-trip time and failure rate.
+ * Both are exponentially weighted moving averages like BIND's SRTT, so a
+ * server that turns slow or starts dropping queries loses preference within
+ * a few queries and wins it back once it recovers. The 95th percentile of
+ * recent RTTs is kept for hedging, and a retransmission timeout is derived
+ * from separate SRTT and RTTVAR estimates as in TCP (RFC 6298). A circuit
+ * breaker opens after a number of consecutive failures and stays open until
+ * the server answers again, usually a health probe.
+ */
+class UpstreamServer {
+
+    private static final int DNS_PORT = 53;
+
+    // 새 측정값의 가중치 (BIND와 같이 30%)
+    private static final double EWMA_WEIGHT = 0.3;
+
+    // p95 계산에 쓰는 최근 RTT 표본 수와 다시 계산하는 간격
+    private static final int RTT_SAMPLES = 64;
+    private static final int PERCENTILE_INTERVAL = 8;
+
+    // RFC 6298 권장값
+    private static final double RTO_ALPHA = 0.125;
+    private static final double RTO_BETA = 0.25;
+    private static final long INITIAL_RTO_MS = 1000;
+
+    private final String name;
+    private final int port;
+    private final long failurePenaltyMicros;
+    private final long minRtoMicros;
+    private final long maxRtoMicros;
+    private final int failureThreshold;
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    private volatile InetSocketAddress address;
+
+    // 잠금 안에서만 갱신
+    private volatile double srttMicros;
+    private volatile double failureRate;
+    private volatile long queryCount;
+    private volatile long failureCount;
+    private volatile long tripCount;
+    private volatile boolean open;
+    private int consecutiveFailures;
+    private final long[] rttSamples = new long[RTT_SAMPLES];
+    private long sampleCount;
+    private volatile long rttP95Micros = -1;
+    private double rtoSrttMicros;
+    private double rttVarMicros;
+    private volatile long rtoMicros;
+    private volatile long retransmitCount;
+
+    // failureThreshold가 0이면 circuit breaker를 쓰지 않음
+    UpstreamServer(String name, long minRtoMs, long maxRtoMs, int failureThreshold) {
+        this.name = name;
+        this.port = parsePort(name, DNS_PORT);
+        this.failurePenaltyMicros = maxRtoMs * 1000;
+        this.minRtoMicros = minRtoMs * 1000;
+        this.maxRtoMicros = maxRtoMs * 1000;
+        this.failureThreshold = failureThreshold;
+        this.rtoMicros = clampRto(INITIAL_RTO_MS * 1000);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    InetSocketAddress getAddress() throws UnknownHostException {
+        InetSocketAddress a = address;
+        if (a == null) {
+            a = new InetSocketAddress(parseAddress(name), port);
+            address = a;
+        }
+
+        return a;
+    }
+
+    /**
+     * Records an answer. Returns true if this closed the circuit breaker.
+     */
+    synchronized boolean recordSuccess(long rttMicros) {
+        srttMicros = queryCount == 0 ? rttMicros : srttMicros + EWMA_WEIGHT * (rttMicros - srttMicros);
+        failureRate -= EWMA_WEIGHT * failureRate;
+        queryCount++;
+        consecutiveFailures = 0;
+
+        if (sampleCount == 0) {
+            rtoSrttMicros = rttMicros;
+            rttVarMicros = rttMicros / 2.0;
+        } else {
+            rttVarMicros += RTO_BETA * (Math.abs(rtoSrttMicros - rttMicros) - rttVarMicros);
+            rtoSrttMicros += RTO_ALPHA * (rttMicros - rtoSrttMicros);
+        }
+        rtoMicros = clampRto((long) (rtoSrttMicros + 4 * rttVarMicros));
+
+        // 정렬 비용을 줄이려고 처음 몇 개 이후에는 PERCENTILE_INTERVAL개마다 다시 계산
+        rttSamples[(int) (sampleCount++ % RTT_SAMPLES)] = rttMicros;
+        if (sampleCount <= PERCENTILE_INTERVAL || sampleCount % PERCENTILE_INTERVAL == 0)
+            rttP95Micros = percentile(95);
+
+        boolean closed = open;
+        open = false;
+        return closed;
+    }
+
+    /**
+     * Records a query that got no answer. Returns true if this opened the
+     * circuit breaker.
+     */
+    synchronized boolean recordFailure() {
+        // 응답이 없으면 타임아웃만큼 기다린 것으로 보고 RTT에도 반영
+        srttMicros = queryCount == 0 ? failurePenaltyMicros : srttMicros + EWMA_WEIGHT * (failurePenaltyMicros - srttMicros);
+        failureRate += EWMA_WEIGHT * (1 - failureRate);
+        queryCount++;
+        failureCount++;
+        consecutiveFailures++;
+
+        // 다음 응답으로 다시 계산할 때까지 RTO를 두 배로 늘림 (RFC 6298 5.5)
+        rtoMicros = clampRto(rtoMicros * 2);
+
+        if (open || failureThreshold <= 0 || consecutiveFailures < failureThreshold)
+            return false;
+
+        open = true;
+        tripCount++;
+        return true;
+    }
+
+    private long clampRto(long micros) {
+        return Math.max(minRtoMicros, Math.min(maxRtoMicros, micros));
+    }
+
+    /**
+     * Retransmission timeout in milliseconds: SRTT + 4 * RTTVAR within the
+     * configured bounds, 1 second before the first answer.
+     */
+    long getRtoMillis() {
+        return (rtoMicros + 999) / 1000;
+    }
+
+    synchronized void recordRetransmit() {
+        retransmitCount++;
+    }
+
+    long getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    /**
+     * True while the circuit breaker is open and queries should skip this server.
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    // 응답이 늦어도 probe가 겹치지 않도록 함
+    boolean tryStartProbe() {
+        return probing.compareAndSet(false, true);
+    }
+
+    void finishProbe() {
+        probing.set(false);
+    }
+
+    /**
+     * Expected cost of a query in microseconds: the smoothed RTT plus the
+     * timeout weighted by the failure rate. Servers never queried score 0 so
+     * they get measured first.
+     */
+    double getScore() {
+        return srttMicros + failureRate * failurePenaltyMicros;
+    }
+
+    private long percentile(int percent) {
+        int n = (int) Math.min(sampleCount, RTT_SAMPLES);
+        long[] sorted = Arrays.copyOf(rttSamples, n);
+        Arrays.sort(sorted);
+        return sorted[(n * percent + 99) / 100 - 1];
+    }
+
+    /**
+     * 95th percentile of the last answered queries' RTT in microseconds, or
+     * -1 if the server has not answered yet. Timeouts are not included.
+     */
+    long getRttP95Micros() {
+        return rttP95Micros;
+    }
+
+    double getSrttMillis() {
+        return srttMicros / 1000;
+    }
+
+    double getFailureRate() {
+        return failureRate;
+    }
+
+    long getQueryCount() {
+        return queryCount;
+    }
+
+    long getFailureCount() {
+        return failureCount;
+    }
+
+    long getTripCount() {
+        return tripCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (srtt=%.1fms, p95=%.1fms, rto=%dms, failure=%.1f%%, queries=%d, failures=%d, retransmits=%d, breaker=%s, trips=%d)",
+                name, getSrttMillis(), Math.max(0, rttP95Micros) / 1000.0, getRtoMillis(), failureRate * 100, queryCount,
+                failureCount, retransmitCount, open ? "open" : "closed", tripCount);
+    }
+
+    static InetAddress parseAddress(String server) throws UnknownHostException {
+        String host;
+
+        if (server.startsWith("[")) {
+            // IPv6 형식: [::1] 또는 [::1]:53
+            int closeBracket = server.indexOf(']');
+            if (closeBracket == -1)
+                host = server.substring(1);
+            else
+                host = server.substring(1, closeBracket);
+        } else if (server.contains(":") && server.indexOf(':') != server.lastIndexOf(':')) {
+            // 순수 IPv6 주소 (콜론이 여러 개): 2001:db8::1
+            host = server;
+        } else if (server.contains(":")) {
+            // IPv4:port 형식: 8.8.8.8:53
+            host = server.substring(0, server.lastIndexOf(':'));
+        } else {
+            // 순수 IPv4 주소: 8.8.8.8
+            host = server;
+        }
+
+        return InetAddress.getByName(host);
+    }
+
+    static int parsePort(String server, int defaultPort) {
+        if (server.startsWith("[")) {
+            // IPv6 형식: [::1]:53
+            int closeBracket = server.indexOf(']');
+            if (closeBracket != -1 && closeBracket + 1 < server.length() && server.charAt(closeBracket + 1) == ':') {
+                try {
+                    return Integer.parseInt(server.substring(closeBracket + 2));
+                } catch (NumberFormatException e) {
+                    return defaultPort;
+                }
+            }
+        } else if (server.contains(":") && server.indexOf(':') == server.lastIndexOf(':')) {
+            // IPv4:port 형식 (콜론이 하나만 있음)
+            try {
+                return Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
+            } catch (NumberFormatException e) {
+                return defaultPort;
+            }
+        }
+
+        return defaultPort;
+    }
+
+}
@@ -11,6 +11,33 @@ public final class ResolvedConfig {
     private final boolean dnsStubListener;
     private final List<String> dnsStubListenerExtra;
     private final String bindAddress;
+    private final boolean udpEventLoop;
+    private final boolean virtualThreads;
+    private final int ednsPayloadSize;
+    private final int tcpMaxConnections;
+    private final long tcpIdleTimeoutSec;
+    private final boolean reusePort;
+    private final int reusePortListeners;
+    private final long staleRetentionSec;
+    private final long negativeCacheMinTtlSec;
+    private final long negativeCacheMaxTtlSec;
+    private final int prefetchThreshold;
+    private final int prefetchMinHits;
+    private final int cacheShards;
+    private final String cachePolicy;
+    private final long cacheMaxBytes;
+    private final String cacheStorage;
+    private final String cacheSnapshot;
+    private final long cacheSnapshotIntervalSec;
+    private final String upstreamSelection;
+    private final int upstreamFailureThreshold;
+    private final long upstreamProbeIntervalSec;
+    private final int upstreamHedgeBudget;
+    private final int upstreamHedgeDelayMs;
+    private final int upstreamRtoMinMs;
+    private final int upstreamRtoMaxMs;
+    private final int upstreamRetransmits;
+    private final long statsIntervalSec;
     private final String warning;
 
     private ResolvedConfig(Builder builder, String warning) {
@@ -20,6 +47,35 @@ public final class ResolvedConfig {
         this.dnsStubListener = builder.dnsStubListener;
         this.dnsStubListenerExtra = List.copyOf(builder.dnsStubListenerExtra);
         this.bindAddress = builder.bindAddress;
+        this.udpEventLoop = builder.udpEventLoop;
+        this.virtualThreads = builder.virtualThreads;
+        this.ednsPayloadSize = builder.ednsPayloadSize;
+        this.tcpMaxConnections = builder.tcpMaxConnections;
+        this.tcpIdleTimeoutSec = builder.tcpIdleTimeoutSec;
+        this.reusePort = builder.reusePort;
+        this.reusePortListeners = builder.reusePortListeners > 0
+                ? builder.reusePortListeners
+                : Runtime.getRuntime().availableProcessors();
+        this.staleRetentionSec = builder.staleRetentionSec;
+        this.negativeCacheMinTtlSec = builder.negativeCacheMinTtlSec;
+        this.negativeCacheMaxTtlSec = builder.negativeCacheMaxTtlSec;
+        this.prefetchThreshold = builder.prefetchThreshold;
+        this.prefetchMinHits = builder.prefetchMinHits;
+        this.cacheShards = builder.cacheShards;
+        this.cachePolicy = builder.cachePolicy;
+        this.cacheMaxBytes = builder.cacheMaxBytes;
+        this.cacheStorage = builder.cacheStorage;
+        this.cacheSnapshot = builder.cacheSnapshot;
+        this.cacheSnapshotIntervalSec = builder.cacheSnapshotIntervalSec;
+        this.upstreamSelection = builder.upstreamSelection;
+        this.upstreamFailureThreshold = builder.upstreamFailureThreshold;
+        this.upstreamProbeIntervalSec = builder.upstreamProbeIntervalSec;
+        this.upstreamHedgeBudget = builder.upstreamHedgeBudget;
+        this.upstreamHedgeDelayMs = builder.upstreamHedgeDelayMs;
+        this.upstreamRtoMinMs = builder.upstreamRtoMinMs;
+        this.upstreamRtoMaxMs = builder.upstreamRtoMaxMs;
+        this.upstreamRetransmits = builder.upstreamRetransmits;
+        this.statsIntervalSec = builder.statsIntervalSec;
         this.warning = warning;
     }
 
@@ -51,6 +107,114 @@ public final class ResolvedConfig {
         return bindAddress;
     }
 
+    public boolean isUdpEventLoop() {
+        return udpEventLoop;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    public int getTcpMaxConnections() {
+        return tcpMaxConnections;
+    }
+
+    public long getTcpIdleTimeoutSec() {
+        return tcpIdleTimeoutSec;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public int getReusePortListeners() {
+        return reusePortListeners;
+    }
+
+    public long getStaleRetentionSec() {
+        return staleRetentionSec;
+    }
+
+    public long getNegativeCacheMinTtlSec() {
+        return negativeCacheMinTtlSec;
+    }
+
+    public long getNegativeCacheMaxTtlSec() {
+        return negativeCacheMaxTtlSec;
+    }
+
+    public int getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    public int getPrefetchMinHits() {
+        return prefetchMinHits;
+    }
+
+    public int getCacheShards() {
+        return cacheShards;
+    }
+
+    public String getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public String getCacheStorage() {
+        return cacheStorage;
+    }
+
+    public String getCacheSnapshot() {
+        return cacheSnapshot;
+    }
+
+    public long getCacheSnapshotIntervalSec() {
+        return cacheSnapshotIntervalSec;
+    }
+
+    public String getUpstreamSelection() {
+        return upstreamSelection;
+    }
+
+    public int getUpstreamFailureThreshold() {
+        return upstreamFailureThreshold;
+    }
+
+    public long getUpstreamProbeIntervalSec() {
+        return upstreamProbeIntervalSec;
+    }
+
+    public int getUpstreamHedgeBudget() {
+        return upstreamHedgeBudget;
+    }
+
+    public int getUpstreamHedgeDelayMs() {
+        return upstreamHedgeDelayMs;
+    }
+
+    public int getUpstreamRtoMinMs() {
+        return upstreamRtoMinMs;
+    }
+
+    public int getUpstreamRtoMaxMs() {
+        return upstreamRtoMaxMs;
+    }
+
+    public int getUpstreamRetransmits() {
+        return upstreamRetransmits;
+    }
+
+    public long getStatsIntervalSec() {
+        return statsIntervalSec;
+    }
+
     public String getWarning() {
         return warning;
     }
@@ -68,6 +232,33 @@ public final class ResolvedConfig {
                 ", dnsStubListener=" + dnsStubListener +
                 ", dnsStubListenerExtra=" + dnsStubListenerExtra +
                 ", bindAddress=" + bindAddress +
+                ", udpEventLoop=" + udpEventLoop +
+                ", virtualThreads=" + virtualThreads +
+                ", ednsPayloadSize=" + ednsPayloadSize +
+                ", tcpMaxConnections=" + tcpMaxConnections +
+                ", tcpIdleTimeoutSec=" + tcpIdleTimeoutSec +
+                ", reusePort=" + reusePort +
+                ", reusePortListeners=" + reusePortListeners +
+                ", staleRetentionSec=" + staleRetentionSec +
+                ", negativeCacheMinTtlSec=" + negativeCacheMinTtlSec +
+                ", negativeCacheMaxTtlSec=" + negativeCacheMaxTtlSec +
+                ", prefetchThreshold=" + prefetchThreshold +
+                ", prefetchMinHits=" + prefetchMinHits +
+                ", cacheShards=" + cacheShards +
+                ", cachePolicy=" + cachePolicy +
+                ", cacheMaxBytes=" + cacheMaxBytes +
+                ", cacheStorage=" + cacheStorage +
+                ", cacheSnapshot=" + cacheSnapshot +
+                ", cacheSnapshotIntervalSec=" + cacheSnapshotIntervalSec +
+                ", upstreamSelection=" + upstreamSelection +
+                ", upstreamFailureThreshold=" + upstreamFailureThreshold +
+                ", upstreamProbeIntervalSec=" + upstreamProbeIntervalSec +
+                ", upstreamHedgeBudget=" + upstreamHedgeBudget +
+                ", upstreamHedgeDelayMs=" + upstreamHedgeDelayMs +
+                ", upstreamRtoMinMs=" + upstreamRtoMinMs +
+                ", upstreamRtoMaxMs=" + upstreamRtoMaxMs +
+                ", upstreamRetransmits=" + upstreamRetransmits +
+                ", statsIntervalSec=" + statsIntervalSec +
                 '}';
     }
 
@@ -78,6 +269,33 @@ public final class ResolvedConfig {
         private boolean dnsStubListener = true;
         private List<String> dnsStubListenerExtra = new ArrayList<>();
         private String bindAddress = "127.0.0.53";
+        private boolean udpEventLoop = false;
+        private boolean virtualThreads = false;
+        private int ednsPayloadSize = 1232;
+        private int tcpMaxConnections = 1000;
+        private long tcpIdleTimeoutSec = 10;
+        private boolean reusePort = false;
+        private int reusePortListeners = 0;
+        private long staleRetentionSec = 0;
+        private long negativeCacheMinTtlSec = 0;
+        private long negativeCacheMaxTtlSec = 3600;
+        private int prefetchThreshold = 0;
+        private int prefetchMinHits = 3;
+        private int cacheShards = 0;
+        private String cachePolicy = "lru";
+        private long cacheMaxBytes = 0;
+        private String cacheStorage = "heap";
+        private String cacheSnapshot = "";
+        private long cacheSnapshotIntervalSec = 300;
+        private String upstreamSelection = "ordered";
+        private int upstreamFailureThreshold = 3;
+        private long upstreamProbeIntervalSec = 5;
+        private int upstreamHedgeBudget = 0;
+        private int upstreamHedgeDelayMs = 0;
+        private int upstreamRtoMinMs = 50;
+        private int upstreamRtoMaxMs = 2000;
+        private int upstreamRetransmits = 2;
+        private long statsIntervalSec = 0;
 
         private Builder() {}
 
@@ -111,6 +329,141 @@ public final class ResolvedConfig {
             return this;
         }
 
+        public Builder udpEventLoop(boolean udpEventLoop) {
+            this.udpEventLoop = udpEventLoop;
+            return this;
+        }
+
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public Builder ednsPayloadSize(int ednsPayloadSize) {
+            this.ednsPayloadSize = ednsPayloadSize;
+            return this;
+        }
+
+        public Builder tcpMaxConnections(int tcpMaxConnections) {
+            this.tcpMaxConnections = tcpMaxConnections;
+            return this;
+        }
+
+        public Builder tcpIdleTimeoutSec(long tcpIdleTimeoutSec) {
+            this.tcpIdleTimeoutSec = tcpIdleTimeoutSec;
+            return this;
+        }
+
+        public Builder reusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        public Builder reusePortListeners(int reusePortListeners) {
+            this.reusePortListeners = reusePortListeners;
+            return this;
+        }
+
+        public Builder staleRetentionSec(long staleRetentionSec) {
+            this.staleRetentionSec = staleRetentionSec;
+            return this;
+        }
+
+        public Builder negativeCacheMinTtlSec(long negativeCacheMinTtlSec) {
+            this.negativeCacheMinTtlSec = negativeCacheMinTtlSec;
+            return this;
+        }
+
+        public Builder negativeCacheMaxTtlSec(long negativeCacheMaxTtlSec) {
+            this.negativeCacheMaxTtlSec = negativeCacheMaxTtlSec;
+            return this;
+        }
+
+        public Builder prefetchThreshold(int prefetchThreshold) {
+            this.prefetchThreshold = prefetchThreshold;
+            return this;
+        }
+
+        public Builder prefetchMinHits(int prefetchMinHits) {
+            this.prefetchMinHits = prefetchMinHits;
+            return this;
+        }
+
+        public Builder cacheShards(int cacheShards) {
+            this.cacheShards = cacheShards;
+            return this;
+        }
+
+        public Builder cachePolicy(String cachePolicy) {
+            this.cachePolicy = cachePolicy;
+            return this;
+        }
+
+        public Builder cacheMaxBytes(long cacheMaxBytes) {
+            this.cacheMaxBytes = cacheMaxBytes;
+            return this;
+        }
+
+        public Builder cacheStorage(String cacheStorage) {
+            this.cacheStorage = cacheStorage;
+            return this;
+        }
+
+        public Builder cacheSnapshot(String cacheSnapshot) {
+            this.cacheSnapshot = cacheSnapshot;
+            return this;
+        }
+
+        public Builder cacheSnapshotIntervalSec(long cacheSnapshotIntervalSec) {
+            this.cacheSnapshotIntervalSec = cacheSnapshotIntervalSec;
+            return this;
+        }
+
+        public Builder upstreamSelection(String upstreamSelection) {
+            this.upstreamSelection = upstreamSelection;
+            return this;
+        }
+
+        public Builder upstreamFailureThreshold(int upstreamFailureThreshold) {
+            this.upstreamFailureThreshold = upstreamFailureThreshold;
+            return this;
+        }
+
+        public Builder upstreamProbeIntervalSec(long upstreamProbeIntervalSec) {
+            this.upstreamProbeIntervalSec = upstreamProbeIntervalSec;
+            return this;
+        }
+
+        public Builder upstreamHedgeBudget(int upstreamHedgeBudget) {
+            this.upstreamHedgeBudget = upstreamHedgeBudget;
+            return this;
+        }
+
+        public Builder upstreamHedgeDelayMs(int upstreamHedgeDelayMs) {
+            this.upstreamHedgeDelayMs = upstreamHedgeDelayMs;
+            return this;
+        }
+
+        public Builder upstreamRtoMinMs(int upstreamRtoMinMs) {
+            this.upstreamRtoMinMs = upstreamRtoMinMs;
+            return this;
+        }
+
+        public Builder upstreamRtoMaxMs(int upstreamRtoMaxMs) {
+            this.upstreamRtoMaxMs = upstreamRtoMaxMs;
+            return this;
+        }
+
+        public Builder upstreamRetransmits(int upstreamRetransmits) {
+            this.upstreamRetransmits = upstreamRetransmits;
+            return this;
+        }
+
+        public Builder statsIntervalSec(long statsIntervalSec) {
+            this.statsIntervalSec = statsIntervalSec;
+            return this;
+        }
+
         public boolean hasDns() {
             return !dns.isEmpty();
         }
@@ -22,10 +22,28 @@ public class ResolvedConfigParser {
 
     private static final String CONFIG_DROP_IN_DIR = "/etc/systemd/resolved.conf.d";
     private static final String RESOLV_CONF_PATH = "/etc/resolv.conf";
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    // upstream/클라이언트 UDP 수신 버퍼 크기
+    private static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+    private static final int DEFAULT_TCP_MAX_CONNECTIONS = 1000;
+    private static final long DEFAULT_TCP_IDLE_TIMEOUT_SEC = 10;
+    private static final long DEFAULT_CACHE_SNAPSHOT_INTERVAL_SEC = 300;
+    private static final long DEFAULT_NEGATIVE_CACHE_MAX_TTL_SEC = 3600;
+    private static final int DEFAULT_UPSTREAM_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_UPSTREAM_PROBE_INTERVAL_SEC = 5;
+    private static final int DEFAULT_UPSTREAM_RTO_MIN_MS = 50;
+    private static final int DEFAULT_UPSTREAM_RTO_MAX_MS = 2000;
+    private static final int DEFAULT_UPSTREAM_RETRANSMITS = 2;
+    private static final String CACHE_SNAPSHOT_FILE = "cache.snapshot";
 
     public ResolvedConfig parse(String configPath) {
         ResolvedConfig.Builder builder = ResolvedConfig.builder();
 
+        // systemd CacheDirectory=로 만든 디렉터리가 있으면 기본 스냅샷 위치로 사용
+        String cacheDirectory = System.getenv("CACHE_DIRECTORY");
+        if (cacheDirectory != null && !cacheDirectory.isEmpty())
+            builder.cacheSnapshot(Paths.get(cacheDirectory.split(":")[0], CACHE_SNAPSHOT_FILE).toString());
+
         // 1. Try networkctl status first (DHCP-provided DNS has highest priority)
         parseNetworkctl(builder);
 
@@ -138,6 +156,88 @@ public class ResolvedConfigParser {
                 if (!value.isEmpty())
                     builder.bindAddress(value);
                 break;
+            case "UDPEventLoop":
+                builder.udpEventLoop(parseBoolean(value, false));
+                break;
+            case "VirtualThreads":
+                builder.virtualThreads(parseBoolean(value, false));
+                break;
+            case "EDNSPayloadSize":
+                builder.ednsPayloadSize(parseEdnsPayloadSize(key, value));
+                break;
+            case "ReusePort":
+                builder.reusePort(parseBoolean(value, false));
+                break;
+            case "ReusePortListeners":
+                builder.reusePortListeners(parseInt(key, value, 0));
+                break;
+            case "TCPMaxConnections":
+                builder.tcpMaxConnections(parsePositiveInt(key, value, DEFAULT_TCP_MAX_CONNECTIONS));
+                break;
+            case "TCPIdleTimeoutSec":
+                builder.tcpIdleTimeoutSec(Math.max(1, parseSeconds(key, value, DEFAULT_TCP_IDLE_TIMEOUT_SEC)));
+                break;
+            case "StaleRetentionSec":
+                builder.staleRetentionSec(parseSeconds(key, value, 0));
+                break;
+            case "NegativeCacheMinTTLSec":
+                builder.negativeCacheMinTtlSec(parseSeconds(key, value, 0));
+                break;
+            case "NegativeCacheMaxTTLSec":
+                builder.negativeCacheMaxTtlSec(parseSeconds(key, value, DEFAULT_NEGATIVE_CACHE_MAX_TTL_SEC));
+                break;
+            case "PrefetchThreshold":
+                builder.prefetchThreshold(parsePercent(key, value, 0));
+                break;
+            case "PrefetchMinHits":
+                builder.prefetchMinHits(parseInt(key, value, 3));
+                break;
+            case "CacheShards":
+                builder.cacheShards(Math.max(0, parseInt(key, value, 0)));
+                break;
+            case "CacheMaxBytes":
+                builder.cacheMaxBytes(parseBytes(key, value, 0));
+                break;
+            case "CachePolicy":
+                builder.cachePolicy(parseCachePolicy(key, value));
+                break;
+            case "CacheStorage":
+                builder.cacheStorage(parseCacheStorage(key, value));
+                break;
+            case "CacheSnapshot":
+                // 빈 값은 스냅샷 사용 안 함
+                builder.cacheSnapshot(value);
+                break;
+            case "CacheSnapshotIntervalSec":
+                builder.cacheSnapshotIntervalSec(parseSeconds(key, value, DEFAULT_CACHE_SNAPSHOT_INTERVAL_SEC));
+                break;
+            case "UpstreamSelection":
+                builder.upstreamSelection(parseUpstreamSelection(key, value));
+                break;
+            case "UpstreamFailureThreshold":
+                builder.upstreamFailureThreshold(Math.max(0, parseInt(key, value, DEFAULT_UPSTREAM_FAILURE_THRESHOLD)));
+                break;
+            case "UpstreamProbeIntervalSec":
+                builder.upstreamProbeIntervalSec(Math.max(1, parseSeconds(key, value, DEFAULT_UPSTREAM_PROBE_INTERVAL_SEC)));
+                break;
+            case "UpstreamHedgeBudget":
+                builder.upstreamHedgeBudget(parsePercent(key, value, 0));
+                break;
+            case "UpstreamHedgeDelayMs":
+                builder.upstreamHedgeDelayMs(Math.max(0, parseInt(key, value, 0)));
+                break;
+            case "UpstreamRtoMinMs":
+                builder.upstreamRtoMinMs(Math.max(1, parseInt(key, value, DEFAULT_UPSTREAM_RTO_MIN_MS)));
+                break;
+            case "UpstreamRtoMaxMs":
+                builder.upstreamRtoMaxMs(Math.max(1, parseInt(key, value, DEFAULT_UPSTREAM_RTO_MAX_MS)));
+                break;
+            case "UpstreamRetransmits":
+                builder.upstreamRetransmits(Math.max(0, parseInt(key, value, DEFAULT_UPSTREAM_RETRANSMITS)));
+                break;
+            case "StatsIntervalSec":
+                builder.statsIntervalSec(parseSeconds(key, value, 0));
+                break;
             default:
                 logger.warn("logpresso dnsproxy: Unknown config key: {}", key);
                 break;
@@ -163,6 +263,162 @@ public class ResolvedConfigParser {
                value.equals("1");
     }
 
+    private int parseInt(String key, String value, int defaultValue) {
+        if (value.isEmpty())
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warn("logpresso dnsproxy: Invalid number for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    private int parsePositiveInt(String key, String value, int defaultValue) {
+        int n = parseInt(key, value, defaultValue);
+        if (n <= 0) {
+            logger.warn("logpresso dnsproxy: {} must be positive: {}", key, value);
+            return defaultValue;
+        }
+
+        return n;
+    }
+
+    private int parseEdnsPayloadSize(String key, String value) {
+        int size = parseInt(key, value, DEFAULT_EDNS_PAYLOAD_SIZE);
+        if (size < 512 || size > MAX_EDNS_PAYLOAD_SIZE) {
+            logger.warn("logpresso dnsproxy: {} must be between 512 and {}: {}", key, MAX_EDNS_PAYLOAD_SIZE, value);
+            return DEFAULT_EDNS_PAYLOAD_SIZE;
+        }
+
+        return size;
+    }
+
+    private String parseCachePolicy(String key, String value) {
+        String policy = value.toLowerCase();
+        if (policy.equals("lru") || policy.equals("tinylfu"))
+            return policy;
+
+        if (!value.isEmpty())
+            logger.warn("logpresso dnsproxy: Invalid cache policy for {}: {}", key, value);
+
+        return "lru";
+    }
+
+    private String parseUpstreamSelection(String key, String value) {
+        String selection = value.toLowerCase();
+        if (selection.equals("ordered") || selection.equals("rtt"))
+            return selection;
+
+        if (!value.isEmpty())
+            logger.warn("logpresso dnsproxy: Invalid upstream selection for {}: {}", key, value);
+
+        return "ordered";
+    }
+
+    private String parseCacheStorage(String key, String value) {
+        String storage = value.toLowerCase();
+        if (storage.equals("heap") || storage.equals("offheap"))
+            return storage;
+
+        if (!value.isEmpty())
+            logger.warn("logpresso dnsproxy: Invalid cache storage for {}: {}", key, value);
+
+        return "heap";
+    }
+
+    /**
+     * Parses a systemd style size such as "1048576", "512K", "64M" or "1G"
+     * into bytes. Suffixes are base 1024.
+     */
+    private long parseBytes(String key, String value, long defaultValue) {
+        if (value.isEmpty())
+            return defaultValue;
+
+        long unit = 1;
+        String number = value;
+        char suffix = Character.toUpperCase(value.charAt(value.length() - 1));
+        int exponent = "KMGT".indexOf(suffix);
+        if (exponent >= 0) {
+            unit = 1L << (10 * (exponent + 1));
+            number = value.substring(0, value.length() - 1).trim();
+        }
+
+        try {
+            long n = Long.parseLong(number);
+            if (n < 0 || n > Long.MAX_VALUE / unit) {
+                logger.warn("logpresso dnsproxy: Invalid size for {}: {}", key, value);
+                return defaultValue;
+            }
+
+            return n * unit;
+        } catch (NumberFormatException e) {
+            logger.warn("logpresso dnsproxy: Invalid size for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    private int parsePercent(String key, String value, int defaultValue) {
+        String v = value.endsWith("%") ? value.substring(0, value.length() - 1).trim() : value;
+        int percent = parseInt(key, v, defaultValue);
+        if (percent < 0 || percent > 100) {
+            logger.warn("logpresso dnsproxy: Invalid percentage for {}: {}", key, value);
+            return defaultValue;
+        }
+
+        return percent;
+    }
+
+    /**
+     * Parses a systemd style time span such as "30", "30s", "5min", "2h" or "1d"
+     * into seconds. A bare number is taken as seconds.
+     */
+    private long parseSeconds(String key, String value, long defaultValue) {
+        if (value.isEmpty())
+            return defaultValue;
+
+        String v = value.toLowerCase();
+        int unitStart = 0;
+        while (unitStart < v.length() && Character.isDigit(v.charAt(unitStart)))
+            unitStart++;
+
+        long multiplier;
+        switch (v.substring(unitStart).trim()) {
+            case "":
+            case "s":
+            case "sec":
+                multiplier = 1;
+                break;
+            case "m":
+            case "min":
+                multiplier = 60;
+                break;
+            case "h":
+            case "hr":
+                multiplier = 3600;
+                break;
+            case "d":
+                multiplier = 86400;
+                break;
+            default:
+                logger.warn("logpresso dnsproxy: Invalid time span for {}: {}", key, value);
+                return defaultValue;
+        }
+
+        if (unitStart == 0) {
+            logger.warn("logpresso dnsproxy: Invalid time span for {}: {}", key, value);
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(v.substring(0, unitStart)) * multiplier;
+        } catch (NumberFormatException e) {
+            logger.warn("logpresso dnsproxy: Invalid time span for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
     protected String getResolvConfPath() {
         return RESOLV_CONF_PATH;
     }
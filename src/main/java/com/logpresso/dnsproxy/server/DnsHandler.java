@@ -1,13 +1,20 @@
 package com.logpresso.dnsproxy.server;
 
+import com.logpresso.dnsproxy.cache.CacheKey;
 import com.logpresso.dnsproxy.cache.DnsCache;
 import com.logpresso.dnsproxy.client.UpstreamResolver;
+import com.logpresso.dnsproxy.config.ResolvedConfig;
 import com.logpresso.dnsproxy.filter.SingleRecordFilter;
+import com.logpresso.dnsproxy.wire.DnsWire;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.*;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class DnsHandler {
 
@@ -16,13 +23,22 @@ public class DnsHandler {
     private final UpstreamResolver resolver;
     private final DnsCache cache;
     private final SingleRecordFilter filter;
+    private final QueryCoalescer coalescer;
     private final boolean cacheEnabled;
+    private final int ednsPayloadSize;
+    private final Executor refreshExecutor;
 
-    public DnsHandler(UpstreamResolver resolver, DnsCache cache, boolean cacheEnabled) {
+    public DnsHandler(UpstreamResolver resolver, DnsCache cache, ResolvedConfig config, Executor refreshExecutor) {
         this.resolver = resolver;
         this.cache = cache;
         this.filter = new SingleRecordFilter();
-        this.cacheEnabled = cacheEnabled;
+        this.coalescer = new QueryCoalescer();
+        this.cacheEnabled = config.isCache();
+        this.ednsPayloadSize = config.getEdnsPayloadSize();
+        this.refreshExecutor = refreshExecutor;
+
+        if (cacheEnabled)
+            cache.setRefresher(this::refresh);
     }
 
     public byte[] createTruncatedResponse(int queryId, Record question) {
@@ -44,75 +60,294 @@ public class DnsHandler {
     }
 
     public byte[] handle(byte[] queryData, int maxResponseSize) {
+        return handleAsync(queryData, maxResponseSize).join();
+    }
+
+    public CompletableFuture<byte[]> handleAsync(byte[] queryData, int maxResponseSize) {
+        return handleAsync(queryData, maxResponseSize, false);
+    }
+
+    /**
+     * Full query path. The future completes with the response, or with null
+     * when no response should be sent, and never completes exceptionally.
+     * maxResponseSize is the transport limit for clients without EDNS; an EDNS
+     * client may raise it up to the configured maximum UDP payload size.
+     * cacheChecked is set by callers that already tried handleCached() for
+     * this query, so the cache is not looked up twice.
+     */
+    CompletableFuture<byte[]> handleAsync(byte[] queryData, int maxResponseSize, boolean cacheChecked) {
+        CacheKey key = fastPathKey(queryData, queryData.length);
+        if (key != null && !cacheChecked) {
+            byte[] responseData = lookupCache(key, queryData, queryData.length, maxResponseSize);
+            if (responseData != null)
+                return CompletableFuture.completedFuture(responseData);
+        }
+
         Message query;
         try {
             query = new Message(queryData);
         } catch (IOException e) {
             logger.warn("logpresso dnsproxy: Failed to parse DNS query", e);
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
         Record question = query.getQuestion();
         if (question == null) {
             logger.warn("logpresso dnsproxy: Query has no question section");
-            return createServFail(query).toWire();
+            return CompletableFuture.completedFuture(createServFail(query).toWire());
+        }
+
+        OPTRecord opt = query.getOPT();
+        if (opt != null && opt.getVersion() > 0) {
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Unsupported EDNS version {}", opt.getVersion());
+
+            return CompletableFuture.completedFuture(createBadVersion(query).toWire());
         }
 
         String qname = question.getName().toString();
         int qtype = question.getType();
         int qclass = question.getDClass();
-        int queryId = query.getHeader().getID();
+        int clientPayloadSize = opt != null ? opt.getPayloadSize() : -1;
+        boolean dnssecOk = isDnssecOk(query);
+        int questionEnd = DnsWire.skipName(queryData, DnsWire.HEADER_LENGTH, queryData.length) + 4;
 
         if (logger.isDebugEnabled())
             logger.debug("logpresso dnsproxy: Query: {} {} {}", qname, Type.string(qtype), DClass.string(qclass));
 
-        Message response;
+        if (key == null) {
+            key = CacheKey.of(question.getName(), qtype, qclass, dnssecOk);
+
+            if (cacheEnabled) {
+                byte[] responseData = cache.getWire(key);
+                if (responseData != null) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("logpresso dnsproxy: Cache hit for: {}", key);
+
+                    return CompletableFuture.completedFuture(finishResponse(query, responseData, queryData,
+                            questionEnd, clientPayloadSize, 0, dnssecOk, maxResponseSize));
+                }
+            }
+        }
+
+        CacheKey resolveKey = key;
+        return coalescer.resolveAsync(resolveKey, () -> resolveAndCache(query, resolveKey)).handle((sharedResponse, error) -> {
+            if (error != null) {
+                logger.error("logpresso dnsproxy: Upstream query failed: {}", unwrap(error).getMessage());
+                return createServFail(query).toWire();
+            }
 
-        if (cacheEnabled) {
-            response = cache.get(qname, qtype, qclass);
-            if (response != null) {
-                response = cloneWithId(response, queryId);
-                if (logger.isDebugEnabled())
-                    logger.debug("logpresso dnsproxy: Cache hit for: {}", qname);
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Response: {} records for {}", DnsWire.getAnswerCount(sharedResponse), qname);
 
-                byte[] responseData = response.toWire();
-                if (responseData.length > maxResponseSize)
-                    return createTruncatedResponse(queryId, question);
+            // 같은 질의를 기다린 요청들이 응답을 공유하므로 복사 후 ID를 덮어씀
+            byte[] responseData = sharedResponse.clone();
 
-                return responseData;
+            // 확장 RCODE가 있어 남겨 둔 upstream OPT는 클라이언트 OPT로 옮김
+            int extendedRcode = 0;
+            int upstreamOpt = DnsWire.getAdditionalCount(responseData) > 0 ? DnsWire.findOpt(responseData) : -1;
+            if (upstreamOpt >= 0) {
+                extendedRcode = DnsWire.getOptExtendedRcode(responseData, upstreamOpt);
+                responseData = DnsWire.removeOpt(responseData, upstreamOpt);
             }
+
+            return finishResponse(query, responseData, queryData, questionEnd, clientPayloadSize, extendedRcode,
+                    dnssecOk, maxResponseSize);
+        });
+    }
+
+    /**
+     * Cache hit fast path working on raw bytes. Returns null when the query is
+     * not a plain cacheable query or on a cache miss, leaving those cases to
+     * the full path in handle().
+     */
+    public byte[] handleCached(byte[] queryData, int length, int maxResponseSize) {
+        CacheKey key = fastPathKey(queryData, length);
+        if (key == null)
+            return null;
+
+        return lookupCache(key, queryData, length, maxResponseSize);
+    }
+
+    private CacheKey fastPathKey(byte[] queryData, int length) {
+        if (!cacheEnabled || !DnsWire.isSimpleQuery(queryData, length))
+            return null;
+
+        return CacheKey.fromQuery(queryData, length);
+    }
+
+    private byte[] lookupCache(CacheKey key, byte[] queryData, int length, int maxResponseSize) {
+        byte[] responseData = cache.getWire(key);
+        if (responseData == null)
+            return null;
+
+        if (logger.isDebugEnabled())
+            logger.debug("logpresso dnsproxy: Cache hit for: {}", key);
+
+        // fromQuery()가 OPT 레코드가 질문 바로 뒤에 있는지 이미 확인함
+        int questionEnd = DnsWire.HEADER_LENGTH + key.getNameLength() + 4;
+        int opt = DnsWire.findQueryOpt(queryData, length, questionEnd);
+        int clientPayloadSize = opt >= 0 ? DnsWire.getOptPayloadSize(queryData, opt) : -1;
+
+        try {
+            return finishResponse(responseData, queryData, length, questionEnd, clientPayloadSize, 0, key.isDnssecOk(),
+                    maxResponseSize);
+        } catch (RuntimeException e) {
+            // 전체 경로에서 다시 처리
+            logger.warn("logpresso dnsproxy: Failed to build response from cache for: {}", key, e);
+            return null;
         }
+    }
 
+    // 응답 조립이 실패해도 future가 예외로 끝나지 않도록 SERVFAIL로 응답
+    private byte[] finishResponse(Message query, byte[] responseData, byte[] queryData, int questionEnd,
+                                  int clientPayloadSize, int extendedRcode, boolean dnssecOk, int maxResponseSize) {
         try {
-            response = resolver.resolve(query);
-        } catch (IOException e) {
-            logger.error("logpresso dnsproxy: Upstream query failed: {}", e.getMessage());
+            return finishResponse(responseData, queryData, queryData.length, questionEnd, clientPayloadSize,
+                    extendedRcode, dnssecOk, maxResponseSize);
+        } catch (RuntimeException e) {
+            logger.warn("logpresso dnsproxy: Failed to build response for: {}", query.getQuestion().getName(), e);
             return createServFail(query).toWire();
         }
+    }
 
-        Message filteredResponse = filter.filter(response);
-
-        if (cacheEnabled) {
-            boolean isNxDomain = filteredResponse.getHeader().getRcode() == Rcode.NXDOMAIN;
-            cache.put(qname, qtype, qclass, filteredResponse, isNxDomain);
+    /**
+     * Patches a private copy of a cached or upstream response for the client:
+     * transaction ID, question name case and, for EDNS clients, our own OPT
+     * record, carrying the upper bits of an upstream extended RCODE. Returns a
+     * TC response if the result does not fit the client limit.
+     */
+    private byte[] finishResponse(byte[] responseData, byte[] queryData, int length, int questionEnd,
+                                  int clientPayloadSize, int extendedRcode, boolean dnssecOk, int maxResponseSize) {
+        DnsWire.setId(responseData, DnsWire.getId(queryData));
+        restoreQuestionCase(responseData, queryData, length);
+
+        int limit = maxResponseSize;
+        if (clientPayloadSize >= 0) {
+            // RFC 6891 6.2.5: 512 미만의 값은 512로 취급
+            limit = Math.max(maxResponseSize, Math.min(clientPayloadSize, ednsPayloadSize));
+            responseData = DnsWire.appendOpt(responseData, ednsPayloadSize, extendedRcode, dnssecOk);
         }
 
-        filteredResponse.getHeader().setID(queryId);
+        if (responseData.length <= limit)
+            return responseData;
+
+        byte[] truncated = questionEnd > DnsWire.HEADER_LENGTH
+                ? DnsWire.createTruncatedResponse(queryData, questionEnd)
+                : createTruncatedResponse(DnsWire.getId(queryData), null);
 
         if (logger.isDebugEnabled())
-            logger.debug("logpresso dnsproxy: Response: {} records for {}", filteredResponse.getSection(Section.ANSWER).size(), qname);
+            logger.debug("logpresso dnsproxy: Response truncated for UDP ({} > {} bytes), client should retry with TCP",
+                    responseData.length, limit);
+
+        return clientPayloadSize >= 0 ? DnsWire.appendOpt(truncated, ednsPayloadSize, dnssecOk) : truncated;
+    }
+
+    private CompletableFuture<byte[]> resolveAndCache(Message query, CacheKey key) {
+        // upstream에는 클라이언트가 보낸 크기 대신 항상 설정한 EDNS 크기를 광고함
+        // (캐시된 응답은 모든 클라이언트가 공유하고, 수신 버퍼보다 큰 응답은 잘림)
+        Message upstreamQuery = query;
+        OPTRecord opt = query.getOPT();
+        if (opt == null) {
+            upstreamQuery = query.clone();
+            upstreamQuery.addRecord(new OPTRecord(ednsPayloadSize, 0, 0, key.isDnssecOk() ? ExtendedFlags.DO : 0), Section.ADDITIONAL);
+        } else if (opt.getPayloadSize() != ednsPayloadSize) {
+            upstreamQuery = query.clone();
+            upstreamQuery.removeRecord(upstreamQuery.getOPT(), Section.ADDITIONAL);
+            upstreamQuery.addRecord(new OPTRecord(ednsPayloadSize, opt.getExtendedRcode(), opt.getVersion(),
+                    opt.getFlags(), opt.getOptions()), Section.ADDITIONAL);
+        }
+
+        return resolver.resolveAsync(upstreamQuery).thenApply(response -> {
+            Message filteredResponse = filter.filter(response);
+
+            // upstream의 OPT는 제거하고 클라이언트마다 자체 OPT를 붙임
+            // 확장 RCODE가 있으면 상위 비트가 OPT에만 있으므로 OPT를 남기고 캐시하지 않음
+            OPTRecord upstreamOpt = filteredResponse.getOPT();
+            boolean extendedRcode = upstreamOpt != null && upstreamOpt.getExtendedRcode() != 0;
+            if (upstreamOpt != null && !extendedRcode)
+                filteredResponse.removeRecord(upstreamOpt, Section.ADDITIONAL);
+
+            if (cacheEnabled && !extendedRcode) {
+                boolean isNxDomain = filteredResponse.getHeader().getRcode() == Rcode.NXDOMAIN;
+                cache.put(key, filteredResponse, isNxDomain);
+            }
+
+            return filteredResponse.toWire();
+        });
+    }
+
+    private void refresh(CacheKey key) {
+        try {
+            refreshExecutor.execute(() -> {
+                Message query;
+                try {
+                    query = Message.newQuery(Record.newRecord(key.getName(), key.getType(), key.getDClass()));
+                } catch (IOException e) {
+                    logger.warn("logpresso dnsproxy: Invalid cache key for refresh: {}", key);
+                    return;
+                }
+
+                coalescer.resolveAsync(key, () -> resolveAndCache(query, key)).whenComplete((response, error) -> {
+                    if (!logger.isDebugEnabled())
+                        return;
+
+                    if (error != null)
+                        logger.debug("logpresso dnsproxy: Failed to refresh cache entry {}: {}", key, unwrap(error).getMessage());
+                    else
+                        logger.debug("logpresso dnsproxy: Refreshed cache entry: {}", key);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Refresh queue full, skipping: {}", key);
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    long getCoalescedCount() {
+        return coalescer.getCoalescedCount();
+    }
 
-        byte[] responseData = filteredResponse.toWire();
-        if (responseData.length > maxResponseSize)
-            return createTruncatedResponse(queryId, question);
+    private void restoreQuestionCase(byte[] responseData, byte[] queryData, int queryLength) {
+        // 질의 이름의 대소문자를 그대로 돌려줌 (0x20 encoding)
+        if (DnsWire.getQuestionCount(responseData) != 1)
+            return;
 
-        return responseData;
+        int nameEnd = DnsWire.skipName(queryData, DnsWire.HEADER_LENGTH, queryLength);
+        if (nameEnd > 0 && DnsWire.skipName(responseData, DnsWire.HEADER_LENGTH, responseData.length) == nameEnd)
+            System.arraycopy(queryData, DnsWire.HEADER_LENGTH, responseData, DnsWire.HEADER_LENGTH, nameEnd - DnsWire.HEADER_LENGTH);
+    }
+
+    private boolean isDnssecOk(Message query) {
+        OPTRecord opt = query.getOPT();
+        return opt != null && (opt.getFlags() & ExtendedFlags.DO) != 0;
     }
 
     private Message createServFail(Message query) {
+        Message response = createErrorResponse(query, Rcode.SERVFAIL);
+
+        OPTRecord opt = query.getOPT();
+        if (opt != null)
+            response.addRecord(new OPTRecord(ednsPayloadSize, 0, 0, opt.getFlags() & ExtendedFlags.DO), Section.ADDITIONAL);
+
+        return response;
+    }
+
+    private Message createBadVersion(Message query) {
+        // BADVERS(16)의 상위 8비트는 OPT의 extended RCODE로 전달 (RFC 6891 6.1.3)
+        Message response = createErrorResponse(query, Rcode.BADVERS & 0xf);
+        response.addRecord(new OPTRecord(ednsPayloadSize, Rcode.BADVERS >>> 4, 0), Section.ADDITIONAL);
+        return response;
+    }
+
+    private Message createErrorResponse(Message query, int rcode) {
         Message response = new Message(query.getHeader().getID());
         response.getHeader().setFlag(Flags.QR);
-        response.getHeader().setRcode(Rcode.SERVFAIL);
+        response.getHeader().setRcode(rcode);
 
         Record question = query.getQuestion();
         if (question != null)
@@ -121,11 +356,4 @@ public class DnsHandler {
         return response;
     }
 
-    private Message cloneWithId(Message original, int id) {
-        Message cloned = original.clone();
-        cloned.getHeader().setID(id);
-
-        return cloned;
-    }
-
 }
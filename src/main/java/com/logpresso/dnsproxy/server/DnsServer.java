@@ -7,10 +7,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -30,23 +32,79 @@ public class DnsServer implements Closeable {
     private static final int QUEUE_CAPACITY = 1000;
     private static final long KEEP_ALIVE_SECONDS = 60L;
 
+    // Background cache refresh (serve-stale, prefetch)
+    private static final int REFRESH_POOL_SIZE = 4;
+    private static final int REFRESH_QUEUE_CAPACITY = 1000;
+
+    // 캐시 타이머 휠 tick 간격
+    private static final long CACHE_EXPIRY_INTERVAL_SEC = 1;
+
     private final ResolvedConfig config;
+    private final UpstreamResolver resolver;
+    private final DnsCache cache;
     private final DnsHandler handler;
+    private final Path cacheSnapshot;
     private final ExecutorService executor;
+    private final ExecutorService udpRequestExecutor;
+    private final ExecutorService refreshExecutor;
+    private final ScheduledExecutorService scheduler;
     private final AtomicBoolean running = new AtomicBoolean(false);
 
     private final List<DatagramSocket> udpSockets = new CopyOnWriteArrayList<>();
-    private final List<ServerSocket> tcpSockets = new CopyOnWriteArrayList<>();
+    private final List<TcpEventLoop> tcpEventLoops = new CopyOnWriteArrayList<>();
+    private final List<UdpEventLoop> udpEventLoops = new CopyOnWriteArrayList<>();
+    private final AtomicInteger listenerCounter = new AtomicInteger(1);
 
-    public DnsServer(ResolvedConfig config) {
+    private boolean reusePort;
+    private int listenersPerAddress = 1;
+
+    public DnsServer(ResolvedConfig config) throws IOException {
         this.config = config;
 
-        UpstreamResolver resolver = new UpstreamResolver(config);
-        DnsCache cache = new DnsCache();
-        this.handler = new DnsHandler(resolver, cache, config.isCache());
+        AtomicInteger refreshCounter = new AtomicInteger(1);
+        this.refreshExecutor = new ThreadPoolExecutor(
+                REFRESH_POOL_SIZE,
+                REFRESH_POOL_SIZE,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(REFRESH_QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "dns-refresh-" + refreshCounter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.executor = createWorkerExecutor();
+
+        // 요청 처리가 비동기여서 스레드가 막히는 곳은 blocking UDP 리스너의 데이터그램 처리뿐이므로 가상 스레드는 거기에만 사용
+        ExecutorService virtualExecutor = null;
+        if (config.isVirtualThreads()) {
+            if (config.isUdpEventLoop())
+                logger.info("logpresso dnsproxy: VirtualThreads has no effect with UDPEventLoop, ignoring");
+            else
+                virtualExecutor = createVirtualThreadExecutor();
+        }
+
+        this.udpRequestExecutor = virtualExecutor != null ? virtualExecutor : executor;
+
+        // upstream 응답 처리도 워커에서 실행
+        this.resolver = new UpstreamResolver(config, executor);
+        this.cache = new DnsCache(config);
+        this.handler = new DnsHandler(resolver, cache, config, refreshExecutor);
+        this.cacheSnapshot = config.isCache() && !config.getCacheSnapshot().isEmpty() ? Paths.get(config.getCacheSnapshot()) : null;
+    }
 
+    private static ExecutorService createWorkerExecutor() {
         AtomicInteger threadCounter = new AtomicInteger(1);
-        this.executor = new ThreadPoolExecutor(
+        return new ThreadPoolExecutor(
                 CORE_POOL_SIZE,
                 MAX_POOL_SIZE,
                 KEEP_ALIVE_SECONDS,
@@ -61,6 +119,28 @@ public class DnsServer implements Closeable {
         );
     }
 
+    /**
+     * Returns a virtual thread per task executor on JDK 21+, or null on older
+     * runtimes. Looked up by reflection so the build can keep targeting JDK 11.
+     * Used only for datagrams from the blocking UDP listener, so that a burst
+     * does not fill the bounded worker pool and make the listener thread run
+     * requests itself instead of receiving.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            logger.info("logpresso dnsproxy: Using virtual threads for UDP listener requests");
+            return executor;
+        } catch (NoSuchMethodException e) {
+            logger.warn("logpresso dnsproxy: Virtual threads require JDK 21 or later, using platform thread pool");
+        } catch (ReflectiveOperationException e) {
+            logger.warn("logpresso dnsproxy: Failed to create virtual thread executor, using platform thread pool", e);
+        }
+
+        return null;
+    }
+
     public void start() throws IOException {
         if (!config.isDnsStubListener()) {
             logger.info("logpresso dnsproxy: DNSStubListener is disabled, not starting server");
@@ -69,6 +149,34 @@ public class DnsServer implements Closeable {
 
         running.set(true);
 
+        // 리스너를 열기 전에 스냅샷을 읽어 재시작 직후부터 캐시 히트
+        if (cacheSnapshot != null)
+            loadCacheSnapshot();
+
+        if (config.isReusePort()) {
+            if (isReusePortSupported()) {
+                reusePort = true;
+                listenersPerAddress = config.getReusePortListeners();
+                logger.info("logpresso dnsproxy: SO_REUSEPORT enabled, {} listeners per address", listenersPerAddress);
+            } else {
+                logger.warn("logpresso dnsproxy: SO_REUSEPORT is not supported on this platform, using single listener");
+            }
+        }
+
+        if (config.isUdpEventLoop()) {
+            for (int i = 1; i <= listenersPerAddress; i++) {
+                udpEventLoops.add(new UdpEventLoop("dns-udp-loop-" + i, handler, executor,
+                        UDP_BUFFER_SIZE, UDP_MAX_RESPONSE_SIZE));
+            }
+        }
+
+        // 연결 테이블 한도는 루프들이 나눠 가짐
+        int maxConnectionsPerLoop = (config.getTcpMaxConnections() + listenersPerAddress - 1) / listenersPerAddress;
+        for (int i = 1; i <= listenersPerAddress; i++) {
+            tcpEventLoops.add(new TcpEventLoop("dns-tcp-loop-" + i, handler, executor,
+                    maxConnectionsPerLoop, config.getTcpIdleTimeoutSec() * 1000, resolver.getQueryDeadlineMs()));
+        }
+
         String bindAddress = config.getBindAddress();
 
         startUdpServer(bindAddress, DEFAULT_DNS_PORT);
@@ -80,15 +188,56 @@ public class DnsServer implements Closeable {
             startTcpServer(address, DEFAULT_DNS_PORT);
         }
 
+        for (UdpEventLoop loop : udpEventLoops)
+            loop.start();
+
+        for (TcpEventLoop loop : tcpEventLoops)
+            loop.start();
+
+        scheduler.scheduleAtFixedRate(this::expireCache, CACHE_EXPIRY_INTERVAL_SEC, CACHE_EXPIRY_INTERVAL_SEC, TimeUnit.SECONDS);
+
+        long probeInterval = config.getUpstreamProbeIntervalSec();
+        if (config.getUpstreamFailureThreshold() > 0)
+            scheduler.scheduleAtFixedRate(this::probeUpstreams, probeInterval, probeInterval, TimeUnit.SECONDS);
+
+        long snapshotInterval = config.getCacheSnapshotIntervalSec();
+        if (cacheSnapshot != null && snapshotInterval > 0)
+            scheduler.scheduleWithFixedDelay(this::saveCacheSnapshot, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+
+        long statsInterval = config.getStatsIntervalSec();
+        if (statsInterval > 0)
+            scheduler.scheduleAtFixedRate(this::logStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+
         logger.info("logpresso dnsproxy: DNS server started on {}:{}", bindAddress, DEFAULT_DNS_PORT);
     }
 
     private void startUdpServer(String address, int port) throws IOException {
+        if (!udpEventLoops.isEmpty()) {
+            // SO_REUSEPORT 사용 시 루프마다 같은 주소에 소켓을 하나씩 바인드
+            for (UdpEventLoop loop : udpEventLoops)
+                loop.bind(address, port, reusePort);
+            return;
+        }
+
         InetAddress bindAddr = InetAddress.getByName(address);
-        DatagramSocket socket = new DatagramSocket(port, bindAddr);
+        for (int i = 0; i < listenersPerAddress; i++)
+            startUdpListener(bindAddr, address, port);
+    }
+
+    private void startUdpListener(InetAddress bindAddr, String address, int port) throws IOException {
+        DatagramSocket socket = new DatagramSocket(null);
+        try {
+            if (reusePort)
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            socket.bind(new InetSocketAddress(bindAddr, port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
         udpSockets.add(socket);
 
-        executor.submit(() -> {
+        startListenerThread("dns-udp-listener-", () -> {
             logger.info("logpresso dnsproxy: UDP server listening on {}:{}", address, port);
             while (running.get()) {
                 try {
@@ -96,7 +245,7 @@ public class DnsServer implements Closeable {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     socket.receive(packet);
 
-                    executor.submit(() -> handleUdpRequest(socket, packet));
+                    udpRequestExecutor.submit(() -> handleUdpRequest(socket, packet));
                 } catch (SocketException e) {
                     if (running.get())
                         logger.error("logpresso dnsproxy: UDP socket error", e);
@@ -108,72 +257,31 @@ public class DnsServer implements Closeable {
     }
 
     private void handleUdpRequest(DatagramSocket socket, DatagramPacket packet) {
-        try {
-            byte[] queryData = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), 0, queryData, 0, packet.getLength());
+        byte[] queryData = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, queryData, 0, packet.getLength());
+
+        handler.handleAsync(queryData, UDP_MAX_RESPONSE_SIZE).whenComplete((responseData, error) -> {
+            if (error != null)
+                logger.error("logpresso dnsproxy: Failed to handle UDP query", error);
+
+            if (responseData == null)
+                return;
 
-            byte[] responseData = handler.handle(queryData, UDP_MAX_RESPONSE_SIZE);
-            if (responseData != null) {
+            try {
                 DatagramPacket response = new DatagramPacket(
                         responseData, responseData.length,
                         packet.getAddress(), packet.getPort());
                 socket.send(response);
-            }
-        } catch (IOException e) {
-            logger.error("logpresso dnsproxy: Failed to handle UDP request", e);
-        }
-    }
-
-    private void startTcpServer(String address, int port) throws IOException {
-        InetAddress bindAddr = InetAddress.getByName(address);
-        ServerSocket socket = new ServerSocket(port, 50, bindAddr);
-        tcpSockets.add(socket);
-
-        executor.submit(() -> {
-            logger.info("logpresso dnsproxy: TCP server listening on {}:{}", address, port);
-            while (running.get()) {
-                try {
-                    Socket client = socket.accept();
-                    executor.submit(() -> handleTcpConnection(client));
-                } catch (SocketException e) {
-                    if (running.get())
-                        logger.error("logpresso dnsproxy: TCP socket error", e);
-                } catch (IOException e) {
-                    logger.error("logpresso dnsproxy: TCP accept error", e);
-                }
+            } catch (IOException e) {
+                logger.error("logpresso dnsproxy: Failed to send UDP response", e);
             }
         });
     }
 
-    private void handleTcpConnection(Socket client) {
-        try (client) {
-            client.setSoTimeout(5000);
-
-            DataInputStream in = new DataInputStream(client.getInputStream());
-            DataOutputStream out = new DataOutputStream(client.getOutputStream());
-
-            while (running.get()) {
-                int length;
-                try {
-                    length = in.readUnsignedShort();
-                } catch (IOException e) {
-                    break;
-                }
-
-	            byte[] queryData = new byte[length];
-                in.readFully(queryData);
-
-                byte[] responseData = handler.handle(queryData);
-                if (responseData != null) {
-                    out.writeShort(responseData.length);
-                    out.write(responseData);
-                    out.flush();
-                }
-            }
-        } catch (IOException e) {
-            if (logger.isDebugEnabled())
-                logger.debug("logpresso dnsproxy: TCP connection closed: {}", e.getMessage());
-        }
+    private void startTcpServer(String address, int port) throws IOException {
+        // SO_REUSEPORT 사용 시 루프마다 같은 주소에 소켓을 하나씩 바인드
+        for (TcpEventLoop loop : tcpEventLoops)
+            loop.bind(address, port, reusePort);
     }
 
     @Override
@@ -188,21 +296,117 @@ public class DnsServer implements Closeable {
 
         udpSockets.clear();
 
-        for (ServerSocket socket : tcpSockets) {
-            if (socket != null && !socket.isClosed()) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    logger.warn("logpresso dnsproxy: Failed to close TCP socket", e);
-                }
-            }
-        }
+        for (UdpEventLoop loop : udpEventLoops)
+            loop.close();
+
+        udpEventLoops.clear();
+
+        for (TcpEventLoop loop : tcpEventLoops)
+            loop.close();
+
+        tcpEventLoops.clear();
+        scheduler.shutdownNow();
+        refreshExecutor.shutdownNow();
+        if (udpRequestExecutor != executor)
+            udpRequestExecutor.shutdownNow();
 
-        tcpSockets.clear();
         executor.shutdownNow();
+        resolver.close();
+
+        if (cacheSnapshot != null)
+            saveCacheSnapshot();
+
         logger.info("logpresso dnsproxy: DNS server stopped");
     }
 
+    private void probeUpstreams() {
+        try {
+            resolver.probe();
+        } catch (RuntimeException e) {
+            // 예외가 나면 scheduleAtFixedRate가 이후 실행을 멈추므로 여기서 처리
+            logger.error("logpresso dnsproxy: Upstream health probe failed", e);
+        }
+    }
+
+    private void loadCacheSnapshot() {
+        if (!Files.exists(cacheSnapshot))
+            return;
+
+        long begin = System.currentTimeMillis();
+        try {
+            int loaded = cache.loadSnapshot(cacheSnapshot);
+            logger.info("logpresso dnsproxy: Loaded {} cache entries from snapshot {} in {} ms",
+                    loaded, cacheSnapshot, System.currentTimeMillis() - begin);
+        } catch (IOException e) {
+            logger.warn("logpresso dnsproxy: Failed to load cache snapshot: {}", cacheSnapshot, e);
+        }
+    }
+
+    // 주기 저장과 종료 시 저장이 같은 임시 파일을 쓰지 않도록 직렬화
+    private synchronized void saveCacheSnapshot() {
+        long begin = System.currentTimeMillis();
+        try {
+            int saved = cache.saveSnapshot(cacheSnapshot);
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Saved {} cache entries to snapshot {} in {} ms",
+                        saved, cacheSnapshot, System.currentTimeMillis() - begin);
+        } catch (IOException | RuntimeException e) {
+            // 예외가 나면 scheduleWithFixedDelay가 이후 실행을 멈추므로 여기서 처리
+            logger.warn("logpresso dnsproxy: Failed to save cache snapshot: {}", cacheSnapshot, e);
+        }
+    }
+
+    private void expireCache() {
+        try {
+            cache.expire();
+        } catch (RuntimeException e) {
+            // 예외가 나면 scheduleAtFixedRate가 이후 실행을 멈추므로 여기서 처리
+            logger.error("logpresso dnsproxy: Cache expiry failed", e);
+        }
+    }
+
+    private void logStats() {
+        logger.info("logpresso dnsproxy: Stats: cache storage={}, policy={}, entries={}, bytes={}, hits={}, stale hits={}, misses={}, hit ratio={}%, "
+                        + "admission rejected={}, expired={}, prefetched={}, coalesced={}",
+                cache.getStorage(), cache.getPolicy(), cache.size(), cache.getRetainedBytes(), cache.getHitCount(), cache.getStaleHitCount(), cache.getMissCount(),
+                String.format("%.1f", cache.getHitRatio()), cache.getRejectedCount(), cache.getExpiredCount(),
+                cache.getPrefetchCount(), handler.getCoalescedCount());
+
+        int open = 0;
+        int idle = 0;
+        long reaped = 0;
+        long rejected = 0;
+        for (TcpEventLoop loop : tcpEventLoops) {
+            open += loop.getOpenConnections();
+            idle += loop.getIdleConnections();
+            reaped += loop.getReapedCount();
+            rejected += loop.getRejectedCount();
+        }
+
+        logger.info("logpresso dnsproxy: Stats: tcp connections open={}, idle={}, reaped={}, rejected={}",
+                open, idle, reaped, rejected);
+        logger.info("logpresso dnsproxy: Stats: upstream selection={}, explored={}, open breakers={}, hedged={}, hedge wins={}, servers=[{}]",
+                resolver.getSelectionPolicy(), resolver.getExploreCount(), resolver.getOpenCount(),
+                resolver.getHedgeCount(), resolver.getHedgeWinCount(), resolver.getServerStats());
+        logger.info("logpresso dnsproxy: Stats: upstream tcp queries={}, connections opened={}, open={}",
+                resolver.getTcpQueryCount(), resolver.getTcpConnectCount(), resolver.getTcpOpenConnections());
+    }
+
+    private void startListenerThread(String prefix, Runnable loop) {
+        // 수신/accept 루프는 워커 풀과 별도의 전용 스레드에서 실행
+        Thread t = new Thread(loop, prefix + listenerCounter.getAndIncrement());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private boolean isReusePortSupported() {
+        try (DatagramSocket probe = new DatagramSocket(null)) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private String parseAddress(String input) {
         if (input.startsWith("[")) {
             int closeBracket = input.indexOf(']');
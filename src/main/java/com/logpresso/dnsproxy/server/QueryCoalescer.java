@@ -0,0 +1,70 @@
+package com.logpresso.dnsproxy.server;
+
+import com.logpresso.dnsproxy.cache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight upstream resolution. The first miss for a key runs the loader,
+ * concurrent misses for the same key wait for its result instead of sending
+ * their own upstream query.
+ */
+class QueryCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryCoalescer.class);
+
+    interface AsyncLoader {
+        CompletableFuture<byte[]> load();
+    }
+
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<byte[]>> inflight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    /**
+     * Returns a future of the shared response wire data; callers must copy it
+     * before patching. The future is shared by every caller of the same key
+     * and must not be completed by them.
+     */
+    CompletableFuture<byte[]> resolveAsync(CacheKey key, AsyncLoader loader) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inflight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: Waiting for in-flight query: {}", key);
+
+            return existing;
+        }
+
+        CompletableFuture<byte[]> loading;
+        try {
+            loading = loader.load();
+        } catch (RuntimeException e) {
+            loading = CompletableFuture.failedFuture(e);
+        }
+
+        loading.whenComplete((result, error) -> {
+            inflight.remove(key, future);
+            if (error != null)
+                future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            else
+                future.complete(result);
+        });
+
+        return future;
+    }
+
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    int getInflightCount() {
+        return inflight.size();
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.logpresso.dnsproxy.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of one client TCP connection (RFC 7766) owned by a TcpEventLoop.
+ * Pipelined queries are resolved concurrently and answered in completion
+ * order, up to a per-connection in-flight limit. Everything except complete()
+ * runs on the event loop thread, which is the single writer of the channel.
+ * The connection tracks when its pending write last made progress and when
+ * its oldest query arrived, so that a client that stops reading can be told
+ * apart from a busy one.
+ */
+class TcpConnection {
+
+    static final int MAX_INFLIGHT_QUERIES = 32;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final TcpEventLoop loop;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+    private final Queue<Completion> completions = new ConcurrentLinkedQueue<>();
+
+    // 처리 중인 질의의 수신 시각과 쓰기를 기다리는 응답 (이벤트 루프 스레드 전용)
+    private final PriorityQueue<Long> dispatchTimes = new PriorityQueue<>();
+    private final Queue<byte[]> responses = new ArrayDeque<>();
+
+    // 질의 수신부터 응답을 쓰기 버퍼로 옮길 때까지의 개수
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    private ByteBuffer queryBuffer;
+    private ByteBuffer writeBuffer;
+    private boolean inputClosed;
+    private long lastActivity;
+    private long lastWriteProgress;
+
+    TcpConnection(SocketChannel channel, SelectionKey key, TcpEventLoop loop, long now) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.lastActivity = now;
+    }
+
+    /**
+     * Reads every complete query frame available and hands it to the loop.
+     * Stops reading while the in-flight limit is reached.
+     */
+    void read(long now) throws IOException {
+        while (inflight.get() < MAX_INFLIGHT_QUERIES) {
+            if (queryBuffer == null) {
+                if (channel.read(lengthBuffer) < 0) {
+                    closeInput();
+                    return;
+                }
+
+                if (lengthBuffer.hasRemaining())
+                    return;
+
+                lengthBuffer.flip();
+                int length = lengthBuffer.getShort() & 0xffff;
+                lengthBuffer.clear();
+                queryBuffer = ByteBuffer.allocate(length);
+            }
+
+            if (channel.read(queryBuffer) < 0) {
+                closeInput();
+                return;
+            }
+
+            if (queryBuffer.hasRemaining())
+                return;
+
+            byte[] queryData = queryBuffer.array();
+            queryBuffer = null;
+            lastActivity = now;
+
+            inflight.incrementAndGet();
+            dispatchTimes.add(now);
+            loop.dispatch(this, queryData, now);
+        }
+
+        // 처리 중인 질의가 한도에 도달하면 응답이 나갈 때까지 읽지 않음 (backpressure)
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Called from any thread when the query received at dispatchTime finished.
+     * A null response means nothing is sent for that query.
+     */
+    void complete(long dispatchTime, byte[] responseData) {
+        completions.add(new Completion(dispatchTime, responseData));
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Writes queued responses until the socket would block, and updates the
+     * interest set accordingly.
+     */
+    void flush(long now) throws IOException {
+        Completion completion;
+        while ((completion = completions.poll()) != null) {
+            dispatchTimes.remove(completion.dispatchTime);
+            if (completion.responseData != null)
+                responses.add(completion.responseData);
+            else
+                inflight.decrementAndGet();
+        }
+
+        while (true) {
+            if (writeBuffer == null) {
+                byte[] responseData = responses.poll();
+                if (responseData == null)
+                    break;
+
+                writeBuffer = ByteBuffer.allocate(2 + responseData.length);
+                writeBuffer.putShort((short) responseData.length);
+                writeBuffer.put(responseData);
+                writeBuffer.flip();
+                inflight.decrementAndGet();
+                lastWriteProgress = now;
+            }
+
+            if (channel.write(writeBuffer) > 0)
+                lastWriteProgress = now;
+
+            if (writeBuffer.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            writeBuffer = null;
+            lastActivity = now;
+        }
+
+        int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+        if (!inputClosed && inflight.get() < MAX_INFLIGHT_QUERIES)
+            ops |= SelectionKey.OP_READ;
+
+        key.interestOps(ops);
+    }
+
+    boolean isIdle() {
+        return inflight.get() == 0 && writeBuffer == null && completions.isEmpty() && responses.isEmpty();
+    }
+
+    /**
+     * True if a response has waited writeTimeoutMs without the client reading
+     * any of it, or a query has been in flight for queryTimeoutMs.
+     */
+    boolean isStalled(long now, long writeTimeoutMs, long queryTimeoutMs) {
+        if (writeBuffer != null && now - lastWriteProgress >= writeTimeoutMs)
+            return true;
+
+        Long oldest = dispatchTimes.peek();
+        return oldest != null && now - oldest >= queryTimeoutMs;
+    }
+
+    /**
+     * True once the client closed its side and every answer has been written.
+     */
+    boolean isFinished() {
+        return inputClosed && isIdle();
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void closeInput() {
+        // 클라이언트가 질의를 다 보낸 뒤에도 남은 응답은 보내고 닫음
+        inputClosed = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private static class Completion {
+        private final long dispatchTime;
+        private final byte[] responseData;
+
+        private Completion(long dispatchTime, byte[] responseData) {
+            this.dispatchTime = dispatchTime;
+            this.responseData = responseData;
+        }
+    }
+
+}
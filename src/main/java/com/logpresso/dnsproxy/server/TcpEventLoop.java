@@ -0,0 +1,353 @@
+package com.logpresso.dnsproxy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking TCP listener. A single thread accepts, reads and writes every
+ * connection, answers cache hits inline and hands cache misses to the worker
+ * executor. The connection table is bounded: idle connections are closed after
+ * an idle timeout that shrinks as the table fills up (RFC 7766 6.2.3), and the
+ * least recently used idle connection is closed when a new one does not fit.
+ * A connection whose client stops reading its answers for the same timeout,
+ * or whose query outlives the upstream deadline, is closed as stalled.
+ */
+class TcpEventLoop implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TcpEventLoop.class);
+
+    private static final int ACCEPT_BACKLOG = 128;
+    private static final int MAX_ACCEPTS_PER_WAKEUP = 64;
+    private static final long REAP_INTERVAL_MS = 1000;
+    private static final long MIN_IDLE_TIMEOUT_MS = 1000;
+
+    // 연결 테이블 사용률이 이 값을 넘으면 유휴 타임아웃을 비례해서 줄임
+    private static final double PRESSURE_THRESHOLD = 0.5;
+
+    private final String name;
+    private final DnsHandler handler;
+    private final Executor executor;
+    private final int maxConnections;
+    private final long idleTimeoutMs;
+    private final long queryTimeoutMs;
+    private final Selector selector;
+    private final List<ServerSocketChannel> serverChannels = new CopyOnWriteArrayList<>();
+    private final Queue<TcpConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    // 접근 순서 LinkedHashMap: 가장 오래 사용되지 않은 연결이 앞에 옴 (이벤트 루프 스레드 전용)
+    private final LinkedHashMap<TcpConnection, Boolean> connections = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong reapedCount = new AtomicLong(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+    private volatile int openCount;
+    private volatile int idleCount;
+    private long lastReapTime;
+
+    private Thread thread;
+
+    TcpEventLoop(String name, DnsHandler handler, Executor executor, int maxConnections, long idleTimeoutMs,
+                 long queryTimeoutMs) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.queryTimeoutMs = queryTimeoutMs;
+        this.selector = Selector.open();
+    }
+
+    void bind(String address, int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(InetAddress.getByName(address), port), ACCEPT_BACKLOG);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        serverChannels.add(channel);
+        logger.info("logpresso dnsproxy: TCP server listening on {}:{} (event loop {})", address, port, name);
+    }
+
+    // 포트 0으로 바인드했을 때 실제 포트
+    int getLocalPort() throws IOException {
+        return ((InetSocketAddress) serverChannels.get(0).getLocalAddress()).getPort();
+    }
+
+    void start() {
+        running.set(true);
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getOpenConnections() {
+        return openCount;
+    }
+
+    int getIdleConnections() {
+        return idleCount;
+    }
+
+    long getReapedCount() {
+        return reapedCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private void run() {
+        while (running.get()) {
+            try {
+                selector.select(REAP_INTERVAL_MS);
+                long now = System.currentTimeMillis();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                        accept((ServerSocketChannel) key.channel(), now);
+                    else
+                        handleIo((TcpConnection) key.attachment(), key, now);
+                }
+
+                TcpConnection connection;
+                while ((connection = pendingWrites.poll()) != null)
+                    flush(connection, now);
+
+                if (now - lastReapTime >= REAP_INTERVAL_MS) {
+                    reap(now);
+                    lastReapTime = now;
+                }
+
+                openCount = connections.size();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running.get())
+                    logger.error("logpresso dnsproxy: TCP event loop error", e);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server, long now) throws IOException {
+        for (int i = 0; i < MAX_ACCEPTS_PER_WAKEUP; i++) {
+            SocketChannel channel = server.accept();
+            if (channel == null)
+                return;
+
+            if (connections.size() >= maxConnections && !evictConnection(now)) {
+                rejectedCount.incrementAndGet();
+                if (logger.isDebugEnabled())
+                    logger.debug("logpresso dnsproxy: TCP connection table full, rejecting {}", channel.getRemoteAddress());
+
+                channel.close();
+                continue;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                TcpConnection connection = new TcpConnection(channel, key, this, now);
+                key.attach(connection);
+                connections.put(connection, Boolean.TRUE);
+            } catch (IOException e) {
+                channel.close();
+                logger.warn("logpresso dnsproxy: Failed to register TCP connection", e);
+            }
+        }
+    }
+
+    private void handleIo(TcpConnection connection, SelectionKey key, long now) {
+        connections.get(connection);
+        try {
+            if (key.isReadable())
+                connection.read(now);
+
+            if (key.isValid() && key.isWritable())
+                connection.flush(now);
+
+            if (connection.isFinished())
+                close(connection);
+        } catch (IOException e) {
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: TCP connection closed: {}", e.getMessage());
+
+            close(connection);
+        }
+    }
+
+    private void flush(TcpConnection connection, long now) {
+        if (!connection.isOpen())
+            return;
+
+        connections.get(connection);
+        try {
+            connection.flush(now);
+            if (connection.isFinished())
+                close(connection);
+        } catch (IOException e) {
+            if (logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: TCP write failed: {}", e.getMessage());
+
+            close(connection);
+        }
+    }
+
+    void dispatch(TcpConnection connection, byte[] queryData, long now) {
+        byte[] responseData = handler.handleCached(queryData, queryData.length, Integer.MAX_VALUE);
+        if (responseData != null) {
+            connection.complete(now, responseData);
+            return;
+        }
+
+        try {
+            executor.execute(() -> handler.handleAsync(queryData, Integer.MAX_VALUE, true)
+                    .whenComplete((response, error) -> {
+                        if (error != null)
+                            logger.error("logpresso dnsproxy: Failed to handle TCP query", error);
+
+                        connection.complete(now, response);
+                    }));
+        } catch (RejectedExecutionException e) {
+            connection.complete(now, null);
+        }
+    }
+
+    void requestWrite(TcpConnection connection) {
+        pendingWrites.add(connection);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    private void reap(long now) {
+        long timeout = currentIdleTimeout();
+        int idle = 0;
+
+        Iterator<TcpConnection> it = connections.keySet().iterator();
+        while (it.hasNext()) {
+            TcpConnection connection = it.next();
+            if (connection.isIdle()) {
+                if (now - connection.getLastActivity() < timeout) {
+                    idle++;
+                    continue;
+                }
+            } else if (!connection.isStalled(now, timeout, queryTimeoutMs)) {
+                continue;
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("logpresso dnsproxy: Closing stalled TCP connection");
+            }
+
+            it.remove();
+            reapedCount.incrementAndGet();
+            connection.close();
+        }
+
+        idleCount = idle;
+    }
+
+    // 유휴 연결이 없으면 가장 오래 사용되지 않은 stalled 연결을 닫음
+    private boolean evictConnection(long now) {
+        long timeout = currentIdleTimeout();
+        TcpConnection victim = null;
+        for (TcpConnection connection : connections.keySet()) {
+            if (connection.isIdle()) {
+                victim = connection;
+                break;
+            }
+
+            if (victim == null && connection.isStalled(now, timeout, queryTimeoutMs))
+                victim = connection;
+        }
+
+        if (victim == null)
+            return false;
+
+        reapedCount.incrementAndGet();
+        close(victim);
+        return true;
+    }
+
+    private long currentIdleTimeout() {
+        double usage = (double) connections.size() / maxConnections;
+        if (usage <= PRESSURE_THRESHOLD)
+            return idleTimeoutMs;
+
+        long timeout = (long) (idleTimeoutMs * (1 - usage) / (1 - PRESSURE_THRESHOLD));
+        return Math.min(idleTimeoutMs, Math.max(MIN_IDLE_TIMEOUT_MS, timeout));
+    }
+
+    private void close(TcpConnection connection) {
+        connections.remove(connection);
+        connection.close();
+    }
+
+    @Override
+    public void close() {
+        running.set(false);
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("logpresso dnsproxy: Failed to close TCP selector", e);
+        }
+
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("logpresso dnsproxy: Failed to close TCP channel", e);
+            }
+        }
+
+        serverChannels.clear();
+
+        if (thread != null) {
+            try {
+                thread.join(REAP_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (TcpConnection connection : new ArrayList<>(connections.keySet()))
+            connection.close();
+
+        connections.clear();
+    }
+
+}
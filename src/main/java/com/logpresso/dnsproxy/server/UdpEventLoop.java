@@ -0,0 +1,212 @@
+package com.logpresso.dnsproxy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking UDP listener. A single thread drains every bound channel, answers
+ * cache hits inline, and hands only cache misses to the worker executor. With
+ * SO_REUSEPORT several loops bind the same address and the kernel spreads
+ * packets across them.
+ */
+class UdpEventLoop implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpEventLoop.class);
+
+    private static final int MAX_READS_PER_WAKEUP = 64;
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private final String name;
+    private final DnsHandler handler;
+    private final Executor executor;
+    private final int maxResponseSize;
+    private final BufferPool bufferPool;
+    private final Selector selector;
+    private final List<DatagramChannel> channels = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    // 이벤트 루프 스레드 전용 버퍼
+    private final byte[] queryScratch;
+
+    private Thread thread;
+
+    UdpEventLoop(String name, DnsHandler handler, Executor executor, int bufferSize, int maxResponseSize) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxResponseSize = maxResponseSize;
+        this.bufferPool = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+        this.queryScratch = new byte[bufferSize];
+        this.selector = Selector.open();
+    }
+
+    void bind(String address, int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        channels.add(channel);
+        logger.info("logpresso dnsproxy: UDP server listening on {}:{} (event loop {})", address, port, name);
+    }
+
+    // 포트 0으로 바인드했을 때 실제 포트
+    int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channels.get(0).getLocalAddress()).getPort();
+    }
+
+    void start() {
+        running.set(true);
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (running.get()) {
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (key.isValid() && key.isReadable())
+                        drain((DatagramChannel) key.channel());
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running.get())
+                    logger.error("logpresso dnsproxy: UDP event loop error", e);
+            }
+        }
+    }
+
+    private void drain(DatagramChannel channel) {
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+            ByteBuffer buffer = bufferPool.acquire();
+            SocketAddress client;
+            try {
+                client = channel.receive(buffer);
+            } catch (IOException e) {
+                bufferPool.release(buffer);
+                if (running.get())
+                    logger.error("logpresso dnsproxy: UDP receive error", e);
+                return;
+            }
+
+            if (client == null) {
+                bufferPool.release(buffer);
+                return;
+            }
+
+            buffer.flip();
+            dispatch(channel, buffer, client);
+        }
+    }
+
+    private void dispatch(DatagramChannel channel, ByteBuffer buffer, SocketAddress client) {
+        int length = buffer.remaining();
+        buffer.get(queryScratch, 0, length);
+
+        byte[] responseData = handler.handleCached(queryScratch, length, maxResponseSize);
+        if (responseData != null) {
+            send(channel, buffer, responseData, client);
+            bufferPool.release(buffer);
+            return;
+        }
+
+        // 캐시 미스: upstream 응답을 기다리는 동안 버퍼를 잡고 있지 않도록 질의만 복사
+        bufferPool.release(buffer);
+        byte[] queryData = Arrays.copyOf(queryScratch, length);
+        executor.execute(() -> handleMiss(channel, queryData, client));
+    }
+
+    private void handleMiss(DatagramChannel channel, byte[] queryData, SocketAddress client) {
+        // upstream 응답을 기다리는 동안 워커 스레드를 점유하지 않음
+        handler.handleAsync(queryData, maxResponseSize, true).whenComplete((responseData, error) -> {
+            if (error != null)
+                logger.error("logpresso dnsproxy: Failed to handle UDP query", error);
+
+            if (responseData == null)
+                return;
+
+            // 응답을 보낼 때만 버퍼를 빌림
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                send(channel, buffer, responseData, client);
+            } finally {
+                bufferPool.release(buffer);
+            }
+        });
+    }
+
+    private void send(DatagramChannel channel, ByteBuffer buffer, byte[] responseData, SocketAddress client) {
+        ByteBuffer out;
+        if (responseData.length <= buffer.capacity()) {
+            buffer.clear();
+            buffer.put(responseData);
+            buffer.flip();
+            out = buffer;
+        } else {
+            out = ByteBuffer.wrap(responseData);
+        }
+
+        try {
+            if (channel.send(out, client) == 0 && logger.isDebugEnabled())
+                logger.debug("logpresso dnsproxy: UDP send buffer full, response to {} dropped", client);
+        } catch (IOException e) {
+            if (running.get())
+                logger.error("logpresso dnsproxy: Failed to send UDP response", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running.set(false);
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("logpresso dnsproxy: Failed to close UDP selector", e);
+        }
+
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("logpresso dnsproxy: Failed to close UDP channel", e);
+            }
+        }
+
+        channels.clear();
+    }
+
+}
@@ -0,0 +1,341 @@
+package com.logpresso.dnsproxy.wire;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for reading and patching DNS messages directly in wire format
+ * (RFC 1035 4.1) without building a dnsjava Message.
+ */
+public final class DnsWire {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int TYPE_OPT = 41;
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    public static final int OPTION_TCP_KEEPALIVE = 11;
+
+    private static final int FLAGS_OFFSET = 2;
+    private static final int QDCOUNT_OFFSET = 4;
+    private static final int ANCOUNT_OFFSET = 6;
+    private static final int NSCOUNT_OFFSET = 8;
+    private static final int ARCOUNT_OFFSET = 10;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+
+    // OPT RR: root name(1) + type(2) + payload size(2) + ext rcode/version/flags(4) + rdlength(2)
+    private static final int OPT_RECORD_LENGTH = 11;
+    private static final int EDNS_FLAG_DO = 0x8000;
+
+    private DnsWire() {
+    }
+
+    public static int getUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    public static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    public static long getUnsignedInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    public static void putInt(byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    public static int getId(byte[] data) {
+        return getUnsignedShort(data, 0);
+    }
+
+    public static void setId(byte[] data, int id) {
+        putShort(data, 0, id);
+    }
+
+    public static int getQuestionCount(byte[] data) {
+        return getUnsignedShort(data, QDCOUNT_OFFSET);
+    }
+
+    public static int getAnswerCount(byte[] data) {
+        return getUnsignedShort(data, ANCOUNT_OFFSET);
+    }
+
+    public static int getAuthorityCount(byte[] data) {
+        return getUnsignedShort(data, NSCOUNT_OFFSET);
+    }
+
+    public static int getAdditionalCount(byte[] data) {
+        return getUnsignedShort(data, ARCOUNT_OFFSET);
+    }
+
+    /**
+     * Returns true if the data is a standard query (QR=0, OPCODE=QUERY) with
+     * exactly one question, no answer or authority records and at most one
+     * additional record. A caller accepting the additional record must check
+     * that it is the OPT record with findQueryOpt().
+     */
+    public static boolean isSimpleQuery(byte[] data, int length) {
+        if (length < HEADER_LENGTH)
+            return false;
+
+        int flags = getUnsignedShort(data, FLAGS_OFFSET);
+        if ((flags & FLAG_QR) != 0 || (flags & OPCODE_MASK) != 0)
+            return false;
+
+        return getQuestionCount(data) == 1
+                && getAnswerCount(data) == 0
+                && getAuthorityCount(data) == 0
+                && getAdditionalCount(data) <= 1;
+    }
+
+    /**
+     * Returns the offset of the OPT pseudo record of a query if it is the only
+     * additional record and ends the message right after the question, or -1.
+     */
+    public static int findQueryOpt(byte[] data, int length, int questionEnd) {
+        if (getAdditionalCount(data) != 1 || questionEnd + OPT_RECORD_LENGTH > length)
+            return -1;
+
+        if (data[questionEnd] != 0 || getUnsignedShort(data, questionEnd + 1) != TYPE_OPT)
+            return -1;
+
+        int rdlength = getUnsignedShort(data, questionEnd + 9);
+        return questionEnd + OPT_RECORD_LENGTH + rdlength == length ? questionEnd : -1;
+    }
+
+    public static int getOptPayloadSize(byte[] data, int optOffset) {
+        return getUnsignedShort(data, optOffset + 3);
+    }
+
+    public static int getOptVersion(byte[] data, int optOffset) {
+        return data[optOffset + 6] & 0xff;
+    }
+
+    public static boolean isOptDnssecOk(byte[] data, int optOffset) {
+        return (getUnsignedShort(data, optOffset + 7) & EDNS_FLAG_DO) != 0;
+    }
+
+    // OPT TTL의 첫 바이트가 확장 RCODE의 상위 8비트
+    public static int getOptExtendedRcode(byte[] data, int optOffset) {
+        return data[optOffset + 5] & 0xff;
+    }
+
+    /**
+     * Returns a copy of the message with an OPT record (RFC 6891) advertising
+     * payloadSize appended to the additional section.
+     */
+    public static byte[] appendOpt(byte[] data, int payloadSize, boolean dnssecOk) {
+        return appendOpt(data, payloadSize, 0, dnssecOk);
+    }
+
+    /**
+     * Same as appendOpt(data, payloadSize, dnssecOk), carrying the upper 8 bits
+     * of an extended RCODE.
+     */
+    public static byte[] appendOpt(byte[] data, int payloadSize, int extendedRcode, boolean dnssecOk) {
+        int pos = data.length;
+        byte[] out = Arrays.copyOf(data, pos + OPT_RECORD_LENGTH);
+
+        out[pos] = 0;
+        putShort(out, pos + 1, TYPE_OPT);
+        putShort(out, pos + 3, payloadSize);
+        putInt(out, pos + 5, ((long) (extendedRcode & 0xff) << 24) | (dnssecOk ? EDNS_FLAG_DO : 0));
+        putShort(out, pos + 9, 0);
+        putShort(out, ARCOUNT_OFFSET, getAdditionalCount(data) + 1);
+
+        return out;
+    }
+
+    /**
+     * Returns a copy of a query with an empty edns-tcp-keepalive option
+     * (RFC 7828) added to its OPT record. The copy is unchanged if the query
+     * has no OPT record found by findQueryOpt() or already carries the option.
+     */
+    public static byte[] addTcpKeepalive(byte[] query, int questionEnd) {
+        int opt = findQueryOpt(query, query.length, questionEnd);
+        if (opt < 0 || findOption(query, opt + OPT_RECORD_LENGTH, getUnsignedShort(query, opt + 9), OPTION_TCP_KEEPALIVE) >= 0)
+            return query.clone();
+
+        int pos = query.length;
+        byte[] out = Arrays.copyOf(query, pos + 4);
+        putShort(out, pos, OPTION_TCP_KEEPALIVE);
+        putShort(out, pos + 2, 0);
+        putShort(out, opt + 9, getUnsignedShort(query, opt + 9) + 4);
+        return out;
+    }
+
+    /**
+     * Returns the idle timeout, in units of 100 milliseconds, that a response
+     * advertises with the edns-tcp-keepalive option, or -1 if it has none or
+     * the message is malformed.
+     */
+    public static int findTcpKeepalive(byte[] data) {
+        int opt = findOpt(data);
+        if (opt < 0)
+            return -1;
+
+        int option = findOption(data, opt + OPT_RECORD_LENGTH, getUnsignedShort(data, opt + 9), OPTION_TCP_KEEPALIVE);
+        return option >= 0 && getUnsignedShort(data, option + 2) == 2 ? getUnsignedShort(data, option + 4) : -1;
+    }
+
+    /**
+     * Returns the offset of the OPT record of a message, or -1 if it has none
+     * or the message is malformed.
+     */
+    public static int findOpt(byte[] data) {
+        int length = data.length;
+        if (length < HEADER_LENGTH)
+            return -1;
+
+        int pos = HEADER_LENGTH;
+        int questions = getQuestionCount(data);
+        for (int i = 0; i < questions; i++) {
+            pos = skipName(data, pos, length);
+            if (pos < 0 || pos + 4 > length)
+                return -1;
+            pos += 4;
+        }
+
+        int records = getAnswerCount(data) + getAuthorityCount(data) + getAdditionalCount(data);
+        for (int i = 0; i < records; i++) {
+            int start = pos;
+            pos = skipName(data, pos, length);
+            if (pos < 0 || pos + 10 > length)
+                return -1;
+
+            int type = getUnsignedShort(data, pos);
+            int rdlength = getUnsignedShort(data, pos + 8);
+            if (pos + 10 + rdlength > length)
+                return -1;
+
+            // OPT의 소유자 이름은 루트(1바이트)
+            if (type == TYPE_OPT)
+                return pos == start + 1 ? start : -1;
+
+            pos += 10 + rdlength;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns a copy of the message without the OPT record found by findOpt().
+     */
+    public static byte[] removeOpt(byte[] data, int optOffset) {
+        int end = optOffset + OPT_RECORD_LENGTH + getUnsignedShort(data, optOffset + 9);
+        byte[] out = new byte[data.length - (end - optOffset)];
+        System.arraycopy(data, 0, out, 0, optOffset);
+        System.arraycopy(data, end, out, optOffset, data.length - end);
+        putShort(out, ARCOUNT_OFFSET, getAdditionalCount(data) - 1);
+        return out;
+    }
+
+    // OPT rdata 안에서 옵션의 오프셋을 찾음 (code(2) + length(2) + data)
+    private static int findOption(byte[] data, int offset, int rdlength, int code) {
+        int end = offset + rdlength;
+        int pos = offset;
+        while (pos + 4 <= end) {
+            int optionLength = getUnsignedShort(data, pos + 2);
+            if (pos + 4 + optionLength > end)
+                return -1;
+            if (getUnsignedShort(data, pos) == code)
+                return pos;
+
+            pos += 4 + optionLength;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Builds an empty response with the TC flag set from a query whose question
+     * section ends at questionEnd, telling the client to retry over TCP.
+     */
+    public static byte[] createTruncatedResponse(byte[] query, int questionEnd) {
+        byte[] response = Arrays.copyOf(query, questionEnd);
+
+        int flags = getUnsignedShort(query, FLAGS_OFFSET);
+        putShort(response, FLAGS_OFFSET, (flags & (OPCODE_MASK | FLAG_RD)) | FLAG_QR | FLAG_TC);
+        putShort(response, QDCOUNT_OFFSET, 1);
+        putShort(response, ANCOUNT_OFFSET, 0);
+        putShort(response, NSCOUNT_OFFSET, 0);
+        putShort(response, ARCOUNT_OFFSET, 0);
+
+        return response;
+    }
+
+    /**
+     * Returns the offset just past the domain name starting at offset, following
+     * the RFC 1035 compression rules, or -1 if the name is malformed.
+     */
+    public static int skipName(byte[] data, int offset, int length) {
+        int pos = offset;
+        while (pos < length) {
+            int len = data[pos] & 0xff;
+            if (len == 0)
+                return pos + 1;
+
+            if ((len & 0xc0) == 0xc0)
+                return pos + 2 <= length ? pos + 2 : -1;
+
+            if ((len & 0xc0) != 0)
+                return -1;
+
+            pos += len + 1;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the offsets of the TTL field of every resource record in the
+     * answer, authority and additional sections, skipping OPT pseudo records
+     * whose TTL field carries EDNS flags. Returns null if the message is malformed.
+     */
+    public static int[] findTtlOffsets(byte[] data) {
+        int length = data.length;
+        if (length < HEADER_LENGTH)
+            return null;
+
+        int pos = HEADER_LENGTH;
+        int questions = getQuestionCount(data);
+        for (int i = 0; i < questions; i++) {
+            pos = skipName(data, pos, length);
+            if (pos < 0 || pos + 4 > length)
+                return null;
+            pos += 4;
+        }
+
+        int records = getAnswerCount(data) + getAuthorityCount(data) + getAdditionalCount(data);
+        int[] offsets = new int[records];
+        int count = 0;
+
+        for (int i = 0; i < records; i++) {
+            pos = skipName(data, pos, length);
+            if (pos < 0 || pos + 10 > length)
+                return null;
+
+            int type = getUnsignedShort(data, pos);
+            int rdlength = getUnsignedShort(data, pos + 8);
+            if (type != TYPE_OPT)
+                offsets[count++] = pos + 4;
+
+            pos += 10 + rdlength;
+            if (pos > length)
+                return null;
+        }
+
+        return count == offsets.length ? offsets : Arrays.copyOf(offsets, count);
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.logpresso.dnsproxy.cache;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheKeyTest {
+
+    @Test
+    void testFromQueryMatchesName() throws IOException {
+        byte[] query = createQuery("www.example.com.", Type.A);
+
+        CacheKey fromWire = CacheKey.fromQuery(query, query.length);
+        CacheKey fromName = CacheKey.of(Name.fromString("www.example.com."), Type.A, DClass.IN);
+
+        assertNotNull(fromWire);
+        assertEquals(fromName, fromWire);
+        assertEquals(fromName.hashCode(), fromWire.hashCode());
+        assertEquals("www.example.com.:1:1", fromWire.toString());
+    }
+
+    @Test
+    void testFromQueryIsCaseInsensitive() throws IOException {
+        byte[] upper = createQuery("WwW.ExAmPlE.CoM.", Type.A);
+        byte[] lower = createQuery("www.example.com.", Type.A);
+
+        assertEquals(CacheKey.fromQuery(lower, lower.length), CacheKey.fromQuery(upper, upper.length));
+    }
+
+    @Test
+    void testTypeIsPartOfKey() throws IOException {
+        byte[] a = createQuery("example.com.", Type.A);
+        byte[] aaaa = createQuery("example.com.", Type.AAAA);
+
+        assertNotEquals(CacheKey.fromQuery(a, a.length), CacheKey.fromQuery(aaaa, aaaa.length));
+    }
+
+    @Test
+    void testFromQueryRejectsTruncatedData() throws IOException {
+        byte[] query = createQuery("example.com.", Type.A);
+
+        assertNull(CacheKey.fromQuery(query, query.length - 2));
+        assertNull(CacheKey.fromQuery(query, 14));
+    }
+
+    @Test
+    void testFromQueryRejectsCompressedName() throws IOException {
+        byte[] query = createQuery("example.com.", Type.A);
+        query[12] = (byte) 0xc0;
+
+        assertNull(CacheKey.fromQuery(query, query.length));
+    }
+
+    @Test
+    void testFromQueryReadsDnssecOk() throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        query.addRecord(new OPTRecord(1232, 0, 0, ExtendedFlags.DO), Section.ADDITIONAL);
+        byte[] data = query.toWire();
+
+        assertEquals(CacheKey.of(Name.fromString("example.com."), Type.A, DClass.IN, true), CacheKey.fromQuery(data, data.length));
+    }
+
+    @Test
+    void testFromQueryRejectsUnknownEdnsVersion() throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        query.addRecord(new OPTRecord(1232, 0, 1), Section.ADDITIONAL);
+        byte[] data = query.toWire();
+
+        assertNull(CacheKey.fromQuery(data, data.length));
+    }
+
+    private byte[] createQuery(String name, int type) throws IOException {
+        Record question = Record.newRecord(Name.fromString(name), type, DClass.IN);
+        return Message.newQuery(question).toWire();
+    }
+}
@@ -1,15 +1,25 @@
 package com.logpresso.dnsproxy.cache;
 
+import com.logpresso.dnsproxy.config.ResolvedConfig;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.xbill.DNS.*;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class DnsCacheTest {
 
+    @TempDir
+    Path tempDir;
+
     @Test
     void testCacheHitAndMiss() throws IOException {
         DnsCache cache = new DnsCache();
@@ -38,6 +48,105 @@ class DnsCacheTest {
         assertNull(cache.get("example.com.", Type.A, DClass.IN));
     }
 
+    @Test
+    void testExpireRemovesDueEntries() throws IOException, InterruptedException {
+        DnsCache cache = new DnsCache();
+
+        cache.put("short.com.", Type.A, DClass.IN, createResponse("short.com", "1.1.1.1", 1), false);
+        cache.put("long.com.", Type.A, DClass.IN, createResponse("long.com", "2.2.2.2", 300), false);
+        assertEquals(0, cache.expire());
+
+        Thread.sleep(2100);
+
+        // 조회 없이도 만료된 항목이 메모리에서 제거됨
+        assertEquals(1, cache.expire());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getExpiredCount());
+        assertNotNull(cache.get("long.com.", Type.A, DClass.IN));
+    }
+
+    @Test
+    void testTtlAdjustedOnHit() throws IOException, InterruptedException {
+        DnsCache cache = new DnsCache();
+
+        cache.put("example.com.", Type.A, DClass.IN,
+                createResponse("example.com", "1.1.1.1", 300), false);
+
+        Thread.sleep(1100);
+
+        Message cached = cache.get("example.com.", Type.A, DClass.IN);
+        long ttl = cached.getSection(Section.ANSWER).get(0).getTTL();
+        assertTrue(ttl < 300 && ttl >= 298);
+    }
+
+    @Test
+    void testGetWireReturnsPrivateCopy() throws IOException {
+        DnsCache cache = new DnsCache();
+        cache.put("example.com.", Type.A, DClass.IN,
+                createResponse("example.com", "1.1.1.1", 300), false);
+
+        CacheKey key = CacheKey.of(Name.fromString("example.com."), Type.A, DClass.IN);
+        byte[] first = cache.getWire(key);
+        byte original = first[0];
+        first[0] = (byte) ~original;
+
+        assertEquals(original, cache.getWire(key)[0]);
+    }
+
+    @Test
+    void testServeStale() throws IOException, InterruptedException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .staleRetentionSec(60)
+                .build();
+        DnsCache cache = new DnsCache(config);
+
+        List<CacheKey> refreshed = new ArrayList<>();
+        cache.setRefresher(refreshed::add);
+
+        cache.put("example.com.", Type.A, DClass.IN,
+                createResponse("example.com", "1.1.1.1", 1), false);
+
+        Thread.sleep(1100);
+
+        // 만료 후에도 stale 응답을 돌려주고 갱신은 한 번만 요청
+        assertNotNull(cache.get("example.com.", Type.A, DClass.IN));
+        assertNotNull(cache.get("example.com.", Type.A, DClass.IN));
+
+        assertEquals(2, cache.getStaleHitCount());
+        assertEquals(1, refreshed.size());
+        assertEquals(CacheKey.of(Name.fromString("example.com."), Type.A, DClass.IN), refreshed.get(0));
+    }
+
+    @Test
+    void testPrefetchHotEntry() throws IOException, InterruptedException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .prefetchThreshold(50)
+                .prefetchMinHits(2)
+                .build();
+        DnsCache cache = new DnsCache(config);
+
+        List<CacheKey> refreshed = new ArrayList<>();
+        cache.setRefresher(refreshed::add);
+
+        cache.put("example.com.", Type.A, DClass.IN,
+                createResponse("example.com", "1.1.1.1", 2), false);
+
+        // TTL이 충분히 남아 있으면 프리페치하지 않음
+        assertNotNull(cache.get("example.com.", Type.A, DClass.IN));
+        assertNotNull(cache.get("example.com.", Type.A, DClass.IN));
+        assertTrue(refreshed.isEmpty());
+
+        Thread.sleep(1200);
+
+        // 남은 TTL이 절반 이하가 되면 한 번만 갱신 요청
+        assertNotNull(cache.get("example.com.", Type.A, DClass.IN));
+        assertNotNull(cache.get("example.com.", Type.A, DClass.IN));
+        assertEquals(1, refreshed.size());
+        assertEquals(1, cache.getPrefetchCount());
+    }
+
     @Test
     void testNegativeCache() throws IOException, InterruptedException {
         DnsCache cache = new DnsCache();
@@ -54,6 +163,58 @@ class DnsCacheTest {
         assertNotNull(cache.get("nonexistent.example.com.", Type.A, DClass.IN));
     }
 
+    @Test
+    void testNegativeTtlFromSoa() throws IOException {
+        DnsCache cache = new DnsCache();
+
+        // SOA TTL과 MINIMUM 중 작은 값이 네거티브 TTL이 되고, 응답의 SOA TTL도 그 값으로 제한됨
+        cache.put("nonexistent.example.com.", Type.A, DClass.IN,
+                createNegativeResponse("nonexistent.example.com", Type.A, Rcode.NXDOMAIN, 3600, 60), true);
+
+        Message cached = cache.get("nonexistent.example.com.", Type.A, DClass.IN);
+        assertNotNull(cached);
+        assertTrue(cached.getSection(Section.AUTHORITY).get(0).getTTL() <= 60);
+    }
+
+    @Test
+    void testNoDataCached() throws IOException, InterruptedException {
+        DnsCache cache = new DnsCache();
+
+        cache.put("ipv4only.example.com.", Type.AAAA, DClass.IN,
+                createNegativeResponse("ipv4only.example.com", Type.AAAA, Rcode.NOERROR, 900, 1), false);
+        assertNotNull(cache.get("ipv4only.example.com.", Type.AAAA, DClass.IN));
+
+        Thread.sleep(1100);
+        assertNull(cache.get("ipv4only.example.com.", Type.AAAA, DClass.IN));
+
+        // SOA가 없는 NODATA는 캐시하지 않음
+        Message noSoa = createNegativeResponse("nosoa.example.com", Type.AAAA, Rcode.NOERROR, 0, 0);
+        noSoa.removeAllRecords(Section.AUTHORITY);
+        cache.put("nosoa.example.com.", Type.AAAA, DClass.IN, noSoa, false);
+        assertNull(cache.get("nosoa.example.com.", Type.AAAA, DClass.IN));
+    }
+
+    @Test
+    void testNegativeTtlClamped() throws IOException, InterruptedException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .negativeCacheMinTtlSec(5)
+                .negativeCacheMaxTtlSec(20)
+                .build();
+        DnsCache cache = new DnsCache(config);
+
+        cache.put("long.example.com.", Type.AAAA, DClass.IN,
+                createNegativeResponse("long.example.com", Type.AAAA, Rcode.NOERROR, 86400, 86400), false);
+        cache.put("short.example.com.", Type.AAAA, DClass.IN,
+                createNegativeResponse("short.example.com", Type.AAAA, Rcode.NOERROR, 1, 1), false);
+
+        Message cached = cache.get("long.example.com.", Type.AAAA, DClass.IN);
+        assertTrue(cached.getSection(Section.AUTHORITY).get(0).getTTL() <= 20);
+
+        Thread.sleep(1100);
+        assertNotNull(cache.get("short.example.com.", Type.AAAA, DClass.IN));
+    }
+
     @Test
     void testCacheClear() throws IOException {
         DnsCache cache = new DnsCache();
@@ -73,7 +234,7 @@ class DnsCacheTest {
 
     @Test
     void testOldestEviction() throws IOException {
-        // ConcurrentHashMap 기반 구현은 creation time 기준으로 오래된 항목을 제거
+        // 작은 캐시는 샤드 하나로 동작하므로 전역 LRU 순서로 제거
         DnsCache cache = new DnsCache(3);
 
         cache.put("a.com.", Type.A, DClass.IN,
@@ -96,6 +257,274 @@ class DnsCacheTest {
         assertNotNull(cache.get("d.com.", Type.A, DClass.IN));
     }
 
+    @Test
+    void testLruEviction() throws IOException {
+        DnsCache cache = new DnsCache(3);
+
+        cache.put("a.com.", Type.A, DClass.IN,
+                createResponse("a.com", "1.1.1.1", 300), false);
+        cache.put("b.com.", Type.A, DClass.IN,
+                createResponse("b.com", "2.2.2.2", 300), false);
+        cache.put("c.com.", Type.A, DClass.IN,
+                createResponse("c.com", "3.3.3.3", 300), false);
+
+        // a를 조회하면 가장 오래 사용되지 않은 항목은 b가 됨
+        assertNotNull(cache.get("a.com.", Type.A, DClass.IN));
+
+        cache.put("d.com.", Type.A, DClass.IN,
+                createResponse("d.com", "4.4.4.4", 300), false);
+
+        assertNotNull(cache.get("a.com.", Type.A, DClass.IN));
+        assertNull(cache.get("b.com.", Type.A, DClass.IN));
+        assertNotNull(cache.get("c.com.", Type.A, DClass.IN));
+        assertNotNull(cache.get("d.com.", Type.A, DClass.IN));
+    }
+
+    @Test
+    void testShardedCacheStaysBounded() throws IOException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .cacheShards(8)
+                .build();
+        DnsCache cache = new DnsCache(config);
+        assertEquals(8, cache.getShardCount());
+
+        for (int i = 0; i < 12000; i++) {
+            String name = "host" + i + ".example.com";
+            cache.put(name + ".", Type.A, DClass.IN, createResponse(name, "1.1.1.1", 300), false);
+        }
+
+        // 샤드별 용량 = ceil(10000 / 8)
+        assertTrue(cache.size() <= 10000);
+        assertTrue(cache.size() > 9000);
+        assertNotNull(cache.get("host11999.example.com.", Type.A, DClass.IN));
+    }
+
+    @Test
+    void testTinyLfuKeepsHotEntries() throws IOException {
+        DnsCache lru = createScanCache("lru");
+        DnsCache tinyLfu = createScanCache("tinylfu");
+        assertEquals("tinylfu", tinyLfu.getPolicy());
+
+        for (DnsCache cache : List.of(lru, tinyLfu)) {
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 100; i++) {
+                    String name = "hot" + i + ".example.com";
+                    if (cache.get(name + ".", Type.A, DClass.IN) == null)
+                        cache.put(name + ".", Type.A, DClass.IN, createResponse(name, "1.1.1.1", 300), false);
+                }
+            }
+
+            // 일회성 이름이 캐시 용량의 두 배만큼 들어옴
+            for (int i = 0; i < 20000; i++) {
+                String name = "tail" + i + ".example.com";
+                assertNull(cache.get(name + ".", Type.A, DClass.IN));
+                cache.put(name + ".", Type.A, DClass.IN, createResponse(name, "2.2.2.2", 300), false);
+            }
+        }
+
+        assertEquals(0, countHot(lru));
+        assertTrue(countHot(tinyLfu) > 90);
+        assertTrue(tinyLfu.getRejectedCount() > 0);
+        assertEquals(0, lru.getRejectedCount());
+        assertTrue(tinyLfu.getHitRatio() > lru.getHitRatio());
+    }
+
+    private DnsCache createScanCache(String policy) {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .cachePolicy(policy)
+                .cacheShards(1)
+                .build();
+        return new DnsCache(config);
+    }
+
+    private int countHot(DnsCache cache) {
+        int count = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get("hot" + i + ".example.com.", Type.A, DClass.IN) != null)
+                count++;
+        }
+
+        return count;
+    }
+
+    @Test
+    void testByteBoundedCache() throws IOException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .cacheMaxBytes(64 * 1024)
+                .build();
+        DnsCache cache = new DnsCache(config);
+        assertEquals(64 * 1024, cache.getMaxBytes());
+
+        for (int i = 0; i < 2000; i++) {
+            String name = "host" + i + ".example.com";
+            cache.put(name + ".", Type.A, DClass.IN, createResponse(name, "1.1.1.1", 300), false);
+        }
+
+        // 항목 수가 아니라 추정 바이트로 제한됨
+        assertTrue(cache.getRetainedBytes() <= 64 * 1024);
+        assertTrue(cache.getRetainedBytes() > 60 * 1024);
+        assertTrue(cache.size() < 2000);
+        assertNotNull(cache.get("host1999.example.com.", Type.A, DClass.IN));
+
+        cache.clear();
+        assertEquals(0, cache.getRetainedBytes());
+    }
+
+    @Test
+    void testOffHeapCache() throws IOException, InterruptedException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .cacheStorage("offheap")
+                .build();
+        DnsCache cache = new DnsCache(config);
+        assertEquals("offheap", cache.getStorage());
+
+        cache.put("example.com.", Type.A, DClass.IN, createResponse("example.com", "1.1.1.1", 300), false);
+        cache.put("short.com.", Type.A, DClass.IN, createResponse("short.com", "3.3.3.3", 1), false);
+        assertNull(cache.get("other.com.", Type.A, DClass.IN));
+
+        // 같은 키를 다시 넣으면 교체
+        cache.put("example.com.", Type.A, DClass.IN, createResponse("example.com", "2.2.2.2", 300), false);
+        assertEquals(2, cache.size());
+
+        Thread.sleep(2100);
+
+        Message cached = cache.get("EXAMPLE.COM.", Type.A, DClass.IN);
+        ARecord record = (ARecord) cached.getSection(Section.ANSWER).get(0);
+        assertEquals("2.2.2.2", record.getAddress().getHostAddress());
+        assertTrue(record.getTTL() < 300 && record.getTTL() >= 297);
+
+        // off-heap 만료는 호출마다 인덱스의 1/16씩 훑음
+        int expired = 0;
+        for (int i = 0; i < 16; i++)
+            expired += cache.expire();
+
+        assertEquals(1, expired);
+        assertEquals(1, cache.size());
+        assertNull(cache.get("short.com.", Type.A, DClass.IN));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getRetainedBytes());
+    }
+
+    @Test
+    void testOffHeapCacheStaysBounded() throws IOException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .cacheStorage("offheap")
+                .cacheMaxBytes(1024 * 1024)
+                .build();
+        DnsCache cache = new DnsCache(config);
+
+        for (int i = 0; i < 20000; i++) {
+            String name = "host" + i + ".example.com";
+            cache.put(name + ".", Type.A, DClass.IN, createResponse(name, "1.1.1.1", 300), false);
+        }
+
+        // 슬랩 arena를 넘지 않고 CLOCK으로 오래된 항목을 밀어냄
+        assertTrue(cache.getRetainedBytes() <= 1024 * 1024);
+        assertTrue(cache.size() < 20000);
+        assertNotNull(cache.get("host19999.example.com.", Type.A, DClass.IN));
+        assertNull(cache.get("host0.example.com.", Type.A, DClass.IN));
+    }
+
+    @Test
+    void testOffHeapEvictionIsBounded() throws IOException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("1.1.1.1"))
+                .cacheStorage("offheap")
+                .cacheShards(1)
+                .cacheMaxBytes(4 * OffHeapCacheShard.SLAB_SIZE)
+                .build();
+        DnsCache cache = new DnsCache(config);
+
+        for (int i = 0; i < 10000; i++) {
+            String name = "host" + i + ".example.com";
+            cache.put(name + ".", Type.A, DClass.IN, createResponse(name, "1.1.1.1", 300), false);
+        }
+
+        // 다른 크기 클래스의 큰 응답은 삽입마다 제한된 수의 항목만 밀어내고, 한 슬랩을 다 비울 때까지 저장하지 않음
+        int full = cache.size();
+        int attempts = 0;
+        while (cache.get("big.example.com.", Type.TXT, DClass.IN) == null && attempts++ < 1000) {
+            int before = cache.size();
+            cache.put("big.example.com.", Type.TXT, DClass.IN, createTxtResponse("big.example.com", 3000), false);
+            assertTrue(before - cache.size() <= OffHeapCacheShard.MAX_EVICTIONS_PER_PUT);
+        }
+
+        assertTrue(attempts > 1);
+        assertNotNull(cache.get("big.example.com.", Type.TXT, DClass.IN));
+        assertTrue(full - cache.size() <= full / 4 + 1);
+    }
+
+    @Test
+    void testSnapshotRoundTrip() throws IOException, InterruptedException {
+        DnsCache cache = new DnsCache();
+        cache.put("example.com.", Type.A, DClass.IN, createResponse("example.com", "1.1.1.1", 300), false);
+        cache.put("short.com.", Type.A, DClass.IN, createResponse("short.com", "2.2.2.2", 1), false);
+
+        Path snapshot = tempDir.resolve("cache.snapshot");
+        assertEquals(2, cache.saveSnapshot(snapshot));
+
+        Thread.sleep(1100);
+
+        // 만료된 항목은 건너뛰고, 남은 항목은 원래 만료 시각을 유지
+        for (String storage : new String[]{"heap", "offheap"}) {
+            ResolvedConfig config = ResolvedConfig.builder()
+                    .dns(List.of("1.1.1.1"))
+                    .cacheStorage(storage)
+                    .build();
+            DnsCache restored = new DnsCache(config);
+            assertEquals(1, restored.loadSnapshot(snapshot));
+            assertNull(restored.get("short.com.", Type.A, DClass.IN));
+
+            Message cached = restored.get("example.com.", Type.A, DClass.IN);
+            long ttl = cached.getSection(Section.ANSWER).get(0).getTTL();
+            assertTrue(ttl < 300 && ttl >= 298);
+
+            Path copy = tempDir.resolve(storage + ".snapshot");
+            assertEquals(1, restored.saveSnapshot(copy));
+            assertEquals(1, new DnsCache().loadSnapshot(copy));
+        }
+    }
+
+    @Test
+    void testCorruptSnapshot() throws IOException {
+        Path snapshot = tempDir.resolve("cache.snapshot");
+        Files.write(snapshot, new byte[]{1, 2, 3});
+        assertThrows(IOException.class, () -> new DnsCache().loadSnapshot(snapshot));
+
+        DnsCache cache = new DnsCache();
+        cache.put("example.com.", Type.A, DClass.IN, createResponse("example.com", "1.1.1.1", 300), false);
+        cache.put("example.org.", Type.A, DClass.IN, createResponse("example.org", "2.2.2.2", 300), false);
+        assertEquals(2, cache.saveSnapshot(snapshot));
+        assertFalse(Files.exists(snapshot.resolveSibling("cache.snapshot.tmp")));
+
+        // 잘린 레코드부터는 버리고 앞의 항목은 유지
+        byte[] data = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(data, data.length - 4));
+        DnsCache restored = new DnsCache();
+        assertEquals(1, restored.loadSnapshot(snapshot));
+        assertEquals(1, restored.size());
+
+        // 끝 표시가 없어도 마지막 온전한 레코드까지 읽음
+        Files.write(snapshot, Arrays.copyOf(data, data.length - 2));
+        assertEquals(2, new DnsCache().loadSnapshot(snapshot));
+    }
+
+    @Test
+    void testShardCount() {
+        assertEquals(1, DnsCache.getShardCount(3, 16));
+        assertEquals(16, DnsCache.getShardCount(10000, 16));
+        assertEquals(8, DnsCache.getShardCount(10000, 12));
+        assertEquals(2, DnsCache.getShardCount(200, 16));
+        assertEquals(256, DnsCache.getShardCount(1000000, 1024));
+    }
+
     @Test
     void testCaseInsensitiveKeys() throws IOException {
         DnsCache cache = new DnsCache();
@@ -108,6 +537,35 @@ class DnsCacheTest {
         assertNotNull(cache.get("Example.Com.", Type.A, DClass.IN));
     }
 
+    private Message createNegativeResponse(String domain, int type, int rcode, long soaTtl, long minimum) throws IOException {
+        Message response = new Message();
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setRcode(rcode);
+
+        Name name = Name.fromString(domain + ".");
+        Name zone = Name.fromString("example.com.");
+        response.addRecord(Record.newRecord(name, type, DClass.IN), Section.QUESTION);
+        response.addRecord(new SOARecord(zone, DClass.IN, soaTtl, Name.fromString("ns.example.com."),
+                Name.fromString("admin.example.com."), 1, 3600, 600, 86400, minimum), Section.AUTHORITY);
+
+        return response;
+    }
+
+    private Message createTxtResponse(String domain, int length) throws IOException {
+        Message response = new Message();
+        response.getHeader().setFlag(Flags.QR);
+
+        List<String> strings = new ArrayList<>();
+        for (int remaining = length; remaining > 0; remaining -= 200)
+            strings.add("x".repeat(Math.min(200, remaining)));
+
+        Name name = Name.fromString(domain + ".");
+        response.addRecord(Record.newRecord(name, Type.TXT, DClass.IN), Section.QUESTION);
+        response.addRecord(new TXTRecord(name, DClass.IN, 300, strings), Section.ANSWER);
+
+        return response;
+    }
+
     private Message createResponse(String domain, String ip, long ttl) throws IOException {
         Message response = new Message();
         response.getHeader().setFlag(Flags.QR);
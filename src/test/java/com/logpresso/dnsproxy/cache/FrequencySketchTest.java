@@ -0,0 +1,36 @@
+package com.logpresso.dnsproxy.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrequencySketchTest {
+
+    @Test
+    void testIncrementAndSaturate() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        assertEquals(0, sketch.frequency(42));
+
+        for (int i = 0; i < 5; i++)
+            sketch.increment(42);
+        assertEquals(5, sketch.frequency(42));
+
+        for (int i = 0; i < 100; i++)
+            sketch.increment(42);
+        assertEquals(15, sketch.frequency(42));
+    }
+
+    @Test
+    void testAging() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++)
+            sketch.increment(7);
+
+        // 증가 횟수가 용량의 10배(640)에 도달하면 모든 카운터가 반으로 줄어듦
+        for (int i = 0; i < 630; i++)
+            sketch.increment(1000 + i);
+
+        assertTrue(sketch.frequency(7) <= 7);
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.logpresso.dnsproxy.cache;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapCacheShardTest {
+
+    // 크기 클래스: 256B, 1KB, 2KB, 8KB 청크
+    private static final int SMALL = 100;
+    private static final int MEDIUM = 600;
+    private static final int LARGE = 1000;
+    private static final int HUGE = 6000;
+
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    void testDrainingClassStillInserts() throws TextParseException {
+        OffHeapCacheShard shard = fillThreeSlabs();
+
+        // 새 크기 클래스가 가장 덜 쓰인 small 슬랩을 비우기 시작
+        assertEquals(-1, put(shard, "huge.example.", HUGE));
+        assertEquals(40 + 60 + 100 - OffHeapCacheShard.MAX_EVICTIONS_PER_PUT, shard.size());
+
+        // small 클래스의 슬랩이 비우는 중이어도 small 삽입은 그 슬랩의 항목 하나와 바꿔 성공
+        int size = shard.size();
+        for (int i = 100; i < 110; i++)
+            assertEquals(1, put(shard, "small" + i + ".example.", SMALL));
+
+        assertEquals(size, shard.size());
+        for (int i = 100; i < 110; i++)
+            assertNotNull(shard.get(key("small" + i + ".example.")));
+
+        // 다음 삽입들이 남은 항목을 비우면 슬랩이 새 클래스로 넘어감
+        int result = -1;
+        for (int attempt = 0; attempt < 10 && result < 0; attempt++)
+            result = put(shard, "huge.example.", HUGE);
+
+        assertTrue(result >= 0);
+        assertNotNull(shard.get(key("huge.example.")));
+        assertTrue(put(shard, "small200.example.", SMALL) >= 0);
+    }
+
+    @Test
+    void testFailedUpsertKeepsEntry() throws TextParseException {
+        OffHeapCacheShard shard = fillThreeSlabs();
+        assertEquals(-1, put(shard, "huge.example.", HUGE));
+
+        // 다른 크기 클래스로 바꾸다 제거 한도에 걸려도 기존 응답은 남음
+        assertEquals(-1, put(shard, "large5.example.", HUGE));
+        CacheEntry entry = shard.get(key("large5.example."));
+        assertNotNull(entry);
+        assertEquals(LARGE, entry.getWire().length);
+    }
+
+    @Test
+    void testSameClassUpsertInPlace() throws TextParseException {
+        OffHeapCacheShard shard = fillThreeSlabs();
+        int size = shard.size();
+
+        assertEquals(0, put(shard, "medium3.example.", MEDIUM - 50));
+        assertEquals(size, shard.size());
+        assertEquals(MEDIUM - 50, shard.get(key("medium3.example.")).getWire().length);
+    }
+
+    // 세 크기 클래스가 슬랩을 하나씩 차지하고, small 슬랩이 가장 덜 쓰인 상태
+    private OffHeapCacheShard fillThreeSlabs() throws TextParseException {
+        OffHeapCacheShard shard = new OffHeapCacheShard(3L * OffHeapCacheShard.SLAB_SIZE);
+        for (int i = 0; i < 40; i++)
+            assertEquals(0, put(shard, "small" + i + ".example.", SMALL));
+        for (int i = 0; i < 60; i++)
+            assertEquals(0, put(shard, "large" + i + ".example.", LARGE));
+        for (int i = 0; i < 100; i++)
+            assertEquals(0, put(shard, "medium" + i + ".example.", MEDIUM));
+
+        return shard;
+    }
+
+    private int put(OffHeapCacheShard shard, String name, int length) throws TextParseException {
+        return shard.put(new CacheEntry(key(name), new byte[length], new int[0], 300), now, 0);
+    }
+
+    private static CacheKey key(String name) throws TextParseException {
+        return CacheKey.of(Name.fromString(name), Type.A, DClass.IN);
+    }
+}
@@ -0,0 +1,74 @@
+package com.logpresso.dnsproxy.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    private static final long START = 1_000_000;
+
+    @Test
+    void testExpiresOnlyDueEntries() {
+        TimerWheel wheel = new TimerWheel(START);
+        CacheEntry soon = schedule(wheel, START + 5);
+        CacheEntry later = schedule(wheel, START + 30);
+
+        List<CacheEntry> expired = new ArrayList<>();
+        wheel.advance(START + 4, expired::add);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(START + 5, expired::add);
+        assertEquals(List.of(soon), expired);
+
+        wheel.advance(START + 60, expired::add);
+        assertEquals(List.of(soon, later), expired);
+    }
+
+    @Test
+    void testCascadesLongDeadlines() {
+        TimerWheel wheel = new TimerWheel(START);
+        // 1시간, 1일, 30일 TTL은 상위 단계에 있다가 기한이 가까워지면 내려옴
+        long[] deadlines = {START + 3600, START + 86400, START + 30 * 86400};
+        List<CacheEntry> entries = new ArrayList<>();
+        for (long deadline : deadlines)
+            entries.add(schedule(wheel, deadline));
+
+        List<CacheEntry> expired = new ArrayList<>();
+        long now = START;
+        for (int i = 0; i < deadlines.length; i++) {
+            // 기한 1초 전까지는 만료되지 않음
+            while (now < deadlines[i] - 1) {
+                now = Math.min(deadlines[i] - 1, now + 17);
+                wheel.advance(now, expired::add);
+            }
+            assertEquals(i, expired.size());
+
+            now = deadlines[i];
+            wheel.advance(now, expired::add);
+            assertEquals(entries.subList(0, i + 1), expired);
+        }
+    }
+
+    @Test
+    void testDescheduleAndPastDeadline() {
+        TimerWheel wheel = new TimerWheel(START);
+        CacheEntry removed = schedule(wheel, START + 10);
+        CacheEntry past = schedule(wheel, START - 100);
+        wheel.deschedule(removed);
+
+        List<CacheEntry> expired = new ArrayList<>();
+        wheel.advance(START + 20, expired::add);
+        assertEquals(List.of(past), expired);
+    }
+
+    private CacheEntry schedule(TimerWheel wheel, long deadlineSec) {
+        CacheEntry entry = new CacheEntry(null, new byte[0], new int[0], 0);
+        wheel.schedule(entry, deadlineSec);
+        return entry;
+    }
+
+}
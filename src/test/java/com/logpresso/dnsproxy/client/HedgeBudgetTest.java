@@ -0,0 +1,52 @@
+package com.logpresso.dnsproxy.client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HedgeBudgetTest {
+
+    @Test
+    void testHedgesLimitedToPercent() {
+        HedgeBudget budget = new HedgeBudget(5);
+        assertTrue(budget.isEnabled());
+        assertFalse(budget.tryAcquire());
+
+        // 모든 질의가 hedge를 원해도 5%만 허용
+        int hedges = 0;
+        for (int i = 0; i < 1000; i++) {
+            budget.recordQuery();
+            if (budget.tryAcquire())
+                hedges++;
+        }
+
+        assertEquals(50, hedges);
+    }
+
+    @Test
+    void testBurstCapped() {
+        HedgeBudget budget = new HedgeBudget(50);
+        for (int i = 0; i < 1000; i++)
+            budget.recordQuery();
+
+        int hedges = 0;
+        while (budget.tryAcquire())
+            hedges++;
+
+        assertEquals(HedgeBudget.MAX_BURST, hedges);
+
+        budget.release();
+        assertTrue(budget.tryAcquire());
+    }
+
+    @Test
+    void testDisabled() {
+        HedgeBudget budget = new HedgeBudget(0);
+        assertFalse(budget.isEnabled());
+        for (int i = 0; i < 1000; i++)
+            budget.recordQuery();
+
+        assertFalse(budget.tryAcquire());
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.logpresso.dnsproxy.client;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpMultiplexerTest {
+
+    private ServerSocket upstream;
+    private ExecutorService executor;
+    private TcpMultiplexer mux;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        upstream = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        upstream.setSoTimeout(5000);
+        executor = Executors.newFixedThreadPool(2);
+        mux = new TcpMultiplexer(2000, executor);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        mux.close();
+        upstream.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testPipelinedQueriesShareConnection() throws Exception {
+        CompletableFuture<byte[]> first = mux.query(createQuery("example.com.", 0x1111), upstreamAddress());
+        CompletableFuture<byte[]> second = mux.query(createQuery("example.com.", 0x2222), upstreamAddress());
+
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] q1 = readFrame(in);
+            byte[] q2 = readFrame(in);
+
+            // 순서와 관계없이 ID로 매칭
+            writeFrame(out, createResponse(q2, -1));
+            writeFrame(out, createResponse(q1, -1));
+            assertEquals(0x1111, DnsWire.getId(first.get(5, TimeUnit.SECONDS)));
+            assertEquals(0x2222, DnsWire.getId(second.get(5, TimeUnit.SECONDS)));
+
+            // 다음 질의도 같은 연결로 보냄
+            CompletableFuture<byte[]> third = mux.query(createQuery("example.com.", 0x3333), upstreamAddress());
+            writeFrame(out, createResponse(readFrame(in), -1));
+            assertEquals(0x3333, DnsWire.getId(third.get(5, TimeUnit.SECONDS)));
+        }
+
+        assertEquals(3, mux.getQueryCount());
+        assertEquals(1, mux.getConnectCount());
+    }
+
+    @Test
+    void testKeepaliveZeroClosesConnection() throws Exception {
+        CompletableFuture<byte[]> future = mux.query(createQuery("example.com.", 1), upstreamAddress());
+
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] query = readFrame(in);
+            assertEquals(1, new Message(query).getOPT().getOptions(EDNSOption.Code.TCP_KEEPALIVE).size());
+
+            // 서버가 keepalive 0을 알리면 응답을 받은 뒤 연결을 닫음
+            writeFrame(new DataOutputStream(socket.getOutputStream()), createResponse(query, 0));
+            future.get(5, TimeUnit.SECONDS);
+            assertEquals(-1, in.read());
+        }
+
+        CompletableFuture<byte[]> next = mux.query(createQuery("example.com.", 2), upstreamAddress());
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            writeFrame(new DataOutputStream(socket.getOutputStream()), createResponse(readFrame(in), -1));
+            next.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(2, mux.getConnectCount());
+    }
+
+    @Test
+    void testConnectionLossFailsPendingQuery() throws Exception {
+        CompletableFuture<byte[]> future = mux.query(createQuery("example.com.", 1), upstreamAddress());
+
+        try (Socket socket = accept()) {
+            readFrame(new DataInputStream(socket.getInputStream()));
+        }
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(0, mux.getOpenConnections());
+    }
+
+    @Test
+    void testClosedKeepaliveConnectionRetried() throws Exception {
+        CompletableFuture<byte[]> first = mux.query(createQuery("example.com.", 1), upstreamAddress());
+
+        CompletableFuture<byte[]> second;
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            writeFrame(new DataOutputStream(socket.getOutputStream()), createResponse(readFrame(in), -1));
+            first.get(5, TimeUnit.SECONDS);
+
+            // 재사용한 연결을 서버가 응답 없이 닫음
+            second = mux.query(createQuery("example.com.", 2), upstreamAddress());
+            readFrame(in);
+        }
+
+        // 새 연결로 한 번 다시 보내 응답을 받음
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            writeFrame(new DataOutputStream(socket.getOutputStream()), createResponse(readFrame(in), -1));
+            assertEquals(2, DnsWire.getId(second.get(5, TimeUnit.SECONDS)));
+        }
+
+        assertEquals(3, mux.getQueryCount());
+        assertEquals(2, mux.getConnectCount());
+    }
+
+    private InetSocketAddress upstreamAddress() {
+        return new InetSocketAddress(upstream.getInetAddress(), upstream.getLocalPort());
+    }
+
+    private Socket accept() throws IOException {
+        Socket socket = upstream.accept();
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readUnsignedShort()];
+        in.readFully(data);
+        return data;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+        out.writeShort(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    // keepalive가 0 이상이면 edns-tcp-keepalive 옵션을 붙임 (100ms 단위)
+    private byte[] createResponse(byte[] queryData, int keepalive) throws IOException {
+        Message query = new Message(queryData);
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        response.addRecord(new ARecord(query.getQuestion().getName(), DClass.IN, 300,
+                InetAddress.getByName("1.1.1.1")), Section.ANSWER);
+        if (keepalive >= 0)
+            response.addRecord(new OPTRecord(1232, 0, 0, 0, new TcpKeepaliveOption(keepalive)), Section.ADDITIONAL);
+
+        return response.toWire();
+    }
+
+    private byte[] createQuery(String name, int id) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+        query.getHeader().setID(id);
+        query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        return query.toWire();
+    }
+}
@@ -0,0 +1,167 @@
+package com.logpresso.dnsproxy.client;
+
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UdpMultiplexerTest {
+
+    private DatagramSocket upstream;
+    private ExecutorService executor;
+    private UdpMultiplexer mux;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        upstream = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        upstream.setSoTimeout(5000);
+        executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "test-completion"));
+        mux = new UdpMultiplexer(2, 4096, 500, executor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mux.close();
+        upstream.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testResponseMatchedAndIdRestored() throws Exception {
+        byte[] query = createQuery("example.com.", 0x1234);
+        CompletableFuture<byte[]> future = mux.query(query, upstreamAddress());
+
+        DatagramPacket packet = receive();
+        assertEquals(1, mux.getPendingCount());
+        reply(packet, "example.com.");
+
+        byte[] response = future.get(5, TimeUnit.SECONDS);
+        assertEquals(0x1234, DnsWire.getId(response));
+        assertEquals(1, DnsWire.getAnswerCount(response));
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    @Test
+    void testResponseCompletedOnExecutor() throws Exception {
+        CompletableFuture<String> thread = mux.query(createQuery("example.com.", 1), upstreamAddress())
+                .thenApply(response -> Thread.currentThread().getName());
+
+        // 응답 이후 단계는 dispatcher 스레드가 아닌 executor에서 실행
+        reply(receive(), "example.com.");
+        assertEquals("test-completion", thread.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testQueryIdIsRandomized() throws Exception {
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            mux.query(createQuery("example.com.", 0x1234), upstreamAddress());
+            ids.add(DnsWire.getId(receive().getData()));
+        }
+
+        assertTrue(ids.size() > 1);
+    }
+
+    @Test
+    void testChannelRotatesToNewSourcePort() throws Exception {
+        mux.close();
+        mux = new UdpMultiplexer(1, 4096, 5000, executor);
+
+        // 채널당 질의 한도를 넘기면 새 포트로 보내고, 이전 포트의 응답도 계속 받음
+        Set<Integer> ports = new HashSet<>();
+        DatagramPacket first = null;
+        CompletableFuture<byte[]> firstFuture = null;
+        for (int i = 0; i <= UdpMultiplexer.MAX_QUERIES_PER_CHANNEL; i++) {
+            CompletableFuture<byte[]> future = mux.query(createQuery("example.com.", i), upstreamAddress());
+            DatagramPacket packet = receive();
+            ports.add(packet.getPort());
+            if (first == null) {
+                first = packet;
+                firstFuture = future;
+            }
+        }
+
+        assertEquals(2, ports.size());
+
+        reply(first, "example.com.");
+        assertEquals(0, DnsWire.getId(firstFuture.get(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void testMismatchedQuestionIsDropped() throws Exception {
+        CompletableFuture<byte[]> future = mux.query(createQuery("example.com.", 1), upstreamAddress());
+
+        // ID가 같아도 질문이 다르면 위조 응답으로 간주
+        reply(receive(), "evil.example.");
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    @Test
+    void testPerQueryTimeout() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> future = mux.query(createQuery("example.com.", 1), upstreamAddress(), 50);
+        receive();
+
+        // 기본 타임아웃(500ms)보다 먼저 실패해야 함
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    @Test
+    void testClosedMultiplexerFailsQuery() throws Exception {
+        mux.close();
+
+        CompletableFuture<byte[]> future = mux.query(createQuery("example.com.", 1), upstreamAddress());
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    private InetSocketAddress upstreamAddress() {
+        return new InetSocketAddress(upstream.getLocalAddress(), upstream.getLocalPort());
+    }
+
+    private DatagramPacket receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        upstream.receive(packet);
+        return packet;
+    }
+
+    private void reply(DatagramPacket request, String name) throws IOException {
+        Message response = new Message(DnsWire.getId(request.getData()));
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(Record.newRecord(Name.fromString(name), Type.A, DClass.IN), Section.QUESTION);
+        response.addRecord(new ARecord(Name.fromString(name), DClass.IN, 300,
+                InetAddress.getByName("1.1.1.1")), Section.ANSWER);
+
+        byte[] data = response.toWire();
+        upstream.send(new DatagramPacket(data, data.length, request.getSocketAddress()));
+    }
+
+    private byte[] createQuery(String name, int id) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+        query.getHeader().setID(id);
+        return query.toWire();
+    }
+}
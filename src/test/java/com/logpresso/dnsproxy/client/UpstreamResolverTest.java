@@ -0,0 +1,124 @@
+package com.logpresso.dnsproxy.client;
+
+import com.logpresso.dnsproxy.config.ResolvedConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamResolverTest {
+
+    private ServerSocket tcpUpstream;
+    private DatagramSocket udpUpstream;
+    private ExecutorService executor;
+    private UpstreamResolver resolver;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // UDP로는 항상 TC 응답을 보내고 같은 포트의 TCP로 다시 묻게 함
+        tcpUpstream = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        tcpUpstream.setSoTimeout(5000);
+        udpUpstream = new DatagramSocket(tcpUpstream.getLocalPort(), InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::replyTruncated, "test-udp-upstream");
+        thread.setDaemon(true);
+        thread.start();
+
+        executor = Executors.newFixedThreadPool(2);
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of("127.0.0.1:" + tcpUpstream.getLocalPort()))
+                .build();
+        resolver = new UpstreamResolver(config, executor);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        resolver.close();
+        udpUpstream.close();
+        tcpUpstream.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testTcpAnswerRecorded() throws Exception {
+        CompletableFuture<Message> future = resolver.resolveAsync(createQuery());
+
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] query = new byte[in.readUnsignedShort()];
+            in.readFully(query);
+
+            byte[] response = Arrays.copyOf(query, query.length);
+            response[2] |= (byte) 0x80;
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(response.length);
+            out.write(response);
+            out.flush();
+
+            assertFalse(future.get(5, TimeUnit.SECONDS).getHeader().getFlag(Flags.TC));
+        }
+
+        // UDP의 TC 응답과 TCP 응답이 모두 서버 통계에 반영됨
+        String stats = resolver.getServerStats();
+        assertTrue(stats.contains("queries=2, failures=0"), stats);
+    }
+
+    @Test
+    void testTcpFailureRecorded() throws Exception {
+        CompletableFuture<Message> future = resolver.resolveAsync(createQuery());
+
+        try (Socket socket = accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readFully(new byte[in.readUnsignedShort()]);
+        }
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+
+        String stats = resolver.getServerStats();
+        assertTrue(stats.contains("failures=1"), stats);
+    }
+
+    private void replyTruncated() {
+        while (!udpUpstream.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+                udpUpstream.receive(packet);
+
+                // QR과 TC 비트만 켜서 질의를 그대로 돌려줌
+                byte[] response = Arrays.copyOf(packet.getData(), packet.getLength());
+                response[2] |= (byte) 0x82;
+                udpUpstream.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private Socket accept() throws IOException {
+        Socket socket = tcpUpstream.accept();
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static Message createQuery() throws IOException {
+        return Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.TXT, DClass.IN));
+    }
+}
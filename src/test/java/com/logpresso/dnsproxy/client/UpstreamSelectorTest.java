@@ -0,0 +1,104 @@
+package com.logpresso.dnsproxy.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamSelectorTest {
+
+    @Test
+    void testOrderedPolicyKeepsConfiguredOrder() {
+        UpstreamServer slow = server("1.1.1.1", 200);
+        UpstreamServer fast = server("8.8.8.8", 5);
+        List<UpstreamServer> servers = List.of(slow, fast);
+
+        UpstreamSelector selector = new UpstreamSelector("ordered");
+        assertEquals("ordered", selector.getPolicy());
+        assertSame(servers, selector.order(servers));
+    }
+
+    @Test
+    void testRttPolicyPrefersFastestServer() {
+        UpstreamServer slow = server("1.1.1.1", 200);
+        UpstreamServer fast = server("8.8.8.8", 5);
+        UpstreamServer medium = server("9.9.9.9", 50);
+
+        UpstreamSelector selector = new UpstreamSelector("rtt");
+        assertEquals(List.of(fast, medium, slow), selector.order(List.of(slow, fast, medium), 99));
+
+        // 일부 질의는 느린 서버로 먼저 보내 RTT를 갱신
+        assertEquals(List.of(medium, fast, slow), selector.order(List.of(slow, fast, medium), 0));
+        assertEquals(List.of(slow, fast, medium), selector.order(List.of(slow, fast, medium), 1));
+        assertEquals(2, selector.getExploreCount());
+    }
+
+    @Test
+    void testUnmeasuredServerTriedFirst() {
+        UpstreamServer measured = server("1.1.1.1", 5);
+        UpstreamServer fresh = new UpstreamServer("8.8.8.8", 50, 2000, 0);
+
+        UpstreamSelector selector = new UpstreamSelector("rtt");
+        assertEquals(List.of(fresh, measured), selector.order(List.of(measured, fresh), 99));
+    }
+
+    @Test
+    void testFailuresLowerPreference() {
+        UpstreamServer flaky = server("1.1.1.1", 5);
+        UpstreamServer steady = server("8.8.8.8", 40);
+
+        UpstreamSelector selector = new UpstreamSelector("rtt");
+        assertSame(flaky, selector.order(List.of(flaky, steady), 99).get(0));
+
+        flaky.recordFailure();
+        assertSame(steady, selector.order(List.of(flaky, steady), 99).get(0));
+        assertEquals(1, flaky.getFailureCount());
+
+        // 다시 응답하기 시작하면 선호도를 되찾음
+        for (int i = 0; i < 20; i++)
+            flaky.recordSuccess(5000);
+
+        assertSame(flaky, selector.order(List.of(flaky, steady), 99).get(0));
+    }
+
+    @Test
+    void testOpenBreakerSkipped() {
+        UpstreamServer down = new UpstreamServer("1.1.1.1", 50, 2000, 1);
+        UpstreamServer up = server("8.8.8.8", 5);
+        down.recordFailure();
+
+        for (String policy : new String[]{"ordered", "rtt"})
+            assertEquals(List.of(up), new UpstreamSelector(policy).order(List.of(down, up)));
+
+        assertFalse(UpstreamSelector.hasAvailable(List.of(down)));
+        assertTrue(UpstreamSelector.available(List.of(down)).isEmpty());
+    }
+
+    @Test
+    void testSmoothedRtt() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 50, 2000, 0);
+        server.recordSuccess(10000);
+        assertEquals(10.0, server.getSrttMillis(), 0.001);
+
+        server.recordSuccess(20000);
+        assertEquals(13.0, server.getSrttMillis(), 0.001);
+        assertEquals(0, server.getFailureRate(), 0.001);
+        assertEquals(2, server.getQueryCount());
+    }
+
+    @Test
+    void testParseServerAddress() throws Exception {
+        assertEquals(53, new UpstreamServer("1.1.1.1", 50, 2000, 0).getAddress().getPort());
+        assertEquals(5353, new UpstreamServer("127.0.0.1:5353", 50, 2000, 0).getAddress().getPort());
+        assertEquals(5353, new UpstreamServer("[::1]:5353", 50, 2000, 0).getAddress().getPort());
+        assertEquals(53, new UpstreamServer("2001:db8::1", 50, 2000, 0).getAddress().getPort());
+    }
+
+    private static UpstreamServer server(String name, long rttMillis) {
+        UpstreamServer server = new UpstreamServer(name, 50, 2000, 0);
+        server.recordSuccess(rttMillis * 1000);
+        return server;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.logpresso.dnsproxy.client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamServerTest {
+
+    @Test
+    void testBreakerOpensAfterConsecutiveFailures() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 50, 2000, 3);
+
+        assertFalse(server.recordFailure());
+        assertFalse(server.recordFailure());
+
+        // 중간에 응답하면 연속 실패 수가 초기화됨
+        assertFalse(server.recordSuccess(5000));
+        assertFalse(server.recordFailure());
+        assertFalse(server.recordFailure());
+        assertFalse(server.isOpen());
+
+        assertTrue(server.recordFailure());
+        assertTrue(server.isOpen());
+        assertFalse(server.recordFailure());
+        assertEquals(1, server.getTripCount());
+
+        assertTrue(server.recordSuccess(5000));
+        assertFalse(server.isOpen());
+    }
+
+    @Test
+    void testBreakerDisabled() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 50, 2000, 0);
+        for (int i = 0; i < 10; i++)
+            assertFalse(server.recordFailure());
+
+        assertFalse(server.isOpen());
+    }
+
+    @Test
+    void testProbeDoesNotOverlap() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 50, 2000, 1);
+        assertTrue(server.tryStartProbe());
+        assertFalse(server.tryStartProbe());
+
+        server.finishProbe();
+        assertTrue(server.tryStartProbe());
+    }
+
+    @Test
+    void testRttP95() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 50, 2000, 3);
+        assertEquals(-1, server.getRttP95Micros());
+
+        server.recordSuccess(3000);
+        assertEquals(3000, server.getRttP95Micros());
+
+        // 128번째 표본에서 다시 계산, 최근 64개(64ms-127ms)만 남음
+        for (int i = 1; i <= 127; i++)
+            server.recordSuccess(i * 1000);
+        assertEquals(124000, server.getRttP95Micros());
+
+        // 타임아웃은 p95에 포함하지 않음
+        server.recordFailure();
+        assertEquals(124000, server.getRttP95Micros());
+    }
+
+    @Test
+    void testRto() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 1, 2000, 0);
+        assertEquals(1000, server.getRtoMillis());
+
+        // 첫 표본: SRTT 10ms, RTTVAR 5ms -> 10 + 4 * 5
+        server.recordSuccess(10000);
+        assertEquals(30, server.getRtoMillis());
+
+        // 같은 RTT가 이어지면 RTTVAR가 줄어 SRTT에 가까워짐
+        for (int i = 0; i < 50; i++)
+            server.recordSuccess(10000);
+        assertTrue(server.getRtoMillis() <= 11);
+
+        // 타임아웃마다 두 배, 상한에서 멈춤
+        long rto = server.getRtoMillis();
+        server.recordFailure();
+        assertEquals(rto * 2, server.getRtoMillis(), 1);
+        for (int i = 0; i < 20; i++)
+            server.recordFailure();
+        assertEquals(2000, server.getRtoMillis());
+    }
+
+    @Test
+    void testRtoFloor() {
+        UpstreamServer server = new UpstreamServer("1.1.1.1", 50, 2000, 0);
+
+        // 데이터센터 안의 1ms 미만 서버도 하한 아래로 내려가지 않음
+        for (int i = 0; i < 50; i++)
+            server.recordSuccess(300);
+        assertEquals(50, server.getRtoMillis());
+    }
+
+}
@@ -124,6 +124,274 @@ class ResolvedConfigParserTest {
         assertFalse(new ResolvedConfigParser().parse(configFile.toString()).isCache());
     }
 
+    @Test
+    void testParseUdpEventLoop() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertFalse(new ResolvedConfigParser().parse(configFile.toString()).isUdpEventLoop());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUDPEventLoop=yes\n");
+        assertTrue(new ResolvedConfigParser().parse(configFile.toString()).isUdpEventLoop());
+    }
+
+    @Test
+    void testParseVirtualThreads() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertFalse(new ResolvedConfigParser().parse(configFile.toString()).isVirtualThreads());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nVirtualThreads=yes\n");
+        assertTrue(new ResolvedConfigParser().parse(configFile.toString()).isVirtualThreads());
+    }
+
+    @Test
+    void testParseEdnsPayloadSize() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertEquals(1232, new ResolvedConfigParser().parse(configFile.toString()).getEdnsPayloadSize());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nEDNSPayloadSize=4096\n");
+        assertEquals(4096, new ResolvedConfigParser().parse(configFile.toString()).getEdnsPayloadSize());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nEDNSPayloadSize=100\n");
+        assertEquals(1232, new ResolvedConfigParser().parse(configFile.toString()).getEdnsPayloadSize());
+
+        // upstream 수신 버퍼보다 큰 값은 받지 않음
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nEDNSPayloadSize=8192\n");
+        assertEquals(1232, new ResolvedConfigParser().parse(configFile.toString()).getEdnsPayloadSize());
+    }
+
+    @Test
+    void testParseTcpConnectionLimits() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(1000, config.getTcpMaxConnections());
+        assertEquals(10, config.getTcpIdleTimeoutSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nTCPMaxConnections=200\nTCPIdleTimeoutSec=30s\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(200, config.getTcpMaxConnections());
+        assertEquals(30, config.getTcpIdleTimeoutSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nTCPMaxConnections=0\n");
+        assertEquals(1000, new ResolvedConfigParser().parse(configFile.toString()).getTcpMaxConnections());
+    }
+
+    @Test
+    void testParseReusePort() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nReusePort=yes\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertTrue(config.isReusePort());
+        assertEquals(Runtime.getRuntime().availableProcessors(), config.getReusePortListeners());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nReusePort=yes\nReusePortListeners=8\n");
+        assertEquals(8, new ResolvedConfigParser().parse(configFile.toString()).getReusePortListeners());
+    }
+
+    @Test
+    void testParseTimeSpans() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nStaleRetentionSec=90\n");
+        assertEquals(90, new ResolvedConfigParser().parse(configFile.toString()).getStaleRetentionSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nStaleRetentionSec=5min\n");
+        assertEquals(300, new ResolvedConfigParser().parse(configFile.toString()).getStaleRetentionSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nStaleRetentionSec=1d\n");
+        assertEquals(86400, new ResolvedConfigParser().parse(configFile.toString()).getStaleRetentionSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nStaleRetentionSec=soon\n");
+        assertEquals(0, new ResolvedConfigParser().parse(configFile.toString()).getStaleRetentionSec());
+    }
+
+    @Test
+    void testParsePrefetch() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nPrefetchThreshold=10%\nPrefetchMinHits=5\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(10, config.getPrefetchThreshold());
+        assertEquals(5, config.getPrefetchMinHits());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nPrefetchThreshold=150\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(0, config.getPrefetchThreshold());
+        assertEquals(3, config.getPrefetchMinHits());
+    }
+
+    @Test
+    void testParseCacheShards() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheShards=32\n");
+        assertEquals(32, new ResolvedConfigParser().parse(configFile.toString()).getCacheShards());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheShards=-4\n");
+        assertEquals(0, new ResolvedConfigParser().parse(configFile.toString()).getCacheShards());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertEquals(0, new ResolvedConfigParser().parse(configFile.toString()).getCacheShards());
+    }
+
+    @Test
+    void testParseCacheMaxBytes() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheMaxBytes=64M\n");
+        assertEquals(64L * 1024 * 1024, new ResolvedConfigParser().parse(configFile.toString()).getCacheMaxBytes());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheMaxBytes=512k\n");
+        assertEquals(512L * 1024, new ResolvedConfigParser().parse(configFile.toString()).getCacheMaxBytes());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheMaxBytes=1048576\n");
+        assertEquals(1048576, new ResolvedConfigParser().parse(configFile.toString()).getCacheMaxBytes());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheMaxBytes=lots\n");
+        assertEquals(0, new ResolvedConfigParser().parse(configFile.toString()).getCacheMaxBytes());
+    }
+
+    @Test
+    void testParseCacheSnapshot() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheSnapshot=/var/cache/dns/cache.snapshot\nCacheSnapshotIntervalSec=10min\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals("/var/cache/dns/cache.snapshot", config.getCacheSnapshot());
+        assertEquals(600, config.getCacheSnapshotIntervalSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheSnapshot=\nCacheSnapshotIntervalSec=0\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals("", config.getCacheSnapshot());
+        assertEquals(0, config.getCacheSnapshotIntervalSec());
+    }
+
+    @Test
+    void testParseNegativeCacheTtl() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(0, config.getNegativeCacheMinTtlSec());
+        assertEquals(3600, config.getNegativeCacheMaxTtlSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nNegativeCacheMinTTLSec=30\nNegativeCacheMaxTTLSec=15min\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(30, config.getNegativeCacheMinTtlSec());
+        assertEquals(900, config.getNegativeCacheMaxTtlSec());
+    }
+
+    @Test
+    void testParseUpstreamSelection() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertEquals("ordered", new ResolvedConfigParser().parse(configFile.toString()).getUpstreamSelection());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamSelection=RTT\n");
+        assertEquals("rtt", new ResolvedConfigParser().parse(configFile.toString()).getUpstreamSelection());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamSelection=random\n");
+        assertEquals("ordered", new ResolvedConfigParser().parse(configFile.toString()).getUpstreamSelection());
+    }
+
+    @Test
+    void testParseUpstreamCircuitBreaker() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(3, config.getUpstreamFailureThreshold());
+        assertEquals(5, config.getUpstreamProbeIntervalSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamFailureThreshold=5\nUpstreamProbeIntervalSec=1min\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(5, config.getUpstreamFailureThreshold());
+        assertEquals(60, config.getUpstreamProbeIntervalSec());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamFailureThreshold=0\nUpstreamProbeIntervalSec=0\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(0, config.getUpstreamFailureThreshold());
+        assertEquals(1, config.getUpstreamProbeIntervalSec());
+    }
+
+    @Test
+    void testParseUpstreamHedge() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(0, config.getUpstreamHedgeBudget());
+        assertEquals(0, config.getUpstreamHedgeDelayMs());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamHedgeBudget=5%\nUpstreamHedgeDelayMs=50\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(5, config.getUpstreamHedgeBudget());
+        assertEquals(50, config.getUpstreamHedgeDelayMs());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamHedgeBudget=150\nUpstreamHedgeDelayMs=-1\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(0, config.getUpstreamHedgeBudget());
+        assertEquals(0, config.getUpstreamHedgeDelayMs());
+    }
+
+    @Test
+    void testParseUpstreamRto() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        ResolvedConfig config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(50, config.getUpstreamRtoMinMs());
+        assertEquals(2000, config.getUpstreamRtoMaxMs());
+        assertEquals(2, config.getUpstreamRetransmits());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamRtoMinMs=5\nUpstreamRtoMaxMs=500\nUpstreamRetransmits=0\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(5, config.getUpstreamRtoMinMs());
+        assertEquals(500, config.getUpstreamRtoMaxMs());
+        assertEquals(0, config.getUpstreamRetransmits());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nUpstreamRtoMinMs=0\nUpstreamRetransmits=-1\n");
+        config = new ResolvedConfigParser().parse(configFile.toString());
+        assertEquals(1, config.getUpstreamRtoMinMs());
+        assertEquals(0, config.getUpstreamRetransmits());
+    }
+
+    @Test
+    void testParseCacheStorage() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertEquals("heap", new ResolvedConfigParser().parse(configFile.toString()).getCacheStorage());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheStorage=OffHeap\n");
+        assertEquals("offheap", new ResolvedConfigParser().parse(configFile.toString()).getCacheStorage());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCacheStorage=disk\n");
+        assertEquals("heap", new ResolvedConfigParser().parse(configFile.toString()).getCacheStorage());
+    }
+
+    @Test
+    void testParseCachePolicy() throws IOException {
+        Path configFile = tempDir.resolve("resolved.conf");
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCachePolicy=TinyLFU\n");
+        assertEquals("tinylfu", new ResolvedConfigParser().parse(configFile.toString()).getCachePolicy());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\nCachePolicy=arc\n");
+        assertEquals("lru", new ResolvedConfigParser().parse(configFile.toString()).getCachePolicy());
+
+        Files.writeString(configFile, "[Resolve]\nDNS=1.1.1.1\n");
+        assertEquals("lru", new ResolvedConfigParser().parse(configFile.toString()).getCachePolicy());
+    }
+
     @Test
     void testParseMultipleDnsLines() throws IOException {
         Path configFile = tempDir.resolve("resolved.conf");
@@ -0,0 +1,146 @@
+package com.logpresso.dnsproxy.server;
+
+import com.logpresso.dnsproxy.cache.DnsCache;
+import com.logpresso.dnsproxy.client.UpstreamResolver;
+import com.logpresso.dnsproxy.config.ResolvedConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DnsHandlerTest {
+
+    private FakeUpstream upstream;
+    private ExecutorService executor;
+    private UpstreamResolver resolver;
+    private DnsHandler handler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        upstream = new FakeUpstream();
+        executor = Executors.newFixedThreadPool(4);
+        handler = createHandler(1232);
+    }
+
+    @AfterEach
+    void tearDown() {
+        resolver.close();
+        executor.shutdownNow();
+        upstream.close();
+    }
+
+    @Test
+    void testEdnsQueryGetsOwnOpt() throws Exception {
+        Message response = handle(createQuery(Type.A, 4096, 0, ExtendedFlags.DO), 512);
+
+        // 클라이언트 크기와 관계없이 설정한 크기를 광고하고 DO 비트는 유지
+        OPTRecord opt = response.getOPT();
+        assertNotNull(opt);
+        assertEquals(1232, opt.getPayloadSize());
+        assertEquals(ExtendedFlags.DO, opt.getFlags() & ExtendedFlags.DO);
+
+        OPTRecord upstreamOpt = new Message(upstream.getLastQuery()).getOPT();
+        assertEquals(1232, upstreamOpt.getPayloadSize());
+        assertEquals(ExtendedFlags.DO, upstreamOpt.getFlags() & ExtendedFlags.DO);
+    }
+
+    @Test
+    void testQueryWithoutOptGetsNoOpt() throws Exception {
+        Message response = handle(createQuery(Type.A, -1, 0, 0), 512);
+        assertNull(response.getOPT());
+        assertEquals(1, response.getSection(Section.ANSWER).size());
+
+        // upstream에는 EDNS로 질의함
+        assertEquals(1232, new Message(upstream.getLastQuery()).getOPT().getPayloadSize());
+    }
+
+    @Test
+    void testExtendedRcodeKeptAndNotCached() throws Exception {
+        upstream.setExtendedRcode(Rcode.BADCOOKIE);
+
+        // upstream OPT의 상위 RCODE 비트를 클라이언트 OPT로 옮기고, 캐시하지 않아 다음 질의도 upstream으로 감
+        for (int i = 1; i <= 2; i++) {
+            Message response = handle(createQuery(Type.A, 1232, 0, 0), 512);
+            assertEquals(Rcode.BADCOOKIE, response.getRcode());
+            assertEquals(1232, response.getOPT().getPayloadSize());
+            assertEquals(i, upstream.getQueryCount());
+        }
+    }
+
+    @Test
+    void testUnsupportedVersionGetsBadVers() throws Exception {
+        Message response = handle(createQuery(Type.A, 1232, 1, 0), 512);
+
+        assertEquals(Rcode.BADVERS, response.getRcode());
+        assertNotNull(response.getOPT());
+        assertEquals(0, response.getOPT().getVersion());
+        assertEquals(0, upstream.getQueryCount());
+    }
+
+    @Test
+    void testTruncatedToClientLimit() throws Exception {
+        // EDNS가 없으면 512바이트가 한도
+        Message plain = handle(createQuery(Type.TXT, -1, 0, 0), 512);
+        assertTrue(plain.getHeader().getFlag(Flags.TC));
+        assertEquals(0, plain.getSection(Section.ANSWER).size());
+        assertNull(plain.getOPT());
+
+        // 광고한 크기가 응답보다 작으면 OPT를 붙인 TC 응답
+        Message small = handle(createQuery(Type.TXT, 600, 0, 0), 512);
+        assertTrue(small.getHeader().getFlag(Flags.TC));
+        assertNotNull(small.getOPT());
+
+        Message large = handle(createQuery(Type.TXT, 1232, 0, 0), 512);
+        assertFalse(large.getHeader().getFlag(Flags.TC));
+        assertEquals(1, large.getSection(Section.ANSWER).size());
+
+        // TCP에는 한도가 없음
+        Message tcp = handle(createQuery(Type.TXT, -1, 0, 0), Integer.MAX_VALUE);
+        assertFalse(tcp.getHeader().getFlag(Flags.TC));
+        assertEquals(1, upstream.getQueryCount());
+    }
+
+    @Test
+    void testMaximumPayloadSizeIsNotCutOff() throws Exception {
+        resolver.close();
+        handler = createHandler(4096);
+        upstream.setTxtLength(3500);
+
+        // 설정한 최대 크기의 upstream 응답도 수신 버퍼에 다 들어가야 함
+        Message response = handle(createQuery(Type.TXT, 4096, 0, 0), 512);
+        assertEquals(Rcode.NOERROR, response.getRcode());
+        assertFalse(response.getHeader().getFlag(Flags.TC));
+        assertEquals(1, response.getSection(Section.ANSWER).size());
+    }
+
+    private DnsHandler createHandler(int ednsPayloadSize) throws IOException {
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of(upstream.getAddress()))
+                .ednsPayloadSize(ednsPayloadSize)
+                .build();
+
+        resolver = new UpstreamResolver(config, executor);
+        return new DnsHandler(resolver, new DnsCache(config), config, executor);
+    }
+
+    private Message handle(byte[] query, int maxResponseSize) throws Exception {
+        return new Message(handler.handleAsync(query, maxResponseSize).get(5, TimeUnit.SECONDS));
+    }
+
+    // payloadSize가 0 이상이면 OPT 레코드를 붙임
+    private byte[] createQuery(int type, int payloadSize, int version, int flags) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), type, DClass.IN));
+        if (payloadSize >= 0)
+            query.addRecord(new OPTRecord(payloadSize, 0, version, flags), Section.ADDITIONAL);
+
+        return query.toWire();
+    }
+}
@@ -0,0 +1,133 @@
+package com.logpresso.dnsproxy.server;
+
+import org.xbill.DNS.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback UDP upstream for server tests. Answers A queries with 1.1.1.1 and
+ * TXT queries with a TXT record of about txtLength bytes, or with an empty
+ * response carrying extendedRcode when it is set. While held, queries are
+ * kept unanswered until release().
+ */
+class FakeUpstream implements Closeable {
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final List<DatagramPacket> held = new ArrayList<>();
+    private volatile int txtLength = 1000;
+    private volatile int extendedRcode;
+    private volatile byte[] lastQuery;
+    private boolean holding;
+
+    FakeUpstream() throws IOException {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        thread = new Thread(this::run, "fake-upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getAddress() {
+        return "127.0.0.1:" + socket.getLocalPort();
+    }
+
+    int getQueryCount() {
+        return queryCount.get();
+    }
+
+    byte[] getLastQuery() {
+        return lastQuery;
+    }
+
+    void setTxtLength(int txtLength) {
+        this.txtLength = txtLength;
+    }
+
+    void setExtendedRcode(int extendedRcode) {
+        this.extendedRcode = extendedRcode;
+    }
+
+    synchronized void hold() {
+        holding = true;
+    }
+
+    void release() throws IOException {
+        List<DatagramPacket> packets;
+        synchronized (this) {
+            holding = false;
+            packets = new ArrayList<>(held);
+            held.clear();
+        }
+
+        for (DatagramPacket packet : packets)
+            answer(packet);
+    }
+
+    private void run() {
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+                socket.receive(packet);
+                queryCount.incrementAndGet();
+                lastQuery = Arrays.copyOf(packet.getData(), packet.getLength());
+
+                synchronized (this) {
+                    if (holding) {
+                        held.add(packet);
+                        continue;
+                    }
+                }
+
+                answer(packet);
+            } catch (IOException e) {
+                // 소켓이 닫히면 종료
+            }
+        }
+    }
+
+    private void answer(DatagramPacket packet) throws IOException {
+        Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+        Record question = query.getQuestion();
+
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RD);
+        response.getHeader().setFlag(Flags.RA);
+        response.addRecord(question, Section.QUESTION);
+
+        // 상위 8비트는 OPT에 실림 (RFC 6891 6.1.3)
+        int rcode = extendedRcode;
+        if (rcode > 0) {
+            response.getHeader().setRcode(rcode & 0xf);
+            response.addRecord(new OPTRecord(1232, rcode >>> 4, 0), Section.ADDITIONAL);
+        } else if (question.getType() == Type.TXT) {
+            List<String> strings = new ArrayList<>();
+            for (int remaining = txtLength; remaining > 0; remaining -= 200)
+                strings.add(String.join("", Collections.nCopies(Math.min(200, remaining), "x")));
+
+            response.addRecord(new TXTRecord(question.getName(), DClass.IN, 300, strings), Section.ANSWER);
+        } else {
+            response.addRecord(new ARecord(question.getName(), DClass.IN, 300,
+                    InetAddress.getByName("1.1.1.1")), Section.ANSWER);
+        }
+
+        byte[] data = response.toWire();
+        socket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.logpresso.dnsproxy.server;
+
+import com.logpresso.dnsproxy.cache.CacheKey;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryCoalescerTest {
+
+    @Test
+    void testConcurrentMissesShareOneLoad() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        CacheKey key = CacheKey.of(Name.fromString("example.com."), Type.A, DClass.IN);
+
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<byte[]> upstream = new CompletableFuture<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CompletableFuture<byte[]>>> callers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                callers.add(executor.submit(() -> {
+                    start.await();
+                    return coalescer.resolveAsync(key, () -> {
+                        loads.incrementAndGet();
+                        return upstream;
+                    });
+                }));
+            }
+
+            start.countDown();
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (Future<CompletableFuture<byte[]>> caller : callers)
+                futures.add(caller.get(5, TimeUnit.SECONDS));
+
+            byte[] result = new byte[]{1, 2, 3};
+            upstream.complete(result);
+
+            for (CompletableFuture<byte[]> future : futures)
+                assertSame(result, future.get(5, TimeUnit.SECONDS));
+
+            assertEquals(1, loads.get());
+            assertEquals(3, coalescer.getCoalescedCount());
+            assertEquals(0, coalescer.getInflightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testAsyncLoadIsShared() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        CacheKey key = CacheKey.of(Name.fromString("example.com."), Type.A, DClass.IN);
+
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<byte[]> upstream = new CompletableFuture<>();
+
+        CompletableFuture<byte[]> first = coalescer.resolveAsync(key, () -> {
+            loads.incrementAndGet();
+            return upstream;
+        });
+        CompletableFuture<byte[]> second = coalescer.resolveAsync(key, () -> {
+            loads.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+
+        // upstream 응답 전에는 어느 쪽도 완료되지 않음
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(1, coalescer.getInflightCount());
+
+        byte[] result = new byte[]{1, 2, 3};
+        upstream.complete(result);
+
+        assertSame(result, first.get(5, TimeUnit.SECONDS));
+        assertSame(result, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(1, coalescer.getCoalescedCount());
+        assertEquals(0, coalescer.getInflightCount());
+    }
+
+    @Test
+    void testFailureIsPropagatedAndNotRemembered() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        CacheKey key = CacheKey.of(Name.fromString("example.com."), Type.A, DClass.IN);
+
+        CompletableFuture<byte[]> failed = coalescer.resolveAsync(key,
+                () -> CompletableFuture.failedFuture(new IOException("upstream down")));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+
+        // 실패한 결과를 기억하지 않고 다음 질의는 다시 로드
+        byte[] result = new byte[]{1};
+        assertSame(result, coalescer.resolveAsync(key, () -> CompletableFuture.completedFuture(result)).get(5, TimeUnit.SECONDS));
+        assertEquals(0, coalescer.getInflightCount());
+    }
+}
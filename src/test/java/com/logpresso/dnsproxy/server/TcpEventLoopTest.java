@@ -0,0 +1,253 @@
+package com.logpresso.dnsproxy.server;
+
+import com.logpresso.dnsproxy.cache.DnsCache;
+import com.logpresso.dnsproxy.client.UpstreamResolver;
+import com.logpresso.dnsproxy.config.ResolvedConfig;
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpEventLoopTest {
+
+    private FakeUpstream upstream;
+    private ExecutorService executor;
+    private UpstreamResolver resolver;
+    private DnsHandler handler;
+    private TcpEventLoop loop;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        upstream = new FakeUpstream();
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of(upstream.getAddress()))
+                .upstreamRetransmits(0)
+                .build();
+
+        executor = Executors.newFixedThreadPool(8);
+        resolver = new UpstreamResolver(config, executor);
+        handler = new DnsHandler(resolver, new DnsCache(config), config, executor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (loop != null)
+            loop.close();
+
+        resolver.close();
+        executor.shutdownNow();
+        upstream.close();
+    }
+
+    @Test
+    void testPipelinedQueriesAnsweredInCompletionOrder() throws Exception {
+        startLoop(10, 10000);
+
+        try (Socket socket = connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            writeFrame(out, createQuery("cached.example.", 1));
+            assertEquals(1, DnsWire.getId(readFrame(in)));
+
+            // 느린 캐시 미스 뒤에 보낸 캐시 히트가 먼저 응답됨
+            upstream.hold();
+            writeFrame(out, createQuery("slow.example.", 2));
+            writeFrame(out, createQuery("cached.example.", 3));
+            assertEquals(3, DnsWire.getId(readFrame(in)));
+
+            upstream.release();
+            assertEquals(2, DnsWire.getId(readFrame(in)));
+        }
+    }
+
+    @Test
+    void testPipelinedMissesResolvedConcurrently() throws Exception {
+        startLoop(10, 10000);
+
+        try (Socket socket = connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            // 한 연결의 캐시 미스들이 앞 질의의 응답을 기다리지 않고 모두 upstream으로 나감
+            upstream.hold();
+            for (int id = 1; id <= 3; id++)
+                writeFrame(out, createQuery("host" + id + ".example.", id));
+
+            awaitQueryCount(3);
+            upstream.release();
+
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < 3; i++)
+                ids.add(DnsWire.getId(readFrame(in)));
+
+            assertEquals(Set.of(1, 2, 3), ids);
+        }
+    }
+
+    @Test
+    void testInflightLimitStopsReading() throws Exception {
+        startLoop(10, 10000);
+        int queries = TcpConnection.MAX_INFLIGHT_QUERIES + 5;
+
+        try (Socket socket = connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            upstream.hold();
+            for (int id = 1; id <= queries; id++)
+                writeFrame(out, createQuery("host" + id + ".example.", id));
+
+            // 한도만큼만 읽어서 처리하고 나머지는 응답이 나갈 때까지 소켓에 남김
+            awaitQueryCount(TcpConnection.MAX_INFLIGHT_QUERIES);
+            Thread.sleep(200);
+            assertEquals(TcpConnection.MAX_INFLIGHT_QUERIES, upstream.getQueryCount());
+
+            upstream.release();
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < queries; i++)
+                ids.add(DnsWire.getId(readFrame(in)));
+
+            assertEquals(queries, ids.size());
+            assertEquals(queries, upstream.getQueryCount());
+        }
+    }
+
+    @Test
+    void testIdleConnectionReaped() throws Exception {
+        startLoop(10, 1000);
+
+        try (Socket socket = connect()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            writeFrame(new DataOutputStream(socket.getOutputStream()), createQuery("example.com.", 1));
+            assertEquals(1, DnsWire.getId(readFrame(in)));
+
+            // 유휴 타임아웃이 지나면 서버가 연결을 닫음
+            assertEquals(-1, in.read());
+            assertEquals(1, loop.getReapedCount());
+        }
+    }
+
+    @Test
+    void testLeastRecentlyUsedIdleConnectionEvicted() throws Exception {
+        startLoop(2, 60000);
+
+        try (Socket first = connect(); Socket second = connect()) {
+            exchange(first, 1);
+            exchange(second, 2);
+            exchange(first, 3);
+
+            // 테이블이 가득 차면 가장 오래 사용하지 않은 유휴 연결(second)을 닫고 새 연결을 받음
+            try (Socket third = connect()) {
+                exchange(third, 4);
+                assertEquals(-1, second.getInputStream().read());
+                exchange(first, 5);
+            }
+
+            assertEquals(1, loop.getReapedCount());
+            assertEquals(0, loop.getRejectedCount());
+        }
+    }
+
+    @Test
+    void testStalledClientReclaimed() throws Exception {
+        startLoop(1, 1000);
+        upstream.setTxtLength(3000);
+
+        Socket stalled = new Socket();
+        stalled.setReceiveBufferSize(4096);
+        stalled.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), loop.getLocalPort()));
+
+        // 응답을 읽지 않는 클라이언트가 큰 캐시 응답을 계속 요청해 서버의 쓰기 버퍼를 채움
+        Thread writer = new Thread(() -> {
+            try {
+                DataOutputStream out = new DataOutputStream(stalled.getOutputStream());
+                for (int id = 1; id <= 5000; id++)
+                    writeFrame(out, createQuery("big.example.", Type.TXT, id));
+            } catch (IOException e) {
+                // 서버가 연결을 닫음
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+
+        try {
+            // 쓰기가 진행되지 않는 연결은 유휴가 아니어도 정리되어 테이블 자리가 생김
+            long deadline = System.currentTimeMillis() + 10000;
+            while (loop.getReapedCount() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+
+            assertEquals(1, loop.getReapedCount());
+            try (Socket next = connect()) {
+                exchange(next, 1);
+            }
+
+            assertEquals(0, loop.getRejectedCount());
+        } finally {
+            stalled.close();
+        }
+    }
+
+    private void exchange(Socket socket, int id) throws IOException {
+        writeFrame(new DataOutputStream(socket.getOutputStream()), createQuery("example.com.", id));
+        assertEquals(id, DnsWire.getId(readFrame(new DataInputStream(socket.getInputStream()))));
+    }
+
+    private void startLoop(int maxConnections, long idleTimeoutMs) throws IOException {
+        loop = new TcpEventLoop("test-tcp-loop", handler, executor, maxConnections, idleTimeoutMs,
+                resolver.getQueryDeadlineMs());
+        loop.bind("127.0.0.1", 0, false);
+        loop.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), loop.getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private void awaitQueryCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (upstream.getQueryCount() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(count, upstream.getQueryCount());
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readUnsignedShort()];
+        in.readFully(data);
+        return data;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+        out.writeShort(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    private byte[] createQuery(String name, int id) throws IOException {
+        return createQuery(name, Type.A, id);
+    }
+
+    private byte[] createQuery(String name, int type, int id) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+        query.getHeader().setID(id);
+        return query.toWire();
+    }
+}
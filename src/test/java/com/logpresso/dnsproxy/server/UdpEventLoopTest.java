@@ -0,0 +1,138 @@
+package com.logpresso.dnsproxy.server;
+
+import com.logpresso.dnsproxy.cache.DnsCache;
+import com.logpresso.dnsproxy.client.UpstreamResolver;
+import com.logpresso.dnsproxy.config.ResolvedConfig;
+import com.logpresso.dnsproxy.wire.DnsWire;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UdpEventLoopTest {
+
+    private FakeUpstream upstream;
+    private UpstreamResolver resolver;
+    private ExecutorService executor;
+    private UdpEventLoop loop;
+    private DatagramSocket client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        upstream = new FakeUpstream();
+        ResolvedConfig config = ResolvedConfig.builder()
+                .dns(List.of(upstream.getAddress()))
+                .build();
+
+        executor = Executors.newFixedThreadPool(4);
+        resolver = new UpstreamResolver(config, executor);
+        DnsHandler handler = new DnsHandler(resolver, new DnsCache(config), config, executor);
+
+        loop = new UdpEventLoop("test-udp-loop", handler, executor, 4096, 512);
+        loop.bind("127.0.0.1", 0, false);
+        loop.start();
+
+        client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        loop.close();
+        executor.shutdownNow();
+        resolver.close();
+        upstream.close();
+    }
+
+    @Test
+    void testMissThenCacheHit() throws Exception {
+        byte[] first = exchange(createQuery("example.com.", Type.A, 0x1111, -1));
+        assertEquals(0x1111, DnsWire.getId(first));
+        assertEquals(1, DnsWire.getAnswerCount(first));
+        assertEquals(1, upstream.getQueryCount());
+
+        // 두 번째 질의는 upstream에 가지 않고 질의한 대소문자 그대로 응답
+        byte[] second = exchange(createQuery("ExAmPlE.com.", Type.A, 0x2222, -1));
+        assertEquals(0x2222, DnsWire.getId(second));
+        assertEquals(1, DnsWire.getAnswerCount(second));
+        assertEquals("ExAmPlE.com.", new Message(second).getQuestion().getName().toString());
+        assertEquals(1, upstream.getQueryCount());
+    }
+
+    @Test
+    void testConcurrentMissesShareUpstreamQuery() throws Exception {
+        upstream.hold();
+        for (int id = 1; id <= 3; id++)
+            send(createQuery("example.com.", Type.A, id, -1));
+
+        while (upstream.getQueryCount() == 0)
+            Thread.sleep(10);
+
+        upstream.release();
+
+        int ids = 0;
+        for (int i = 0; i < 3; i++) {
+            byte[] response = receive();
+            assertEquals(1, DnsWire.getAnswerCount(response));
+            ids |= 1 << DnsWire.getId(response);
+        }
+
+        assertEquals(0b1110, ids);
+        assertEquals(1, upstream.getQueryCount());
+    }
+
+    @Test
+    void testLargeResponseTruncated() throws Exception {
+        // EDNS가 없는 클라이언트는 512바이트를 넘는 응답 대신 TC 응답을 받음
+        Message miss = new Message(exchange(createQuery("example.com.", Type.TXT, 1, -1)));
+        assertTrue(miss.getHeader().getFlag(Flags.TC));
+        assertEquals(0, miss.getSection(Section.ANSWER).size());
+
+        Message hit = new Message(exchange(createQuery("example.com.", Type.TXT, 2, -1)));
+        assertTrue(hit.getHeader().getFlag(Flags.TC));
+        assertEquals(1, upstream.getQueryCount());
+
+        // EDNS 클라이언트는 광고한 크기까지 그대로 받음
+        Message edns = new Message(exchange(createQuery("example.com.", Type.TXT, 3, 1232)));
+        assertFalse(edns.getHeader().getFlag(Flags.TC));
+        assertEquals(1, edns.getSection(Section.ANSWER).size());
+        assertNotNull(edns.getOPT());
+    }
+
+    private byte[] exchange(byte[] query) throws IOException {
+        send(query);
+        return receive();
+    }
+
+    private void send(byte[] query) throws IOException {
+        client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), loop.getLocalPort()));
+    }
+
+    private byte[] receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        client.receive(packet);
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+
+    // payloadSize가 0 이상이면 OPT 레코드를 붙임
+    private byte[] createQuery(String name, int type, int id, int payloadSize) throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+        query.getHeader().setID(id);
+        if (payloadSize >= 0)
+            query.addRecord(new OPTRecord(payloadSize, 0, 0), Section.ADDITIONAL);
+
+        return query.toWire();
+    }
+}
@@ -0,0 +1,163 @@
+package com.logpresso.dnsproxy.wire;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DnsWireTest {
+
+    @Test
+    void testIdPatch() throws IOException {
+        byte[] data = createResponse().toWire();
+
+        DnsWire.setId(data, 0xbeef);
+
+        assertEquals(0xbeef, DnsWire.getId(data));
+        assertEquals(0xbeef, new Message(data).getHeader().getID());
+    }
+
+    @Test
+    void testFindTtlOffsetsSkipsOpt() throws IOException {
+        Message response = createResponse();
+        response.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        byte[] data = response.toWire();
+
+        int[] offsets = DnsWire.findTtlOffsets(data);
+
+        assertNotNull(offsets);
+        assertEquals(2, offsets.length);
+        for (int offset : offsets)
+            assertEquals(300, DnsWire.getUnsignedInt(data, offset));
+    }
+
+    @Test
+    void testTtlPatch() throws IOException {
+        byte[] data = createResponse().toWire();
+
+        for (int offset : DnsWire.findTtlOffsets(data))
+            DnsWire.putInt(data, offset, 42);
+
+        Message patched = new Message(data);
+        for (Record record : patched.getSection(Section.ANSWER))
+            assertEquals(42, record.getTTL());
+    }
+
+    @Test
+    void testFindTtlOffsetsRejectsTruncatedData() throws IOException {
+        byte[] data = createResponse().toWire();
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        assertNull(DnsWire.findTtlOffsets(truncated));
+    }
+
+    @Test
+    void testIsSimpleQuery() throws IOException {
+        Record question = Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN);
+        Message query = Message.newQuery(question);
+        byte[] data = query.toWire();
+        assertTrue(DnsWire.isSimpleQuery(data, data.length));
+
+        byte[] response = createResponse().toWire();
+        assertFalse(DnsWire.isSimpleQuery(response, response.length));
+    }
+
+    @Test
+    void testFindQueryOpt() throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        query.addRecord(new OPTRecord(4096, 0, 0, ExtendedFlags.DO), Section.ADDITIONAL);
+        byte[] data = query.toWire();
+
+        assertTrue(DnsWire.isSimpleQuery(data, data.length));
+
+        int questionEnd = DnsWire.skipName(data, DnsWire.HEADER_LENGTH, data.length) + 4;
+        int opt = DnsWire.findQueryOpt(data, data.length, questionEnd);
+
+        assertEquals(questionEnd, opt);
+        assertEquals(4096, DnsWire.getOptPayloadSize(data, opt));
+        assertEquals(0, DnsWire.getOptVersion(data, opt));
+        assertTrue(DnsWire.isOptDnssecOk(data, opt));
+
+        // 질의 뒤에 남는 바이트가 있으면 OPT로 인정하지 않음
+        assertEquals(-1, DnsWire.findQueryOpt(data, data.length - 1, questionEnd));
+    }
+
+    @Test
+    void testAppendOpt() throws IOException {
+        byte[] data = createResponse().toWire();
+
+        byte[] withOpt = DnsWire.appendOpt(data, 1232, true);
+
+        Message parsed = new Message(withOpt);
+        assertNotNull(parsed.getOPT());
+        assertEquals(1232, parsed.getOPT().getPayloadSize());
+        assertEquals(ExtendedFlags.DO, parsed.getOPT().getFlags() & ExtendedFlags.DO);
+        assertEquals(2, parsed.getSection(Section.ANSWER).size());
+        assertEquals(0, DnsWire.getAdditionalCount(data));
+    }
+
+    @Test
+    void testFindAndRemoveOpt() throws IOException {
+        Message response = createResponse();
+        assertEquals(-1, DnsWire.findOpt(response.toWire()));
+
+        response.getHeader().setRcode(Rcode.BADVERS & 0xf);
+        response.addRecord(new OPTRecord(4096, Rcode.BADVERS >>> 4, 0), Section.ADDITIONAL);
+        byte[] data = response.toWire();
+        int opt = DnsWire.findOpt(data);
+        assertEquals(4096, DnsWire.getOptPayloadSize(data, opt));
+        assertEquals(Rcode.BADVERS >>> 4, DnsWire.getOptExtendedRcode(data, opt));
+
+        byte[] stripped = DnsWire.removeOpt(data, opt);
+        assertNull(new Message(stripped).getOPT());
+        assertEquals(2, new Message(stripped).getSection(Section.ANSWER).size());
+
+        // 확장 RCODE를 실은 OPT를 다시 붙이면 원래 RCODE로 읽힘
+        byte[] withOpt = DnsWire.appendOpt(stripped, 1232, Rcode.BADVERS >>> 4, false);
+        assertEquals(Rcode.BADVERS, new Message(withOpt).getRcode());
+    }
+
+    @Test
+    void testAddTcpKeepalive() throws IOException {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        byte[] data = query.toWire();
+        int questionEnd = DnsWire.skipName(data, DnsWire.HEADER_LENGTH, data.length) + 4;
+
+        byte[] withKeepalive = DnsWire.addTcpKeepalive(data, questionEnd);
+
+        Message parsed = new Message(withKeepalive);
+        assertEquals(1232, parsed.getOPT().getPayloadSize());
+        assertEquals(1, parsed.getOPT().getOptions(EDNSOption.Code.TCP_KEEPALIVE).size());
+
+        // 이미 옵션이 있거나 OPT가 없으면 그대로 복사
+        assertArrayEquals(withKeepalive, DnsWire.addTcpKeepalive(withKeepalive, questionEnd));
+        byte[] noOpt = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN)).toWire();
+        assertArrayEquals(noOpt, DnsWire.addTcpKeepalive(noOpt, questionEnd));
+    }
+
+    @Test
+    void testFindTcpKeepalive() throws IOException {
+        Message response = createResponse();
+        assertEquals(-1, DnsWire.findTcpKeepalive(response.toWire()));
+
+        response.addRecord(new OPTRecord(1232, 0, 0, 0, new TcpKeepaliveOption(300)), Section.ADDITIONAL);
+        assertEquals(300, DnsWire.findTcpKeepalive(response.toWire()));
+    }
+
+    private Message createResponse() throws IOException {
+        Message response = new Message(0x1234);
+        response.getHeader().setFlag(Flags.QR);
+
+        Name name = Name.fromString("example.com.");
+        response.addRecord(Record.newRecord(name, Type.A, DClass.IN), Section.QUESTION);
+        response.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByName("1.1.1.1")), Section.ANSWER);
+        response.addRecord(new CNAMERecord(Name.fromString("alias.example.com."), DClass.IN, 300, name), Section.ANSWER);
+
+        return response;
+    }
+}